@@ -0,0 +1,126 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.InputSource;
+
+/**
+ * Parsing of Bing responses: a DOM queried by {@link BingSearcherUtil#ProcessResponse}
+ * versus the single-pass {@link BingSearcherUtil#ParseResponse}. Responses are 
+ * read from the directory given by the system property bing.feeds (all *.xml files,
+ * e.g., responses recorded with curl), a synthetic 50-entry response is used 
+ * otherwise. Each invocation parses all responses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BingResponseParsingBenchmark {
+  private ArrayList<byte[]> mFeeds;
+  private DocumentBuilder   mDocBuilder;
+  private PrintStream       mStdout;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    mFeeds = new ArrayList<byte[]>();
+    String feedDir = System.getProperty("bing.feeds");
+    if (feedDir != null) {
+      File[] files = new File(feedDir).listFiles();
+      if (files != null) {
+        for (File f : files) {
+          if (f.getName().endsWith(".xml")) mFeeds.add(readFile(f));
+        }
+      }
+      if (mFeeds.isEmpty())
+        throw new IOException("No *.xml feeds in '" + feedDir + "'");
+    } else {
+      mFeeds.add(BingFeedGenerator.createResponse(50).getBytes("utf-8"));
+    }
+
+    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+    dbf.setNamespaceAware(true);
+    mDocBuilder = dbf.newDocumentBuilder();
+
+    // Parsers report the number of results, which would flood the output
+    mStdout = System.out;
+    System.setOut(new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b) {}
+    }));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    System.setOut(mStdout);
+  }
+
+  @Benchmark
+  public int processResponse() throws Exception {
+    int qty = 0;
+    for (byte[] feed : mFeeds) {
+      InputSource src = new InputSource(new ByteArrayInputStream(feed));
+      qty += BingSearcherUtil.ProcessResponse(mDocBuilder.parse(src), "query").size();
+    }
+    return qty;
+  }
+
+  @Benchmark
+  public int parseResponse() throws Exception {
+    int qty = 0;
+    for (byte[] feed : mFeeds)
+      qty += BingSearcherUtil.ParseResponse(new ByteArrayInputStream(feed), "query").size();
+    return qty;
+  }
+
+  private static byte[] readFile(File f) throws IOException {
+    byte[] buf = new byte[(int) f.length()];
+    FileInputStream in = new FileInputStream(f);
+    try {
+      int len = 0, qty;
+      while (len < buf.length && (qty = in.read(buf, len, buf.length - len)) > 0)
+        len += qty;
+    } finally {
+      in.close();
+    }
+    return buf;
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Selecting top results: sorting a list of {@link SearchResult} objects versus 
+ * heap-based selection in a {@link SearchResultBatch}, and merging ranked lists
+ * of several engines. Both sorting and selection reorder their input, 
+ * so every invocation works with a copy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SearchResultBatchBenchmark {
+  private static final int TOP_K      = 10;
+  private static final int ENGINE_QTY = 4;
+
+  @Param({"1000", "100000"})
+  public int resultQty;
+
+  private ArrayList<SearchResult>   mList;
+  private SearchResultBatch         mBatch;
+  private ArrayList<ArrayList<SearchResult>> mRankedLists;
+  private ArrayList<SearchResultBatch>       mRankedBatches;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Random rand = new Random(0);
+    mList = createResults(rand, resultQty, "query");
+    mBatch = SearchResultBatch.fromList(mList);
+
+    mRankedLists = new ArrayList<ArrayList<SearchResult>>();
+    mRankedBatches = new ArrayList<SearchResultBatch>();
+    SearchResultBatch.StringTable table = new SearchResultBatch.StringTable();
+    for (int e = 0; e < ENGINE_QTY; ++e) {
+      ArrayList<SearchResult> results = createResults(rand, resultQty / ENGINE_QTY, "query" + e);
+      Collections.sort(results, Collections.reverseOrder());
+      mRankedLists.add(results);
+      mRankedBatches.add(SearchResultBatch.fromList(results, table));
+    }
+  }
+
+  @Benchmark
+  public List<SearchResult> sortList() {
+    ArrayList<SearchResult> results = new ArrayList<SearchResult>(mList);
+    Collections.sort(results, Collections.reverseOrder());
+    return results.subList(0, TOP_K);
+  }
+
+  @Benchmark
+  public SearchResultBatch selectTopK() {
+    SearchResultBatch batch = mBatch.copy();
+    batch.selectTopK(TOP_K);
+    return batch;
+  }
+
+  /*
+   * Concatenates ranked lists and sorts them, as results of several engines are combined now.
+   */
+  @Benchmark
+  public List<SearchResult> mergeLists() {
+    ArrayList<SearchResult> results = new ArrayList<SearchResult>();
+    for (ArrayList<SearchResult> l : mRankedLists)
+      results.addAll(l);
+    Collections.sort(results, Collections.reverseOrder());
+    return results.subList(0, TOP_K);
+  }
+
+  @Benchmark
+  public SearchResultBatch mergeBatches() {
+    return SearchResultBatch.merge(mRankedBatches, TOP_K);
+  }
+
+  private static ArrayList<SearchResult> createResults(Random rand, int qty, String query) {
+    ArrayList<SearchResult> results = new ArrayList<SearchResult>(qty);
+    for (int i = 0; i < qty; ++i) {
+      SearchResult r = new SearchResult("A snippet of the result " + i, query, 
+                                        "http://www.example.com/page" + i, i);
+      r.setScore(rand.nextFloat());
+      results.add(r);
+    }
+    return results;
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Query construction and scoring of {@link SolrAnswerCandidateEvidencer}.
+ * Assertions are scored against an embedded Solr core (see solr/ in this module,
+ * the system property solr.home can point elsewhere), which is filled with 
+ * synthetic passages during setup. Assertions are fragments of these
+ * passages. Every invocation processes the next assertion
+ * of a fixed set, so that the results don't depend on a single query. 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SolrEvidencerBenchmark {
+  private static final String CORE_NAME     = "collection1";
+  private static final String FIELD_NAME    = "text";
+  private static final int    PASSAGE_QTY   = 20000;
+  private static final int    ASSERTION_QTY = 1000;
+  private static final int    VOCAB_SIZE    = 5000;
+  private static final int    BATCH_SIZE    = 100;
+
+  private static final String[] STOP_WORDS  = {
+    "the", "a", "of", "in", "and", "is", "was", "to", "by", "for", "with", "which"
+  };
+
+  private EmbeddedSolrServer            mSolrServer;
+  private SolrAnswerCandidateEvidencer  mEvidencer;
+  private SolrAnswerCandidateEvidencer  mPrunedEvidencer;
+  private SolrCore                      mCore;
+  private RefCounted<SolrIndexSearcher> mSearcher;
+  private LuceneAnswerCandidateEvidencer mLuceneEvidencer;
+  private File                          mDataDir;
+  private String[]                      mAssertions;
+  private int                           mNext = 0;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, SolrServerException {
+    mDataDir = File.createTempFile("SolrEvidencerBenchmark", "");
+    if (!mDataDir.delete() || !mDataDir.mkdir())
+      throw new IOException("Can't create the directory '" + mDataDir + "'");
+    System.setProperty("solr.data.dir", mDataDir.getPath());
+
+    mSolrServer = EmbeddedSolrServerFactory.open(System.getProperty("solr.home", "solr"), CORE_NAME);
+
+    Random rand = new Random(0);
+    String[] passages = new String[PASSAGE_QTY];
+    ArrayList<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
+    for (int i = 0; i < PASSAGE_QTY; ++i) {
+      passages[i] = createSentence(rand, 20 + rand.nextInt(30));
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.addField("ID", String.valueOf(i));
+      doc.addField(FIELD_NAME, passages[i]);
+      docs.add(doc);
+      if (docs.size() == 1000) {
+        mSolrServer.add(docs);
+        docs.clear();
+      }
+    }
+    if (!docs.isEmpty()) mSolrServer.add(docs);
+    mSolrServer.commit();
+
+    // An assertion is a part of some passage, where one word is replaced, 
+    // so that it is supported by at least one passage
+    mAssertions = new String[ASSERTION_QTY];
+    for (int i = 0; i < ASSERTION_QTY; ++i) {
+      String[] words = passages[rand.nextInt(PASSAGE_QTY)].split(" ");
+      int len = 5 + rand.nextInt(10), start = rand.nextInt(words.length - len);
+      words[start + rand.nextInt(len)] = createSentence(rand, 1);
+      StringBuilder sb = new StringBuilder();
+      for (int k = start; k < start + len; ++k) sb.append(words[k]).append(' ');
+      mAssertions[i] = sb.toString().trim() + ".";
+    }
+
+    SolrAnswerCandidateEvidencer.DEBUG_INFO = false;
+    mEvidencer = new SolrAnswerCandidateEvidencer(mSolrServer, FIELD_NAME, 80, 1.5f, 10, 0.5f,
+                                                  SolrAnswerCandidateEvidencer.DEFAULT_MAX_CONCURRENCY);
+    mPrunedEvidencer = new SolrAnswerCandidateEvidencer(mSolrServer, FIELD_NAME, 80, 1.5f, 10, 0.5f,
+                                                        SolrAnswerCandidateEvidencer.DEFAULT_MAX_CONCURRENCY);
+    mPrunedEvidencer.setTermPruning(5, 0.3f);
+    // Document frequencies are retrieved in advance, as they would be in a long run
+    for (String assertion : mAssertions)
+      mPrunedEvidencer.createBagOfWordQuery(assertion);
+
+    // The Lucene evidencer uses the searcher of the core, i.e., the same index
+    mCore = mSolrServer.getCoreContainer().getCore(CORE_NAME);
+    mSearcher = mCore.getSearcher();
+    mLuceneEvidencer = new LuceneAnswerCandidateEvidencer(mSearcher.get(),
+                                                          LuceneAnswerCandidateEvidencer.createDefaultAnalyzer(),
+                                                          FIELD_NAME, 80, 1.5f, 10, 0.5f);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    mSearcher.decref();
+    mCore.close();
+    mEvidencer.close();
+    mPrunedEvidencer.close();
+    mSolrServer.shutdown();
+    delete(mDataDir);
+  }
+
+  @Benchmark
+  public ArrayList<String> getQueryWords() {
+    return mEvidencer.getQueryWords(nextAssertion());
+  }
+
+  @Benchmark
+  public Object createBagOfWordQuery() {
+    return mEvidencer.createBagOfWordQuery(nextAssertion());
+  }
+
+  @Benchmark
+  public EvidencingResult scoreAssertion() throws SolrServerException {
+    return mEvidencer.scoreAssertion(nextAssertion());
+  }
+
+  /*
+   * Queries keep at most 5 of the rarest words.
+   */
+  @Benchmark
+  public EvidencingResult scoreAssertionPruned() throws SolrServerException {
+    return mPrunedEvidencer.scoreAssertion(nextAssertion());
+  }
+
+  @Benchmark
+  public EvidencingResult scoreAssertionLucene() throws IOException {
+    return mLuceneEvidencer.scoreAssertion(nextAssertion());
+  }
+
+  /*
+   * Scores a batch of assertions in parallel, compare with BATCH_SIZE invocations 
+   * of scoreAssertion.
+   */
+  @Benchmark
+  public List<EvidencingResult> scoreAssertions() throws SolrServerException {
+    ArrayList<String> batch = new ArrayList<String>(BATCH_SIZE);
+    for (int i = 0; i < BATCH_SIZE; ++i)
+      batch.add(nextAssertion());
+    return mEvidencer.scoreAssertions(batch);
+  }
+
+  /*
+   * Scores a batch of assertions in a single request.
+   */
+  @Benchmark
+  public List<EvidencingResult> scoreAssertionsOnServer() throws SolrServerException {
+    ArrayList<String> batch = new ArrayList<String>(BATCH_SIZE);
+    for (int i = 0; i < BATCH_SIZE; ++i)
+      batch.add(nextAssertion());
+    return mEvidencer.scoreAssertionsOnServer(batch);
+  }
+
+  /*
+   * Threads share the state, so the counter is only roughly round-robin, which is fine.
+   */
+  private String nextAssertion() {
+    int next = mNext;
+    mNext = next + 1 == ASSERTION_QTY ? 0 : next + 1;
+    return mAssertions[next];
+  }
+
+  /*
+   * Words are drawn from a Zipf-like distribution, every fourth word is a stop word.
+   */
+  private static String createSentence(Random rand, int wordQty) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < wordQty; ++i) {
+      if (i > 0) sb.append(' ');
+      if (i % 4 == 3) {
+        sb.append(STOP_WORDS[rand.nextInt(STOP_WORDS.length)]);
+      } else {
+        int rank = (int) Math.pow(VOCAB_SIZE, rand.nextDouble());
+        sb.append("w").append(rank);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static void delete(File f) {
+    File[] files = f.listFiles();
+    if (files != null) {
+      for (File child : files) delete(child);
+    }
+    f.delete();
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading and saving whole cache tables. Every invocation works with
+ * a new {@link WebSearchCache} object, so that the table isn't served 
+ * from memory: {@link #loadCache()} reads a cache file written during setup,
+ * {@link #saveCache()} writes the table to an empty directory and waits
+ * until it is synced. Large tables need a large heap, e.g., -Xmx4g.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class WebSearchCacheBenchmark {
+  private static final String ENGINE     = "Bing";
+  private static final int    RESULT_QTY = 5;
+
+  @Param({"10000", "100000", "1000000"})
+  public int entryQty;
+
+  private Hashtable<String, ArrayList<SearchResult>> mTable;
+  private File    mLoadDir;
+  private File    mSaveDir;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    mTable = new Hashtable<String, ArrayList<SearchResult>>(2 * entryQty);
+    for (int i = 0; i < entryQty; ++i) {
+      String query = "question number " + i + " about something";
+      SearchResultList entry = new SearchResultList(RESULT_QTY);
+      for (int k = 0; k < RESULT_QTY; ++k) {
+        entry.add(new SearchResult("Title " + k + ": a snippet of the result " + k 
+                                   + " for the question " + i + ", which is a sentence or two long.",
+                                   query, "00000000-0000-0000-0000-" + (1000000 + k), k));
+      }
+      entry.setDepth(RESULT_QTY);
+      mTable.put(BingSearcherUtil.getCanonicalKey(query), entry);
+    }
+
+    mLoadDir = createTempDir();
+    WebSearchCache cache = new WebSearchCache(mLoadDir.getPath() + File.separator);
+    cache.saveCache(mTable, ENGINE);
+    cache.close();
+  }
+
+  @Setup(Level.Invocation)
+  public void setUpSave() throws IOException {
+    mSaveDir = createTempDir();
+  }
+
+  @TearDown(Level.Invocation)
+  public void tearDownSave() {
+    delete(mSaveDir);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    delete(mLoadDir);
+  }
+
+  @Benchmark
+  public int loadCache() {
+    WebSearchCache cache = new WebSearchCache(mLoadDir.getPath() + File.separator);
+    try {
+      return cache.loadCache(ENGINE).size();
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Benchmark
+  public void saveCache() {
+    WebSearchCache cache = new WebSearchCache(mSaveDir.getPath() + File.separator);
+    cache.saveCache(mTable, ENGINE);
+    // Entries are written in background
+    cache.flush();
+    cache.close();
+  }
+
+  private static File createTempDir() throws IOException {
+    File dir = File.createTempFile("WebSearchCacheBenchmark", "");
+    if (!dir.delete() || !dir.mkdir())
+      throw new IOException("Can't create the directory '" + dir + "'");
+    return dir;
+  }
+
+  private static void delete(File f) {
+    File[] files = f.listFiles();
+    if (files != null) {
+      for (File child : files) delete(child);
+    }
+    f.delete();
+  }
+}
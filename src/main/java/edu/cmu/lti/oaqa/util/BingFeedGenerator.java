@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+/**
+ * Generates synthetic responses in the format of the Bing Search API, 
+ * e.g., for {@link MockBingServer} and benchmarks of response parsing.
+ */
+class BingFeedGenerator {
+
+  /**
+   * A response in the format of the Bing Search API, every tenth entry has no description,
+   * and every 25th one has no text at all.
+   */
+  static String createResponse(int entryQty) {
+    return createResponse(entryQty, 0, 0);
+  }
+
+  /**
+   * A response with entries starting from the position skip, descriptions
+   * are padded or truncated to descLen characters (0 keeps the default length).
+   */
+  static String createResponse(int entryQty, int skip, int descLen) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<feed xmlns:base=\"https://api.datamarket.azure.com/Data.ashx/Bing/SearchWeb/v1/Web\""
+            + " xmlns:d=\"http://schemas.microsoft.com/ado/2007/08/dataservices\""
+            + " xmlns:m=\"http://schemas.microsoft.com/ado/2007/08/dataservices/metadata\""
+            + " xmlns=\"http://www.w3.org/2005/Atom\">\n");
+    sb.append("  <category term=\"Bing.WebResult\" scheme=\"http://schemas.microsoft.com/ado/2007/08/dataservices/scheme\"/>\n");
+    sb.append("  <id>https://api.datamarket.azure.com/Data.ashx/Bing/SearchWeb/v1/Web?Query='query'</id>\n");
+    sb.append("  <title type=\"text\">Web</title>\n");
+    sb.append("  <updated>2014-09-01T00:00:00Z</updated>\n");
+    for (int i = skip; i < skip + entryQty; ++i) {
+      boolean noText = i % 25 == 24;
+      sb.append("  <entry>\n");
+      sb.append("    <id>https://api.datamarket.azure.com/Data.ashx/Bing/SearchWeb/v1/Web?Query='query'&amp;$skip=")
+        .append(i).append("&amp;$top=1</id>\n");
+      sb.append("    <title type=\"text\">WebResult</title>\n");
+      sb.append("    <updated>2014-09-01T00:00:00Z</updated>\n");
+      sb.append("    <content type=\"application/xml\">\n");
+      sb.append("      <m:properties>\n");
+      sb.append("        <d:ID m:type=\"Edm.Guid\">00000000-0000-0000-0000-").append(1000000 + i).append("</d:ID>\n");
+      sb.append("        <d:Title m:type=\"Edm.String\">")
+        .append(noText ? "" : "Title of the result number " + i + " &amp; more").append("</d:Title>\n");
+      sb.append("        <d:Description m:type=\"Edm.String\">");
+      if (!noText && i % 10 != 9) {
+        String desc = "A description of the result number " + i 
+                    + ", which is a few sentences long. It mentions the query terms, "
+                    + "and some other words that are not interesting at all.";
+        if (descLen > 0) {
+          StringBuilder padded = new StringBuilder(descLen + desc.length());
+          while (padded.length() < descLen) padded.append(desc).append(' ');
+          desc = padded.substring(0, descLen);
+        }
+        sb.append(desc);
+      }
+      sb.append("</d:Description>\n");
+      sb.append("        <d:DisplayUrl m:type=\"Edm.String\">www.example.com/page").append(i).append("</d:DisplayUrl>\n");
+      sb.append("        <d:Url m:type=\"Edm.String\">http://www.example.com/page").append(i).append("</d:Url>\n");
+      sb.append("      </m:properties>\n");
+      sb.append("    </content>\n");
+      sb.append("  </entry>\n");
+    }
+    sb.append("  <link rel=\"next\" href=\"https://api.datamarket.azure.com/Data.ashx/Bing/SearchWeb/v1/Web?Query='query'&amp;$skip=")
+      .append(skip + entryQty).append("&amp;$top=").append(entryQty).append("\"/>\n");
+    sb.append("</feed>\n");
+    return sb.toString();
+  }
+}
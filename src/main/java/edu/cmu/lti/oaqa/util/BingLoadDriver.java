@@ -0,0 +1,193 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Replays queries from a file (one query per line) against {@link BingSearcher} 
+ * and {@link WebSearchCache} at a target rate and reports the throughput, 
+ * latency percentiles, the cache hit ratio and the peak heap use.</p>
+ *
+ * <p>Requests are sent on schedule, whether or not previous requests have 
+ * finished, and latencies are measured from the scheduled time, so that 
+ * a saturated searcher shows up as growing latencies rather than a lower rate.
+ * Queries are repeated, when more requests than queries are sent.</p>
+ *
+ * <p>Without an endpoint, requests go to an in-process {@link MockBingServer}.</p>
+ *
+ * <p>Usage: BingLoadDriver &lt;query file&gt; &lt;cache path&gt; [&lt;target QPS&gt; 
+ * [&lt;number of requests&gt; [&lt;max concurrency&gt; [&lt;endpoint&gt;]]]]</p>
+ */
+public class BingLoadDriver {
+  private static final int RESULT_QTY = 50;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Usage: BingLoadDriver <query file> <cache path> [<target QPS> "
+                       + "[<number of requests> [<max concurrency> [<endpoint>]]]]");
+      System.exit(1);
+    }
+    final ArrayList<String> queries = readQueries(args[0]);
+    if (queries.isEmpty()) {
+      System.err.println("No queries in " + args[0]);
+      System.exit(1);
+    }
+    double  qps            = args.length > 2 ? Double.parseDouble(args[2]) : 20;
+    int     requestQty     = args.length > 3 ? Integer.parseInt(args[3]) : queries.size();
+    int     maxConcurrency = args.length > 4 ? Integer.parseInt(args[4]) 
+                                             : BingSearcher.DEFAULT_MAX_CONCURRENCY;
+
+    MockBingServer mock = null;
+    if (args.length > 5) {
+      BingSearcherUtil.setEndpoint(args[5]);
+    } else {
+      mock = new MockBingServer(0, 200, 0.5, 0.01, 0);
+      mock.start();
+      BingSearcherUtil.setEndpoint(mock.getEndpoint());
+    }
+    System.out.println("Endpoint: " + BingSearcherUtil.getEndpoint());
+    System.out.println("Sending " + requestQty + " requests at " + qps + " QPS");
+
+    final WebSearchCache cache = new WebSearchCache(args[1]);
+    final BingSearcher searcher = new BingSearcher("mock", cache, RESULT_QTY, maxConcurrency);
+
+    final long[]      latencies = new long[requestQty];
+    final AtomicLong  hitQty    = new AtomicLong();
+    final AtomicLong  errorQty  = new AtomicLong();
+    final AtomicLong  peakHeap  = new AtomicLong();
+
+    final AtomicInteger threadQty = new AtomicInteger();
+    ExecutorService workers = Executors.newCachedThreadPool(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "BingLoadDriver-" + threadQty.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    Thread heapSampler = new Thread(new Runnable() {
+      public void run() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        while (!Thread.currentThread().isInterrupted()) {
+          long used = memory.getHeapMemoryUsage().getUsed();
+          if (used > peakHeap.get()) peakHeap.set(used);
+          try {
+            Thread.sleep(100);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    });
+    heapSampler.setDaemon(true);
+    heapSampler.start();
+
+    PrintStream stdout = System.out;
+    // The searcher reports every query, which would flood the output
+    System.setOut(new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b) {}
+    }));
+
+    long start = System.nanoTime();
+    try {
+      for (int i = 0; i < requestQty; ++i) {
+        final int     reqId     = i;
+        final String  query     = queries.get(i % queries.size());
+        final long    scheduled = start + (long) (i * 1e9 / qps);
+
+        long delay = scheduled - System.nanoTime();
+        if (delay > 0) TimeUnit.NANOSECONDS.sleep(delay);
+
+        workers.execute(new Runnable() {
+          public void run() {
+            try {
+              ArrayList<SearchResult> resultL = new ArrayList<SearchResult>();
+              if (BingSearcherUtil.getCachedResults(cache, resultL, query, RESULT_QTY,
+                                                    searcher.getEngineId())) {
+                hitQty.incrementAndGet();
+              } else if (searcher.retrieveDocuments(query).isEmpty()) {
+                // The searcher reports failed requests, but returns no results
+                errorQty.incrementAndGet();
+              }
+            } catch (Exception e) {
+              errorQty.incrementAndGet();
+            }
+            latencies[reqId] = System.nanoTime() - scheduled;
+          }
+        });
+      }
+      workers.shutdown();
+      workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } finally {
+      System.setOut(stdout);
+    }
+    long elapsed = System.nanoTime() - start;
+    heapSampler.interrupt();
+
+    searcher.close();
+    cache.close();
+    if (mock != null) mock.stop();
+
+    Arrays.sort(latencies);
+    System.out.printf("Throughput:       %.1f requests per second\n", requestQty * 1e9 / elapsed);
+    System.out.printf("Latency p50:      %.1f ms\n", percentile(latencies, 0.5) / 1e6);
+    System.out.printf("Latency p99:      %.1f ms\n", percentile(latencies, 0.99) / 1e6);
+    System.out.printf("Latency max:      %.1f ms\n", latencies[requestQty - 1] / 1e6);
+    System.out.printf("Cache hit ratio:  %.3f\n", (double) hitQty.get() / requestQty);
+    System.out.printf("Failed requests:  %d\n", errorQty.get());
+    System.out.printf("Peak heap:        %.1f MB\n", peakHeap.get() / 1048576.0);
+    if (mock != null) {
+      System.out.printf("Mock requests:    %d (%d failed)\n", 
+                        mock.getRequestQty(), mock.getErrorQty());
+    }
+  }
+
+  private static long percentile(long[] sorted, double p) {
+    int pos = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, pos))];
+  }
+
+  private static ArrayList<String> readQueries(String fileName) throws Exception {
+    ArrayList<String> queries = new ArrayList<String>();
+    BufferedReader br = new BufferedReader(new InputStreamReader(
+        new FileInputStream(fileName), "utf-8"));
+    try {
+      String line;
+      while ((line = br.readLine()) != null) {
+        line = line.trim();
+        if (!line.isEmpty()) queries.add(line);
+      }
+    } finally {
+      br.close();
+    }
+    return queries;
+  }
+}
@@ -15,24 +15,113 @@
  */
 package edu.cmu.lti.oaqa.util;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import edu.cmu.lti.oaqa.util.WebSearchCache;
 
 /**
  * A class to query bing via Bing API.
  * 
+ * <p>The class is thread-safe: one instance (and one cache) can be
+ * shared by all worker threads calling {@link #retrieveDocuments(String)}.</p>
+ * 
+ * <p>Queries can also be retrieved asynchronously, e.g., all reformulations
+ * of a question at once: cached results are returned immediately, while
+ * the others are fetched in parallel over pooled keep-alive connections.
+ * The number of parallel requests is limited. Call {@link #close()}
+ * to release the threads and the connections.</p>
+ * 
+ * <p>A call can have a latency budget, see {@link #retrieveDocuments(String, long)}:
+ * if Bing is slower than usual, a duplicate (hedged) request is sent, 
+ * and when the budget runs out, the results available so far are returned.</p>
+ * 
  * @author Leonid Boytsov
  *
  */
 
-public class BingSearcher {
+public class BingSearcher implements WebSearcher {
+  public static final int     DEFAULT_MAX_CONCURRENCY = 8;
+  /** By default, a request is hedged when it is slower than 95% of recent requests. */
+  public static final double  DEFAULT_HEDGE_PERCENTILE = 0.95;
+  /** The hedging delay used until enough latencies are known. */
+  public static final long    DEFAULT_HEDGE_DELAY_MS   = 1000;
+
+  /*
+   * Latencies of recent Bing requests, the percentiles are computed
+   * on demand: the window is small, so sorting a copy is cheap.
+   */
+  private static class LatencyWindow {
+    private static final int  SIZE          = 256;
+    private static final int  MIN_QTY       = 20;
+
+    private final long[]      mLatencies = new long[SIZE];
+    private int               mQty = 0;
+    private int               mNext = 0;
+
+    synchronized void add(long latencyMs) {
+      mLatencies[mNext] = latencyMs;
+      mNext = (mNext + 1) % SIZE;
+      if (mQty < SIZE) ++mQty;
+    }
+
+    /**
+     * @return the percentile or -1, if too few latencies are known.
+     */
+    synchronized long getPercentile(double percentile) {
+      if (mQty < MIN_QTY) return -1;
+      long[] sorted = Arrays.copyOf(mLatencies, mQty);
+      Arrays.sort(sorted);
+      return sorted[Math.min(mQty - 1, (int)(percentile * mQty))];
+    }
+  }
+
+  /*
+   * Results of a request or its failure.
+   */
+  private static class Outcome {
+    final ArrayList<SearchResult> mResults;
+    final Exception               mError;
+
+    Outcome(ArrayList<SearchResult> results, Exception error) {
+      mResults = results;
+      mError   = error;
+    }
+  }
+
   private String              mCacheId  = "Bing";
   private WebSearchCache      mRetrievalCache = null;  
-  private Hashtable<String, ArrayList<SearchResult>> mCacheStorage = null;;  
   private int                 mResNum = 100;  
   private String              mAccountKey;
+  private final PoolingHttpClientConnectionManager  mConnManager;
+  private final CloseableHttpClient                 mHttpClient;
+  private final ListeningExecutorService            mExecutor;
+  /* Hedged requests don't wait behind the requests they duplicate */
+  private final ListeningExecutorService            mHedgeExecutor;
+  private final LatencyWindow                       mLatencies = new LatencyWindow();
+  private volatile double                           mHedgePercentile = DEFAULT_HEDGE_PERCENTILE;
 
   
   /**
@@ -48,32 +137,296 @@ public class BingSearcher {
   BingSearcher(String accountKey, 
               String  cachePath, 
               int     resNum) {
+    // Cache entries are read on demand, there's no need to load the cache
+    this(accountKey, new WebSearchCache(cachePath), resNum);
+  }
+
+  /**
+   * 
+   * Initialize a Bing retrieval class that uses an existing cache, 
+   * e.g., a cache with a non-default memory tier size.
+   * 
+   * @param accountKey      A Bing API key for the Web search.
+   * @param retrievalCache  A cache of retrieved results.
+   * @param resNum          A maximum number of results to return.
+   * 
+   */
+  BingSearcher(String         accountKey, 
+               WebSearchCache retrievalCache, 
+               int            resNum) {
+    this(accountKey, retrievalCache, resNum, DEFAULT_MAX_CONCURRENCY);
+  }
+
+  /**
+   * 
+   * Initialize a Bing retrieval class with a custom limit of parallel requests.
+   * 
+   * @param accountKey      A Bing API key for the Web search.
+   * @param retrievalCache  A cache of retrieved results.
+   * @param resNum          A maximum number of results to return.
+   * @param maxConcurrency  A maximum number of requests sent to Bing in parallel.
+   * 
+   */
+  BingSearcher(String         accountKey, 
+               WebSearchCache retrievalCache, 
+               int            resNum,
+               int            maxConcurrency) {
     mAccountKey     = accountKey; 
     mResNum         = resNum;
-    mRetrievalCache = new WebSearchCache(cachePath);
-    mCacheStorage = mRetrievalCache.loadCache(mCacheId);
-    if (mCacheStorage == null)
-      mCacheStorage = new Hashtable<String, ArrayList<SearchResult>>();
+    mRetrievalCache = retrievalCache;
+
+    mConnManager = new PoolingHttpClientConnectionManager();
+    mConnManager.setMaxTotal(maxConcurrency);
+    // All requests go to the same host
+    mConnManager.setDefaultMaxPerRoute(maxConcurrency);
+    RequestConfig requestConfig = RequestConfig.custom()
+                                    .setConnectTimeout(BingSearcherUtil.CONNECT_TIMEOUT_MS)
+                                    .setSocketTimeout(BingSearcherUtil.READ_TIMEOUT_MS)
+                                    .setConnectionRequestTimeout(BingSearcherUtil.READ_TIMEOUT_MS)
+                                    .build();
+    mHttpClient = HttpClients.custom().setConnectionManager(mConnManager)
+                                      .setDefaultRequestConfig(requestConfig).build();
 
+    final AtomicInteger threadQty = new AtomicInteger();
+    mExecutor = MoreExecutors.listeningDecorator(
+        Executors.newFixedThreadPool(maxConcurrency, new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "BingSearcher-" + threadQty.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        }));
+    // A small pool without a queue: if all its threads are busy, a request isn't hedged
+    int hedgePoolSize = Math.max(1, maxConcurrency / 4);
+    final AtomicInteger hedgeThreadQty = new AtomicInteger();
+    mHedgeExecutor = MoreExecutors.listeningDecorator(
+        new ThreadPoolExecutor(hedgePoolSize, hedgePoolSize, 0, TimeUnit.MILLISECONDS,
+                               new SynchronousQueue<Runnable>(), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "BingSearcher-hedge-" + hedgeThreadQty.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        }));
   }
   
+  public String getEngineId() {
+    return mCacheId;
+  }
+
   public ArrayList<SearchResult> retrieveDocuments(String query) throws Exception {
     ArrayList<SearchResult> resultL =  new ArrayList<SearchResult>(); 
     query = query.trim();
     if (query.isEmpty()) return resultL;
 
-    String requestURL = BingSearcherUtil.BuildRequest(query, mResNum);
-
     System.out.println("Bing Search : " + query);
-    BingSearcherUtil.getResults(mAccountKey, 
-                                mRetrievalCache, mCacheStorage,
-                                resultL, query, requestURL, mCacheId);
+    BingSearcherUtil.getResults(mHttpClient,
+                                mAccountKey, 
+                                mRetrievalCache,
+                                resultL, query, mResNum, mCacheId);
     
     System.out.println("Result size: " + resultL.size());
 
 
     return resultL;
   }
+
+  /**
+   * Retrieves results within a latency budget. If Bing doesn't respond 
+   * within the hedging delay (see {@link #setHedgePercentile(double)}), 
+   * a duplicate request is sent, and the first response is used. If neither
+   * responds within the budget, the results available in the cache 
+   * (e.g., some of the pages) are returned. If the request fails, it is hedged 
+   * at once, the error is thrown, if the duplicate fails too (or isn't sent).
+   * 
+   * @param query     a query.
+   * @param budgetMs  the latency budget in milliseconds.
+   * 
+   * @return results, which are marked incomplete 
+   *         (see {@link SearchResultList#isIncomplete()}), if the budget ran out.
+   */
+  public SearchResultList retrieveDocuments(final String query, long budgetMs) throws Exception {
+    final long start = System.currentTimeMillis();
+    final String question = query.trim();
+    SearchResultList resultL = new SearchResultList();
+    if (question.isEmpty() || 
+        BingSearcherUtil.getCachedResults(mRetrievalCache, resultL, question, mResNum, mCacheId)) {
+      return resultL;
+    }
+
+    // Whichever request finishes first delivers the results, failures are delivered too
+    final LinkedBlockingQueue<Outcome> done = new LinkedBlockingQueue<Outcome>();
+
+    ListenableFuture<?> primary = mExecutor.submit(new Callable<Void>() {
+      public Void call() {
+        try {
+          ArrayList<SearchResult> res = retrieveDocuments(question);
+          mLatencies.add(System.currentTimeMillis() - start);
+          done.add(new Outcome(res, null));
+        } catch (Exception e) {
+          done.add(new Outcome(null, e));
+        }
+        return null;
+      }
+    });
+    ListenableFuture<?> hedge = null;
+    boolean hedgeTried = false;
+    int running = 1;
+
+    long deadline = start + budgetMs;
+    long hedgeDelay = getHedgeDelay();
+    long hedgeTime = hedgeDelay >= 0 ? start + hedgeDelay : Long.MAX_VALUE;
+    ArrayList<SearchResult> res = null;
+    Exception error = null;
+    while (running > 0) {
+      long now = System.currentTimeMillis();
+      if (now >= deadline) break;
+      boolean canHedge = !hedgeTried && hedgeDelay >= 0;
+      Outcome outcome = done.poll((canHedge ? Math.min(hedgeTime, deadline) : deadline) - now, 
+                                  TimeUnit.MILLISECONDS);
+      if (outcome != null) {
+        --running;
+        if (outcome.mError == null) {
+          res = outcome.mResults;
+          break;
+        }
+        error = outcome.mError;
+        // Don't wait for the hedging delay, if the primary request failed
+        hedgeTime = 0;
+      }
+      if (canHedge && System.currentTimeMillis() >= hedgeTime && 
+          System.currentTimeMillis() < deadline) {
+        hedgeTried = true;
+        hedge = hedge(question, done);
+        if (hedge != null) ++running;
+      }
+    }
+
+    primary.cancel(false);
+    if (hedge != null) hedge.cancel(false);
+
+    if (res != null) {
+      resultL.addAll(res);
+    } else if (running == 0 && error != null) {
+      // All requests failed before the deadline
+      throw error;
+    } else {
+      // Requests are not interrupted: they will save their results in the cache
+      System.out.println("Bing Search deadline expired: " + question);
+      BingSearcherUtil.getPartialCachedResults(mRetrievalCache, resultL, question, 
+                                               mResNum, mCacheId);
+      resultL.setIncomplete(true);
+    }
+    return resultL;
+  }
+
+  /*
+   * Sends a duplicate of a request, which is slow or has failed.
+   * 
+   * @return the future of the duplicate or null, if all hedging threads are busy.
+   */
+  private ListenableFuture<?> hedge(final String question, final LinkedBlockingQueue<Outcome> done) {
+    try {
+      ListenableFuture<?> hedge = mHedgeExecutor.submit(new Callable<Void>() {
+        public Void call() {
+          try {
+            ArrayList<SearchResult> res = new ArrayList<SearchResult>();
+            BingSearcherUtil.getHedgedResults(mHttpClient, mAccountKey, mRetrievalCache,
+                                              res, question, mResNum, mCacheId);
+            done.add(new Outcome(res, null));
+          } catch (Exception e) {
+            done.add(new Outcome(null, e));
+          }
+          return null;
+        }
+      });
+      System.out.println("Bing Search is slow, hedging: " + question);
+      return hedge;
+    } catch (RejectedExecutionException e) {
+      // Many requests are slow, more duplicates would only add to the load
+      System.out.println("Bing Search is slow, too many hedged requests: " + question);
+      return null;
+    }
+  }
+
+  /**
+   * Sets the percentile of recent request latencies, after which
+   * a request is hedged, 0 disables hedging. 
+   */
+  public void setHedgePercentile(double percentile) {
+    mHedgePercentile = percentile;
+  }
+
+  /*
+   * @return the hedging delay or -1, if hedging is disabled.
+   */
+  private long getHedgeDelay() {
+    double percentile = mHedgePercentile;
+    if (percentile <= 0) return -1;
+    long delay = mLatencies.getPercentile(percentile);
+    return delay >= 0 ? delay : DEFAULT_HEDGE_DELAY_MS;
+  }
+
+  /**
+   * Retrieves results of several queries in parallel.
+   * 
+   * @return results in the order of queries.
+   */
+  public List<ArrayList<SearchResult>> retrieveDocuments(List<String> queries) throws Exception {
+    try {
+      return retrieveDocumentsAsync(queries).get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+      throw e;
+    }
+  }
+
+  /**
+   * Retrieves results of several queries in parallel.
+   * 
+   * @return a future, which completes when results of all queries are retrieved. 
+   */
+  public ListenableFuture<List<ArrayList<SearchResult>>> retrieveDocumentsAsync(List<String> queries)
+                                                                        throws Exception {
+    ArrayList<ListenableFuture<ArrayList<SearchResult>>> futures
+        = new ArrayList<ListenableFuture<ArrayList<SearchResult>>>(queries.size());
+    for (String query : queries)
+      futures.add(retrieveDocumentsAsync(query));
+    return Futures.allAsList(futures);
+  }
+
+  /**
+   * Retrieves results asynchronously, cached results are returned immediately,
+   * the others are fetched by a pool thread.
+   */
+  public ListenableFuture<ArrayList<SearchResult>> retrieveDocumentsAsync(final String query) 
+                                                                   throws Exception {
+    ArrayList<SearchResult> resultL = new ArrayList<SearchResult>();
+    if (query.trim().isEmpty() || 
+        BingSearcherUtil.getCachedResults(mRetrievalCache, resultL, query.trim(), 
+                                          mResNum, mCacheId)) {
+      return Futures.immediateFuture(resultL);
+    }
+    return mExecutor.submit(new Callable<ArrayList<SearchResult>>() {
+      public ArrayList<SearchResult> call() throws Exception {
+        return retrieveDocuments(query);
+      }
+    });
+  }
+
+  /**
+   * Stops the pool threads and closes connections, the cache isn't closed.
+   */
+  public void close() {
+    mExecutor.shutdown();
+    mHedgeExecutor.shutdown();
+    // Closing the client releases its connection manager as well
+    try {
+      mHttpClient.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
   
   
   public static void main(String[] args) throws Exception {
@@ -87,11 +440,13 @@ public class BingSearcher {
     System.out.println("Cache path: " + cachePath);
     
     ArrayList<SearchResult> res = web.retrieveDocuments(query);   
+    web.close();
     
     for (int i = 0; i < res.size(); ++i) {
       SearchResult o = res.get(i);
       System.out.println(i + " " + o.getDocID() + " " + o.getAnswer());
     }
+    System.out.println("Memory cache: " + web.mRetrievalCache.getMemoryTier());
   }
 
 }
@@ -15,8 +15,10 @@
  */
 package edu.cmu.lti.oaqa.util;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringReader;
 import java.net.URI;
@@ -26,16 +28,32 @@ import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.ws.commons.util.NamespaceContextImpl;
 import org.apache.commons.codec.binary.Base64;
 import org.w3c.dom.Document;
@@ -58,25 +76,164 @@ import org.xml.sax.SAXException;
  * 
  */
 public class BingSearcherUtil {
-	// TODO: not thread-safe
-	static XPathFactory factory = null;
-	static XPath xpath = null;
-	static XPathExpression expr = null;
+	/*
+	 * XPath objects are not thread-safe, yet creating them for every 
+	 * response is expensive. Hence, each thread gets its own instance.
+	 */
+	private static final ThreadLocal<XPath> XPATH = new ThreadLocal<XPath>() {
+		@Override
+		protected XPath initialValue() {
+			return createXPath();
+		}
+	};
+
+	/*
+	 * Namespaces of the response, see ProcessResponse.
+	 */
+	private static final String ATOM_NS = "http://www.w3.org/2005/Atom";
+	private static final String D_NS    = "http://schemas.microsoft.com/ado/2007/08/dataservices";
+	private static final String M_NS    = "http://schemas.microsoft.com/ado/2007/08/dataservices/metadata";
+
+	/*
+	 * The factory is configured once, after that it can create readers concurrently.
+	 */
+	private static final XMLInputFactory XML_INPUT_FACTORY = createXMLInputFactory();
+
+	/*
+	 * The address of the Bing Search API. It can be changed with the system 
+	 * property bing.endpoint or with setEndpoint, e.g., to send requests 
+	 * to MockBingServer. Results are cached separately for each endpoint
+	 * (see getPageKey), so that mock results are never returned as Bing's.
+	 */
+	public static final String DEFAULT_ENDPOINT = "https://api.datamarket.azure.com/Bing/SearchWeb/v1/Web";
+
+	private static volatile URI ENDPOINT = URI.create(
+	    System.getProperty("bing.endpoint", DEFAULT_ENDPOINT));
+
+	/*
+	 * Timeouts of requests sent to Bing.
+	 */
+	public static final int CONNECT_TIMEOUT_MS = 10000;
+	public static final int READ_TIMEOUT_MS    = 30000;
+
+	/*
+	 * The maximum number of results Bing returns per request.
+	 */
+	public static final int MAX_PAGE_SIZE = 50;
+
+	/*
+	 * The number of threads retrieving pages of deep requests, it is the same as 
+	 * the default size of the connection pool: more threads would only wait for connections.
+	 */
+	private static final int PAGE_THREAD_QTY = BingSearcher.DEFAULT_MAX_CONCURRENCY;
+
+	/*
+	 * Retrieves pages of deep requests in parallel, pages wait in the queue,
+	 * when all threads are busy. Idle threads are stopped.
+	 */
+	private static final ExecutorService PAGE_EXECUTOR = createPageExecutor();
+
+	private static ExecutorService createPageExecutor() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(
+		    PAGE_THREAD_QTY, PAGE_THREAD_QTY, 60, TimeUnit.SECONDS,
+		    new LinkedBlockingQueue<Runnable>(),
+		    new ThreadFactory() {
+		      private final AtomicInteger mThreadQty = new AtomicInteger();
+
+		      public Thread newThread(Runnable r) {
+		        Thread t = new Thread(r, "BingSearcherUtil-page-" + mThreadQty.incrementAndGet());
+		        t.setDaemon(true);
+		        return t;
+		      }
+		    });
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/*
+	 * Requests for the same page, which are in progress. The key is 
+	 * <source ID>\t<page key>, a request for more results serves shallower 
+	 * requests of the page (see SingleFlight).
+	 */
+	private static final SingleFlight<String, ArrayList<SearchResult>> IN_FLIGHT 
+	              = new SingleFlight<String, ArrayList<SearchResult>>();
+
+	/*
+	 * Bing operators, which must stay in upper case.
+	 */
+	private static final String[] OPERATORS = {"AND", "OR", "NOT"};
 
 	/*
 	 * Builds a URL of search query to retrieve results from the Server
 	 */
 	public static String BuildRequest(String queryString, int numResults)
 			throws URISyntaxException {
+		URI endpoint = ENDPOINT;
 		// Note that the query should be in single quotes!
-		URI QueryURI = new URI("https", null /* user info */,
-				"api.datamarket.azure.com", -1 /* port */,
-				"/Bing/SearchWeb/v1/Web", "Query='" + queryString + "'&$top="
+		URI QueryURI = new URI(endpoint.getScheme(), null /* user info */,
+				endpoint.getHost(), endpoint.getPort(),
+				endpoint.getPath(), "Query='" + queryString + "'&$top="
 						+ numResults + "&$format=atom", null /* fragment */);
 
 		return QueryURI.toString();
 	}
 
+	/*
+	 * Sets the address of the Bing Search API, 
+	 * e.g., http://localhost:8089/Bing/SearchWeb/v1/Web
+	 */
+	public static void setEndpoint(String endpoint) throws URISyntaxException {
+		URI uri = new URI(endpoint);
+		if (uri.getScheme() == null || uri.getHost() == null)
+			throw new URISyntaxException(endpoint, "The endpoint must be an absolute URL");
+		ENDPOINT = uri;
+	}
+
+	public static String getEndpoint() {
+		return ENDPOINT.toString();
+	}
+
+	/*
+	 * Builds a URL of a request for a page of results starting from 
+	 * the position skip; Bing returns at most MAX_PAGE_SIZE results per page.
+	 */
+	public static String BuildRequest(String queryString, int numResults, int skip)
+			throws URISyntaxException {
+		if (skip == 0)
+			return BuildRequest(queryString, numResults);
+		URI endpoint = ENDPOINT;
+		URI QueryURI = new URI(endpoint.getScheme(), null /* user info */,
+				endpoint.getHost(), endpoint.getPort(),
+				endpoint.getPath(), "Query='" + queryString + "'&$top="
+						+ numResults + "&$skip=" + skip + "&$format=atom", null /* fragment */);
+
+		return QueryURI.toString();
+	}
+
+	/*
+	 * Sends a request and returns the response stream.
+	 */
+	private static InputStream OpenResponse(String requestURL, String AccountKey)
+			throws IOException {
+		URL url = new URL(requestURL);
+		URLConnection uc = url.openConnection();
+		uc.setConnectTimeout(CONNECT_TIMEOUT_MS);
+		uc.setReadTimeout(READ_TIMEOUT_MS);
+		uc.setRequestProperty("Authorization", BasicAuth(AccountKey));
+
+		return uc.getInputStream();
+	}
+
+	private static String BasicAuth(String AccountKey) {
+		// The username is empty, the Account key is a password
+		String userpass = AccountKey + ":" + AccountKey;
+		return "Basic " + new String(new Base64().encode(userpass.getBytes()));
+	}
+
+	/*
+	 * Retrieves the response as a DOM document. Retrieving results 
+	 * with GetResults is much faster.
+	 */
 	public static Document GetResponse(String requestURL, String AccountKey)
 			throws ParserConfigurationException, SAXException, IOException {
 		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
@@ -85,27 +242,21 @@ public class BingSearcherUtil {
 		DocumentBuilder db = dbf.newDocumentBuilder();
 
 		if (db != null) {
-			URL url = new URL(requestURL);
-			URLConnection uc = url.openConnection();
-			// The username is empty, the Account key is a password
-			String userpass = AccountKey + ":" + AccountKey;
-			String basicAuth = "Basic "
-					+ new String(new Base64().encode(userpass.getBytes()));
-			uc.setRequestProperty("Authorization", basicAuth);
-
 			BufferedReader br = new BufferedReader(new InputStreamReader(
-					uc.getInputStream(), "utf-8"));
-			String input = "", line = "";
+					OpenResponse(requestURL, AccountKey), "utf-8"));
+			StringBuilder sb = new StringBuilder();
+			String line;
 
 			while ((line = br.readLine()) != null) {
-				input += line + "\n";
+				sb.append(line).append('\n');
 			}
 			br.close();
+			String input = sb.toString();
 
 			// When Bing returns an error, it is just a plain string,
 			// not an XML starting with tag <feed
 
-			if (!input.substring(0, 10).matches("^\\s*<feed\\s.*")) {
+			if (!isFeed(input)) {
 				throw new SAXException("Bing search failed, error: " + input);
 			}
 
@@ -118,39 +269,176 @@ public class BingSearcherUtil {
 		return doc;
 	}
 
+	/*
+	 * Retrieves results from the server, the response is parsed as it arrives.
+	 */
+	public static ArrayList<SearchResult> GetResults(String requestURL, String AccountKey,
+	                                                 String query)
+			throws XMLStreamException, IOException {
+		return GetResults(requestURL, AccountKey, query, 0);
+	}
+
+	/*
+	 * The same as above, but hit positions start from firstPos, 
+	 * which is used to retrieve further pages.
+	 */
+	public static ArrayList<SearchResult> GetResults(String requestURL, String AccountKey,
+	                                                 String query, int firstPos)
+			throws XMLStreamException, IOException {
+		InputStream in = OpenResponse(requestURL, AccountKey);
+		try {
+			return ParseResponse(in, query, firstPos);
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * The same as above, but the request is sent by the given client, 
+	 * which can keep connections alive and pool them.
+	 */
+	public static ArrayList<SearchResult> GetResults(HttpClient client, String requestURL, 
+	                                                 String AccountKey, String query)
+			throws XMLStreamException, IOException {
+		return GetResults(client, requestURL, AccountKey, query, 0);
+	}
+
+	public static ArrayList<SearchResult> GetResults(HttpClient client, String requestURL, 
+	                                                 String AccountKey, String query, int firstPos)
+			throws XMLStreamException, IOException {
+		HttpGet get = new HttpGet(requestURL);
+		get.setHeader("Authorization", BasicAuth(AccountKey));
+
+		HttpEntity entity = client.execute(get).getEntity();
+		if (entity == null)
+			throw new IOException("Bing search failed: empty response");
+		// Closing the stream returns the connection to the pool
+		InputStream in = entity.getContent();
+		try {
+			return ParseResponse(in, query, firstPos);
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * Parses the XML in a single pass and extracts results, which are 
+	 * the same as the ones extracted by ProcessResponse from the DOM.
+	 */
+	public static ArrayList<SearchResult> ParseResponse(InputStream in, String query)
+			throws XMLStreamException, IOException {
+		return ParseResponse(in, query, 0);
+	}
+
+	/*
+	 * The same as above, but hit positions start from firstPos.
+	 */
+	public static ArrayList<SearchResult> ParseResponse(InputStream in, String query, int firstPos)
+			throws XMLStreamException, IOException {
+		// When Bing returns an error, it is just a plain string,
+		// not an XML starting with tag <feed
+		BufferedInputStream bin = new BufferedInputStream(in);
+		bin.mark(16);
+		byte[] head = new byte[10];
+		int headLen = 0, qty;
+		while (headLen < head.length &&
+		       (qty = bin.read(head, headLen, head.length - headLen)) > 0)
+			headLen += qty;
+		bin.reset();
+		if (!isFeed(new String(head, 0, headLen, "utf-8"))) {
+			BufferedReader br = new BufferedReader(new InputStreamReader(bin, "utf-8"));
+			StringBuilder error = new StringBuilder();
+			String line;
+			while ((line = br.readLine()) != null)
+				error.append(line).append('\n');
+			throw new IOException("Bing search failed, error: " + error);
+		}
+
+		XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(bin, "utf-8");
+		ArrayList<SearchResult> Reply = new ArrayList<SearchResult>();
+
+		try {
+			/*
+			 * Results are in /feed/entry/content/m:properties/d:*, 
+			 * depth is the number of open elements.
+			 */
+			int depth = 0, i = -1;
+			boolean inEntry = false, inContent = false, inProperties = false;
+			String title = null, desc = null, url = null;
+
+			while (reader.hasNext()) {
+				int event = reader.next();
+
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String ns = reader.getNamespaceURI();
+					String name = reader.getLocalName();
+
+					if (inProperties && depth == 4 && D_NS.equals(ns) &&
+					    (name.equals("Title") || name.equals("Description") || name.equals("Url"))) {
+						// Reads the text and the end tag, so depth stays the same
+						String text = reader.getElementText();
+						if (name.equals("Title")) {
+							if (title == null) title = text;
+						} else if (name.equals("Description")) {
+							if (desc == null) desc = text;
+						} else {
+							if (url == null) url = text;
+						}
+						continue;
+					}
+					++depth;
+					if (depth == 1 && !(ATOM_NS.equals(ns) && name.equals("feed"))) {
+						throw new XMLStreamException("Unexpected root element: " + name);
+					} else if (depth == 2 && ATOM_NS.equals(ns) && name.equals("entry")) {
+						inEntry = true;
+						++i;
+						title = desc = url = null;
+					} else if (depth == 3 && inEntry && ATOM_NS.equals(ns) && name.equals("content")) {
+						inContent = true;
+					} else if (depth == 4 && inContent && M_NS.equals(ns) && name.equals("properties")) {
+						inProperties = true;
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					if (depth == 4) {
+						inProperties = false;
+					} else if (depth == 3) {
+						inContent = false;
+					} else if (depth == 2 && inEntry) {
+						inEntry = false;
+
+						String DocText = "";
+						if (title != null && !title.isEmpty())
+							DocText += title + "\n";
+						if (desc != null && !desc.isEmpty())
+							DocText += desc + "\n";
+
+						if (!DocText.isEmpty()) {
+							SearchResult res = new SearchResult(DocText, query, 
+							                                    url != null ? url : "", firstPos + i);
+							res.setScore(-(firstPos + i));
+
+							Reply.add(res);
+						}
+					}
+					--depth;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		System.out.println("Bing reply size: " + Reply.size());
+
+		return Reply;
+	}
+
 	/*
 	 * Parses XML and extract results
 	 */
 
 	public static ArrayList<SearchResult> ProcessResponse(Document doc, String query)
 			throws XPathExpressionException {
-		factory = XPathFactory.newInstance();
-		xpath = factory.newXPath();
-
-		NamespaceContextImpl ctx = new NamespaceContextImpl();
-
-		/*
-		 * Prefix mapping for the following XML root tag:
-		 * 
-		 * <feed xmlns:base=
-		 * "https://api.datamarket.azure.com/Data.ashx/Bing/SearchWeb/v1/Web"
-		 * xmlns:d="http://schemas.microsoft.com/ado/2007/08/dataservices"
-		 * xmlns:
-		 * m="http://schemas.microsoft.com/ado/2007/08/dataservices/metadata"
-		 * xmlns="http://www.w3.org/2005/Atom">
-		 * 
-		 * NOTE: the default namespace can use any prefix, not necessarily
-		 * default. Yet, exactly the same prefix should also be used in XPATH
-		 * expressions
-		 */
-		ctx.startPrefixMapping("base",
-				"https://api.datamarket.azure.com/Data.ashx/Bing/SearchWeb/Web");
-		ctx.startPrefixMapping("d",
-				"http://schemas.microsoft.com/ado/2007/08/dataservices");
-		ctx.startPrefixMapping("m",
-				"http://schemas.microsoft.com/ado/2007/08/dataservices/metadata");
-		ctx.startPrefixMapping("default", "http://www.w3.org/2005/Atom");
-		xpath.setNamespaceContext(ctx);
+		XPath xpath = XPATH.get();
 
 		NodeList nodes = (NodeList) xpath.evaluate(
 				"/default:feed/default:entry", doc, XPathConstants.NODESET);
@@ -194,6 +482,382 @@ public class BingSearcherUtil {
 		return Reply;
 	}
 	
+	private static boolean isFeed(String input) {
+		return input.length() >= 10 && input.substring(0, 10).matches("^\\s*<feed\\s.*");
+	}
+
+	private static XMLInputFactory createXMLInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		// Responses have no DTD, don't resolve external entities
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		return factory;
+	}
+
+	private static XPath createXPath() {
+		XPath xpath = XPathFactory.newInstance().newXPath();
+
+		NamespaceContextImpl ctx = new NamespaceContextImpl();
+
+		/*
+		 * Prefix mapping for the following XML root tag:
+		 * 
+		 * <feed xmlns:base=
+		 * "https://api.datamarket.azure.com/Data.ashx/Bing/SearchWeb/v1/Web"
+		 * xmlns:d="http://schemas.microsoft.com/ado/2007/08/dataservices"
+		 * xmlns:
+		 * m="http://schemas.microsoft.com/ado/2007/08/dataservices/metadata"
+		 * xmlns="http://www.w3.org/2005/Atom">
+		 * 
+		 * NOTE: the default namespace can use any prefix, not necessarily
+		 * default. Yet, exactly the same prefix should also be used in XPATH
+		 * expressions
+		 */
+		ctx.startPrefixMapping("base",
+				"https://api.datamarket.azure.com/Data.ashx/Bing/SearchWeb/Web");
+		ctx.startPrefixMapping("d",
+				"http://schemas.microsoft.com/ado/2007/08/dataservices");
+		ctx.startPrefixMapping("m",
+				"http://schemas.microsoft.com/ado/2007/08/dataservices/metadata");
+		ctx.startPrefixMapping("default", "http://www.w3.org/2005/Atom");
+		xpath.setNamespaceContext(ctx);
+
+		return xpath;
+	}
+
+	/*
+	 * Builds a cache key, which doesn't depend on the number of requested
+	 * results and on the case and spacing of the query. Bing ignores them,
+	 * except that operators must be in upper case, so operators are kept.
+	 */
+	public static String getCanonicalKey(String queryString) {
+		StringBuilder key = new StringBuilder(queryString.length());
+		for (String token : queryString.trim().split("\\s+")) {
+			if (token.isEmpty())
+				continue;
+			if (key.length() > 0)
+				key.append(' ');
+			key.append(isOperator(token) ? token : token.toLowerCase(Locale.ENGLISH));
+		}
+		return key.toString();
+	}
+
+	private static boolean isOperator(String token) {
+		for (String op : OPERATORS) {
+			if (op.equals(token))
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Retrieves at most numResults results from the cache or, if the cache 
+	 * has fewer results, from the server. Cache entries are keyed by the 
+	 * canonical query (see getCanonicalKey and getPageKey) and record the number of results
+	 * requested from the server, so a deeper entry serves any shallower request.
+	 * Entries keyed by the request URL (as in the method below) are used too.
+	 */
+	public static void getResults(
+	    String AccountKey,
+	    WebSearchCache retrievalCache, 
+	    List<SearchResult> resultL, String question,
+	    int numResults, String sourceID) throws URISyntaxException {
+		getResults(null, AccountKey, retrievalCache, resultL, question, numResults, sourceID);
+	}
+
+	/*
+	 * The same as above, but the server is queried by the given client,
+	 * which can pool connections. If the client is null, a new connection 
+	 * is opened for each request.
+	 * 
+	 * Bing returns at most MAX_PAGE_SIZE results per request, so deeper 
+	 * requests are split into pages, which are fetched in parallel and
+	 * cached separately. The first page is cached like a shallow request. 
+	 * 
+	 * Concurrent requests for the same page are coalesced: the first caller 
+	 * queries the server and saves the results, while the others wait 
+	 * for its results, unless they need more results of the page.
+	 */
+	public static void getResults(
+	    HttpClient client, String AccountKey,
+	    WebSearchCache retrievalCache, 
+	    List<SearchResult> resultL, String question,
+	    int numResults, String sourceID) throws URISyntaxException {
+		getResults(client, AccountKey, retrievalCache, resultL, question, numResults, sourceID, true);
+	}
+
+	/*
+	 * The same as above, but requests are not coalesced with the ones in progress,
+	 * i.e., the server is queried for all pages that are not cached yet. 
+	 * This is used to send a duplicate of a slow request.
+	 */
+	public static void getHedgedResults(
+	    HttpClient client, String AccountKey,
+	    WebSearchCache retrievalCache, 
+	    List<SearchResult> resultL, String question,
+	    int numResults, String sourceID) throws URISyntaxException {
+		getResults(client, AccountKey, retrievalCache, resultL, question, numResults, sourceID, false);
+	}
+
+	private static void getResults(
+	    final HttpClient client, final String AccountKey,
+	    final WebSearchCache retrievalCache, 
+	    List<SearchResult> resultL, final String question,
+	    int numResults, final String sourceID, final boolean coalesce) throws URISyntaxException {
+
+		if (getCachedResults(retrievalCache, resultL, question, numResults, sourceID)) {
+			System.out.println("Bing Cache Entry Found");
+			return;
+		}
+
+		// The first page is retrieved by this thread, the others in parallel
+		ArrayList<Future<ArrayList<SearchResult>>> pages = new ArrayList<Future<ArrayList<SearchResult>>>();
+		for (int skip = MAX_PAGE_SIZE; skip < numResults; skip += MAX_PAGE_SIZE) {
+			final int pageSkip = skip;
+			final int pageSize = Math.min(MAX_PAGE_SIZE, numResults - skip);
+			pages.add(PAGE_EXECUTOR.submit(new Callable<ArrayList<SearchResult>>() {
+				public ArrayList<SearchResult> call() throws URISyntaxException {
+					return getPage(client, AccountKey, retrievalCache, question, sourceID, 
+					               pageSkip, pageSize, coalesce);
+				}
+			}));
+		}
+
+		int firstSize = Math.min(MAX_PAGE_SIZE, numResults);
+		ArrayList<SearchResult> firstPage = getPage(client, AccountKey, retrievalCache, 
+		                                            question, sourceID, 0, firstSize, coalesce);
+		if (firstPage != null)
+			addTopResults(resultL, firstPage, question, 0, firstSize);
+
+		// Pages are merged in the order of hit positions
+		int skip = MAX_PAGE_SIZE;
+		for (Future<ArrayList<SearchResult>> page : pages) {
+			try {
+				ArrayList<SearchResult> results = page.get();
+				if (results != null)
+					addTopResults(resultL, results, question, skip, Math.min(MAX_PAGE_SIZE, numResults - skip));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof URISyntaxException)
+					throw (URISyntaxException) e.getCause();
+				e.printStackTrace();
+			}
+			skip += MAX_PAGE_SIZE;
+		}
+	}
+
+	/*
+	 * Retrieves a page of results from the cache or, if it is not cached, from the server.
+	 * 
+	 * @return results or null, if the request failed. 
+	 */
+	private static ArrayList<SearchResult> getPage(
+	    final HttpClient client, final String AccountKey,
+	    final WebSearchCache retrievalCache, final String question, final String sourceID,
+	    final int skip, final int size, boolean coalesce) throws URISyntaxException {
+
+		ArrayList<SearchResult> cached = new ArrayList<SearchResult>();
+		if (getCachedPage(retrievalCache, cached, question, sourceID, skip, size))
+			return cached;
+
+		final String key = getPageKey(question, skip);
+		Callable<ArrayList<SearchResult>> fetch = new Callable<ArrayList<SearchResult>>() {
+				public ArrayList<SearchResult> call() throws URISyntaxException {
+					// A request that has just finished might have saved the results
+					ArrayList<SearchResult> cached = new ArrayList<SearchResult>();
+					if (getCachedPage(retrievalCache, cached, question, sourceID, skip, size)) {
+						System.out.println("Bing Cache Entry Found");
+						return cached;
+					}
+					System.out.println("Not in Bing  Local cache");
+					ArrayList<SearchResult> fetched = fetchResults(client, AccountKey, question, 
+					                                               BuildRequest(question, size, skip), skip);
+					if (fetched != null) {
+						// Let's save the result set even if it's empty
+						retrievalCache.saveCacheEntry(sourceID, key, new SearchResultList(fetched, size));
+					}
+					return fetched;
+				}
+			};
+		try {
+			if (!coalesce)
+				return fetch.call();
+			ArrayList<SearchResult> fetched = IN_FLIGHT.run(sourceID + '\t' + key, size, fetch);
+			if (fetched == null || fetched.size() <= size)
+				return fetched;
+			// A deeper request for the page was in progress: its top results are used
+			ArrayList<SearchResult> top = new ArrayList<SearchResult>(size);
+			addTopResults(top, fetched, question, skip, size);
+			return top;
+		} catch (URISyntaxException e) {
+			throw e;
+		} catch (Exception e) {
+			// The loader throws nothing else
+			throw new RuntimeException(e);
+		}
+	}
+
+	/*
+	 * Looks the results up in the cache only.
+	 * 
+	 * @return true if the cache has enough results, which are added to resultL.
+	 */
+	public static boolean getCachedResults(
+	    WebSearchCache retrievalCache, 
+	    List<SearchResult> resultL, String question,
+	    int numResults, String sourceID) throws URISyntaxException {
+
+		// A single entry can be deep enough, e.g., if it was saved before pages were introduced
+		if (getCachedPage(retrievalCache, resultL, question, sourceID, 0, numResults))
+			return true;
+		if (numResults <= MAX_PAGE_SIZE)
+			return false;
+
+		ArrayList<SearchResult> pages = new ArrayList<SearchResult>();
+		for (int skip = 0; skip < numResults; skip += MAX_PAGE_SIZE) {
+			if (!getCachedPage(retrievalCache, pages, question, sourceID, 
+			                   skip, Math.min(MAX_PAGE_SIZE, numResults - skip)))
+				return false;
+		}
+		resultL.addAll(pages);
+		return true;
+	}
+
+	/*
+	 * Adds whatever results the cache has, i.e., leading pages and,
+	 * if even the first page is not cached, a shallower entry.
+	 * 
+	 * @return true if all requested results are cached.
+	 */
+	public static boolean getPartialCachedResults(
+	    WebSearchCache retrievalCache, 
+	    List<SearchResult> resultL, String question,
+	    int numResults, String sourceID) throws URISyntaxException {
+
+		if (getCachedResults(retrievalCache, resultL, question, numResults, sourceID))
+			return true;
+
+		for (int skip = 0; skip < numResults; skip += MAX_PAGE_SIZE) {
+			if (!getCachedPage(retrievalCache, resultL, question, sourceID, 
+			                   skip, Math.min(MAX_PAGE_SIZE, numResults - skip))) {
+				if (skip == 0) {
+					ArrayList<SearchResult> cacheEntry = retrievalCache.getCacheEntry(sourceID, 
+					                                                   getPageKey(question, 0));
+					if (cacheEntry != null)
+						addTopResults(resultL, cacheEntry, question, 0, numResults);
+				}
+				break;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Looks a page of results up in the cache. Entries of first pages 
+	 * can also be keyed by the request URL (as in the method below).
+	 * 
+	 * @return true if the page is cached, its results are added to resultL.
+	 */
+	private static boolean getCachedPage(
+	    WebSearchCache retrievalCache, 
+	    List<SearchResult> resultL, String question, String sourceID,
+	    int skip, int size) throws URISyntaxException {
+
+		String key = getPageKey(question, skip);
+
+		ArrayList<SearchResult> cacheEntry = retrievalCache.getCacheEntry(sourceID, key);
+		int depth = cacheEntry != null ? SearchResultList.getDepth(cacheEntry) : 0;
+
+		if (depth < size && skip == 0) {
+			String requestURL = BuildRequest(question, size);
+			ArrayList<SearchResult> oldEntry = retrievalCache.getCacheEntry(sourceID, requestURL);
+			if (oldEntry != null) {
+				cacheEntry = new SearchResultList(oldEntry, size);
+				depth = size;
+				retrievalCache.saveCacheEntry(sourceID, key, cacheEntry);
+			}
+		}
+
+		if (depth < size)
+			return false;
+		addTopResults(resultL, cacheEntry, question, skip, size);
+		return true;
+	}
+
+	/*
+	 * The key of a page of results, the first page has the canonical key.
+	 * Results of another endpoint (e.g., MockBingServer) are kept apart:
+	 * their keys start with the endpoint.
+	 */
+	private static String getPageKey(String question, int skip) {
+		String key = getCanonicalKey(question);
+		String endpoint = getEndpoint();
+		if (!endpoint.equals(DEFAULT_ENDPOINT))
+			key = endpoint + '\t' + key;
+		return skip == 0 ? key : key + "\t$skip=" + skip;
+	}
+
+	/*
+	 * Adds the results, which a request for numResults results starting
+	 * from the position skip would return. Results retrieved for 
+	 * a differently spelled query get the given query.
+	 */
+	private static void addTopResults(List<SearchResult> resultL, ArrayList<SearchResult> cacheEntry,
+	                                  String question, int skip, int numResults) {
+		int qty = 0;
+		for (SearchResult r : cacheEntry) {
+			if (r.getHitPos() >= 0 && r.getHitPos() < skip)
+				continue;
+			if (qty >= numResults || r.getHitPos() >= skip + numResults)
+				break;
+			if (!question.equals(r.getQuery())) {
+				SearchResult copy = new SearchResult(r.getAnswer(), question, r.getDocID(), r.getHitPos());
+				copy.setScore(r.getScore());
+				copy.setNormScore(r.getNormScore());
+				copy.setCacheID(r.getCacheID());
+				r = copy;
+			}
+			resultL.add(r);
+			++qty;
+		}
+	}
+
+	/*
+	 * Retrieves results from the cache or, if they are not cached,
+	 * from the server. Cache entries are read one by one, so the cache
+	 * doesn't need to be loaded in memory.
+	 */
+	public static void getResults(
+	    String AccountKey,
+	    WebSearchCache retrievalCache, 
+	    List<SearchResult> resultL, String question,
+	    String requestURL, String sourceID) {
+
+    // Don't clear results here!!!
+    // resultL.clear();
+    ArrayList<SearchResult> cacheEntry = retrievalCache.getCacheEntry(sourceID, requestURL);
+
+    if (cacheEntry != null) {
+      System.out.println("Bing Cache Entry Found");
+      resultL.addAll(cacheEntry);
+    } else {
+      System.out.println("Not in Bing  Local cache");
+      cacheEntry = fetchResults(null, AccountKey, question, requestURL);
+      if (cacheEntry != null) {
+        resultL.addAll(cacheEntry);
+        // Let's save the result set even if it's empty
+        retrievalCache.saveCacheEntry(sourceID, requestURL, cacheEntry);
+      }
+    }
+  }
+
+	/*
+	 * The same as above, but the cache is looked up in the table 
+	 * previously obtained by WebSearchCache.loadCache.
+	 */
 	public static void getResults(
 	    String AccountKey,
 	    WebSearchCache retrievalCache, 
@@ -203,45 +867,48 @@ public class BingSearcherUtil {
 
     // Don't clear results here!!!
     // resultL.clear();
-    Document doc;
 
     if (cacheBing.containsKey(requestURL)) {
       System.out.println("Bing Cache Entry Found");
       resultL.addAll(cacheBing.get(requestURL));
     } else {
       System.out.println("Not in Bing  Local cache");
-      try {
-        doc = BingSearcherUtil.GetResponse(requestURL, AccountKey);
-        if (doc != null) {
-          try {
-            List<SearchResult> tmpResult = BingSearcherUtil
-                .ProcessResponse(doc, question);
-            resultL.addAll(tmpResult);
-            
-            ArrayList<SearchResult> cacheEntry = new ArrayList<SearchResult>();
-            
-            for (SearchResult resEntry : tmpResult) {
-              cacheEntry.add(resEntry);
-            }
-            
-            cacheBing.put(requestURL, cacheEntry);
-
-            // Let's save the result set even if it's empty
-            retrievalCache.saveCache(cacheBing, sourceID);
-            
-          } catch (XPathExpressionException e) {
-            e.printStackTrace();
-          }
-        }
-      } catch (ParserConfigurationException e) {
-        e.printStackTrace();
-      } catch (SAXException e) {
-        e.printStackTrace();
-      } catch (IOException e) {
-        e.printStackTrace();
+      ArrayList<SearchResult> cacheEntry = fetchResults(null, AccountKey, question, requestURL);
+      if (cacheEntry != null) {
+        resultL.addAll(cacheEntry);
+        cacheBing.put(requestURL, cacheEntry);
+        // Let's save the result set even if it's empty
+        retrievalCache.saveCacheEntry(sourceID, requestURL, cacheEntry);
       }
+    }
+  }
+
+	/*
+	 * Queries the server, using the client if it's not null.
+	 * 
+	 * @return results or null, if the request failed.
+	 */
+	private static ArrayList<SearchResult> fetchResults(HttpClient client, String AccountKey, 
+	                                                    String question, String requestURL) {
+    return fetchResults(client, AccountKey, question, requestURL, 0);
+  }
 
+	/*
+	 * The same as above, but the hit positions of results start from firstPos.
+	 */
+	private static ArrayList<SearchResult> fetchResults(HttpClient client, String AccountKey, 
+	                                                    String question, String requestURL,
+	                                                    int firstPos) {
+    try {
+      if (client != null)
+        return BingSearcherUtil.GetResults(client, requestURL, AccountKey, question, firstPos);
+      return BingSearcherUtil.GetResults(requestURL, AccountKey, question, firstPos);
+    } catch (XMLStreamException e) {
+      e.printStackTrace();
+    } catch (IOException e) {
+      e.printStackTrace();
     }
+    return null;
   }
 	
 }
@@ -0,0 +1,268 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>An in-memory LRU cache bounded both by the number of entries
+ * and by their total (estimated) size. When either limit is exceeded,
+ * the least recently used entries are evicted.</p>
+ *
+ * <p>The cache is thread-safe. Keys are spread over lock-striped segments,
+ * each of which owns an equal share of the limits. Reads never block:
+ * they look values up in a concurrent map and update the recency order
+ * only if the segment lock is free. Thus, under contention the eviction
+ * order is only approximately LRU.</p>
+ *
+ * <p>Optionally, entries expire a fixed time after they were added,
+ * which is useful when the cache mirrors data that is shared with others.</p>
+ *
+ * @param <K>   key type.
+ * @param <V>   value type.
+ */
+public class BoundedLruCache<K, V> {
+  /**
+   * Estimates the memory occupied by a value.
+   */
+  public interface Weigher<V> {
+    long weigh(V value);
+  }
+
+  private static final int MAX_SEGMENT_QTY        = 16;
+  /** Small caches are not split, otherwise segment limits get too coarse. */
+  private static final int MIN_SEGMENT_ENTRIES    = 32;
+
+  private static class Entry<V> {
+    final V     mValue;
+    final long  mWeight;
+    /** System.nanoTime() at which the entry was added. */
+    final long  mAddTime;
+
+    Entry(V value, long weight, long addTime) {
+      mValue = value;
+      mWeight = weight;
+      mAddTime = addTime;
+    }
+  }
+
+  private class Segment {
+    final ReentrantLock                   mLock = new ReentrantLock();
+    final ConcurrentHashMap<K, Entry<V>>  mMap = new ConcurrentHashMap<K, Entry<V>>();
+    /** The recency order, guarded by the lock. */
+    final LinkedHashMap<K, Entry<V>>      mOrder
+                                  = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true /* access order */);
+    long                                  mWeight = 0;
+
+    /* The following methods should be called with the lock held. */
+
+    void put(K key, Entry<V> e) {
+      mMap.put(key, e);
+      Entry<V> old = mOrder.put(key, e);
+      if (old != null) mWeight -= old.mWeight;
+      mWeight += e.mWeight;
+
+      Iterator<Map.Entry<K, Entry<V>>> it = mOrder.entrySet().iterator();
+      while ((mOrder.size() > mSegmentMaxEntries || mWeight > mSegmentMaxWeight) && it.hasNext()) {
+        Map.Entry<K, Entry<V>> victim = it.next();
+        it.remove();
+        mMap.remove(victim.getKey());
+        mWeight -= victim.getValue().mWeight;
+        mEvictionQty.incrementAndGet();
+      }
+    }
+
+    void remove(K key) {
+      mMap.remove(key);
+      Entry<V> old = mOrder.remove(key);
+      if (old != null) mWeight -= old.mWeight;
+    }
+
+    /* Removes the entry only if it wasn't replaced. */
+    void remove(K key, Entry<V> e) {
+      if (mOrder.get(key) == e) remove(key);
+    }
+  }
+
+  private final ArrayList<Segment> mSegments;
+  private final int                mSegmentMaxEntries;
+  private final long               mSegmentMaxWeight;
+  private final Weigher<V>         mWeigher;
+  /** Entries older than this are expired, 0 means never. */
+  private final long               mTimeToLiveNanos;
+
+  private final AtomicLong         mHitQty = new AtomicLong();
+  private final AtomicLong         mMissQty = new AtomicLong();
+  private final AtomicLong         mEvictionQty = new AtomicLong();
+
+  /**
+   * @param maxEntries    the maximum number of entries.
+   * @param maxWeight     the maximum total weight of entries (e.g., in bytes).
+   * @param weigher       estimates entry weights.
+   */
+  public BoundedLruCache(int maxEntries, long maxWeight, Weigher<V> weigher) {
+    this(maxEntries, maxWeight, weigher, 0);
+  }
+
+  /**
+   * @param maxEntries      the maximum number of entries.
+   * @param maxWeight       the maximum total weight of entries (e.g., in bytes).
+   * @param weigher         estimates entry weights.
+   * @param timeToLiveMs    entries expire this many milliseconds after they were added,
+   *                        0 means that entries never expire.
+   */
+  public BoundedLruCache(int maxEntries, long maxWeight, Weigher<V> weigher,
+                         long timeToLiveMs) {
+    int segmentQty = 1;
+    while (segmentQty < MAX_SEGMENT_QTY && maxEntries / (2 * segmentQty) >= MIN_SEGMENT_ENTRIES)
+      segmentQty *= 2;
+
+    mSegments = new ArrayList<Segment>(segmentQty);
+    for (int i = 0; i < segmentQty; ++i)
+      mSegments.add(new Segment());
+    mSegmentMaxEntries = maxEntries / segmentQty;
+    mSegmentMaxWeight = maxWeight / segmentQty;
+    mWeigher = weigher;
+    mTimeToLiveNanos = timeToLiveMs * 1000000L;
+  }
+
+  /**
+   * Retrieves an entry and marks it as the most recently used one.
+   *
+   * @return the value or null, if the key is not cached (or the entry expired).
+   */
+  public V get(K key) {
+    Segment s = segmentFor(key);
+    Entry<V> e = s.mMap.get(key);
+    if (e != null && mTimeToLiveNanos > 0 &&
+        System.nanoTime() - e.mAddTime > mTimeToLiveNanos) {
+      s.mLock.lock();
+      try {
+        s.remove(key, e);
+      } finally {
+        s.mLock.unlock();
+      }
+      e = null;
+    }
+    if (e == null) {
+      mMissQty.incrementAndGet();
+      return null;
+    }
+    mHitQty.incrementAndGet();
+    if (s.mLock.tryLock()) {
+      try {
+        s.mOrder.get(key);
+      } finally {
+        s.mLock.unlock();
+      }
+    }
+    return e.mValue;
+  }
+
+  /**
+   * Adds or replaces an entry, evicting other entries if necessary.
+   * A value heavier than the weight limit of a segment is not cached at all.
+   */
+  public void put(K key, V value) {
+    long weight = mWeigher.weigh(value);
+    Segment s = segmentFor(key);
+    s.mLock.lock();
+    try {
+      if (weight > mSegmentMaxWeight) {
+        s.remove(key);
+      } else {
+        s.put(key, new Entry<V>(value, weight, System.nanoTime()));
+      }
+    } finally {
+      s.mLock.unlock();
+    }
+  }
+
+  public void remove(K key) {
+    Segment s = segmentFor(key);
+    s.mLock.lock();
+    try {
+      s.remove(key);
+    } finally {
+      s.mLock.unlock();
+    }
+  }
+
+  public void clear() {
+    for (Segment s : mSegments) {
+      s.mLock.lock();
+      try {
+        s.mMap.clear();
+        s.mOrder.clear();
+        s.mWeight = 0;
+      } finally {
+        s.mLock.unlock();
+      }
+    }
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment s : mSegments)
+      size += s.mMap.size();
+    return size;
+  }
+
+  public long getWeight() {
+    long weight = 0;
+    for (Segment s : mSegments) {
+      s.mLock.lock();
+      try {
+        weight += s.mWeight;
+      } finally {
+        s.mLock.unlock();
+      }
+    }
+    return weight;
+  }
+
+  public long getHitQty() {
+    return mHitQty.get();
+  }
+
+  public long getMissQty() {
+    return mMissQty.get();
+  }
+
+  public long getEvictionQty() {
+    return mEvictionQty.get();
+  }
+
+  @Override
+  public String toString() {
+    return "entries: " + size() + " weight: " + getWeight() +
+           " hits: " + getHitQty() + " misses: " + getMissQty() +
+           " evictions: " + getEvictionQty();
+  }
+
+  private Segment segmentFor(K key) {
+    int h = key.hashCode();
+    // Spread the high bits, because only the lowest bits select a segment
+    h ^= (h >>> 16);
+    return mSegments.get(h & (mSegments.size() - 1));
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.client.solrj.SolrServerException;
+
+/**
+ * <p>Scores answer candidates in two stages. First, each assertion is scored 
+ * cheaply in-process: the score is the fraction of its (distinct, non-stop) 
+ * words that occur in snippets of already retrieved search results, e.g.,
+ * results of {@link BingSearcher}. Then, only promising assertions are scored
+ * by {@link SolrAnswerCandidateEvidencer}: the top K assertions and assertions
+ * whose overlap is at least the threshold. Other assertions get zero evidence,
+ * as if Solr found nothing.</p>
+ * 
+ * <p>The numbers of assertions sent to Solr and skipped (i.e., saved Solr
+ * queries) are counted.</p>
+ */
+public class CascadedAnswerCandidateEvidencer {
+  private final SolrAnswerCandidateEvidencer  mEvidencer;
+  private final int                           mTopK;
+  private final float                         mMinOverlap;
+
+  private final AtomicLong                    mSentQty = new AtomicLong();
+  private final AtomicLong                    mSavedQty = new AtomicLong();
+
+  /**
+   * @param evidencer     the Solr evidencer.
+   * @param topK          this many assertions with the largest overlap are sent to Solr.
+   * @param minOverlap    assertions with at least this overlap (from 0 to 1) are 
+   *                      sent to Solr as well; use a value above 1 to send only top K.
+   */
+  public CascadedAnswerCandidateEvidencer(SolrAnswerCandidateEvidencer evidencer, 
+                                          int topK, float minOverlap) {
+    mEvidencer  = evidencer;
+    mTopK       = topK;
+    mMinOverlap = minOverlap;
+  }
+
+  /**
+   * @param assertionTexts  assertions.
+   * @param snippets        search results, whose texts are compared with assertions.
+   * 
+   * @return results in the order of assertions.
+   */
+  public List<EvidencingResult> scoreAssertions(List<String> assertionTexts, 
+                                                List<SearchResult> snippets) 
+                                                throws SolrServerException {
+    HashSet<String> snippetWords = new HashSet<String>();
+    for (SearchResult r : snippets) {
+      if (r.getAnswer() == null) continue;
+      for (String w : mEvidencer.getQueryWords(r.getAnswer()))
+        snippetWords.add(w.toLowerCase());
+    }
+
+    final float[] overlaps = new float[assertionTexts.size()];
+    Integer[] order = new Integer[overlaps.length];
+    for (int i = 0; i < overlaps.length; ++i) {
+      overlaps[i] = getOverlap(assertionTexts.get(i), snippetWords);
+      order[i] = i;
+    }
+    // The sort is stable, so ties are broken by the order of assertions
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer i1, Integer i2) {
+        return Float.compare(overlaps[i2], overlaps[i1]);
+      }
+    });
+
+    ArrayList<Integer> sentIds = new ArrayList<Integer>();
+    ArrayList<String>  sentTexts = new ArrayList<String>();
+    for (int k = 0; k < order.length; ++k) {
+      int i = order[k];
+      if (k < mTopK || overlaps[i] >= mMinOverlap) {
+        sentIds.add(i);
+        sentTexts.add(assertionTexts.get(i));
+      }
+    }
+
+    EvidencingResult[] res = new EvidencingResult[overlaps.length];
+    List<EvidencingResult> solrRes = mEvidencer.scoreAssertions(sentTexts);
+    for (int k = 0; k < sentIds.size(); ++k)
+      res[sentIds.get(k)] = solrRes.get(k);
+    for (int i = 0; i < res.length; ++i)
+      if (res[i] == null) res[i] = new EvidencingResult(0f, 0f, 0);
+
+    mSentQty.addAndGet(sentIds.size());
+    mSavedQty.addAndGet(res.length - sentIds.size());
+    return Arrays.asList(res);
+  }
+
+  /**
+   * @return the number of assertions scored by Solr.
+   */
+  public long getSentQty() {
+    return mSentQty.get();
+  }
+
+  /**
+   * @return the number of assertions, which were not sent to Solr.
+   */
+  public long getSavedQty() {
+    return mSavedQty.get();
+  }
+
+  /*
+   * The fraction of distinct words of the assertion that occur in snippets,
+   * assertions without words have zero overlap.
+   */
+  private float getOverlap(String assertionText, HashSet<String> snippetWords) {
+    HashSet<String> words = new HashSet<String>();
+    for (String w : mEvidencer.getQueryWords(assertionText))
+      if (!w.isEmpty()) words.add(w.toLowerCase());
+    if (words.isEmpty()) return 0;
+
+    int qty = 0;
+    for (String w : words)
+      if (snippetWords.contains(w)) ++qty;
+    return (float) qty / words.size();
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.io.File;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.CoreDescriptor;
+
+/**
+ * Opens Solr cores in-process, so that queries don't go through HTTP,
+ * e.g., when the index lives on the same machine, or in offline tests.
+ * Shutting the returned server down also closes its cores.
+ */
+public class EmbeddedSolrServerFactory {
+  /**
+   * Opens a core of a Solr home directory, which has solr.xml and core subdirectories.
+   * 
+   * @param solrHome    the Solr home directory.
+   * @param coreName    the name of the core.
+   */
+  public static EmbeddedSolrServer open(String solrHome, String coreName) 
+                                        throws SolrServerException {
+    CoreContainer container = new CoreContainer(solrHome);
+    container.load();
+    if (!container.getCoreNames().contains(coreName)) {
+      container.shutdown();
+      throw new SolrServerException("No core '" + coreName + "' in '" + solrHome + "'");
+    }
+    return new EmbeddedSolrServer(container, coreName);
+  }
+
+  /**
+   * Opens a single core directory, which has conf/solrconfig.xml and conf/schema.xml.
+   * The core is named after the directory. Unless solrconfig.xml says 
+   * otherwise, the index is in the data subdirectory.
+   * 
+   * @param coreDir     the core (instance) directory.
+   */
+  public static EmbeddedSolrServer open(String coreDir) throws SolrServerException {
+    File dir = new File(coreDir).getAbsoluteFile();
+    if (!new File(dir, "conf").isDirectory())
+      throw new SolrServerException("'" + coreDir + "' isn't a core directory: no conf subdirectory");
+
+    // The core directory is also the home, which has no other cores
+    CoreContainer container = new CoreContainer(dir.getPath());
+    container.load();
+    String coreName = dir.getName();
+    if (!container.getCoreNames().contains(coreName)) {
+      try {
+        container.register(container.create(new CoreDescriptor(container, coreName, dir.getPath())),
+                           false);
+      } catch (RuntimeException e) {
+        container.shutdown();
+        throw new SolrServerException("Can't open the core '" + coreDir + "'", e);
+      }
+    }
+    return new EmbeddedSolrServer(container, coreName);
+  }
+}
@@ -0,0 +1,256 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Memoizes evidencing results, so that repeated runs over the same questions
+ * don't repeat Solr queries. Keys are built by the evidencer from the bag-of-words
+ * query and the scoring parameters. Results are valid only for one version 
+ * of an index: the cache keeps the current version of every index, which
+ * is identified by a string (e.g., the core URL). When the version of
+ * an index increases, its entries are dropped, entries of other indices stay.
+ * Versions are assumed to grow with every commit: an older version,
+ * e.g., from an evidencer, which hasn't checked the index recently, 
+ * doesn't replace the current one, its results are kept only in memory.</p>
+ *
+ * <p>Recently used entries are kept in a bounded memory tier. Optionally, 
+ * entries are also saved in log files (see {@link WebSearchCacheLog}), one 
+ * per index, which survive restarts as long as the index doesn't change. 
+ * A log records the index version, a log of another version is deleted, 
+ * when the index is used for the first time.</p>
+ *
+ * <p>The cache is thread-safe and can be shared by evidencers.</p>
+ */
+public class EvidencingResultCache {
+  public static final int DEFAULT_MAX_MEMORY_ENTRIES = 100000;
+
+  /* Keys are never empty, so this can't clash with them */
+  private static final String VERSION_KEY = "";
+  private static final long   NO_VERSION  = Long.MIN_VALUE;
+
+  private static final BoundedLruCache.Weigher<EvidencingResult> UNIT_WEIGHER
+                = new BoundedLruCache.Weigher<EvidencingResult>() {
+    public long weigh(EvidencingResult entry) {
+      return 1;
+    }
+  };
+
+  /*
+   * The current version of an index and its log.
+   */
+  private static class IndexState {
+    volatile long               mVersion = NO_VERSION;
+    volatile WebSearchCacheLog  mLog = null;
+  }
+
+  /* 
+   * Memory keys include the index and its version: entries of old versions
+   * are never retrieved, and they are evicted eventually.
+   */
+  private final BoundedLruCache<String, EvidencingResult> mMemoryTier;
+  private final String                                    mLogPath;
+  private final ConcurrentHashMap<String, IndexState>     mIndices 
+                                              = new ConcurrentHashMap<String, IndexState>();
+
+  /**
+   * Creates a memory-only cache.
+   */
+  public EvidencingResultCache(int maxMemoryEntries) {
+    this(maxMemoryEntries, null);
+  }
+
+  /**
+   * @param maxMemoryEntries  the maximum number of entries kept in memory.
+   * @param logPath           the prefix of log files or null, if entries are kept 
+   *                          only in memory; the name of a log is the prefix 
+   *                          followed by the MD5 digest of the index ID.
+   */
+  public EvidencingResultCache(int maxMemoryEntries, String logPath) {
+    mMemoryTier = new BoundedLruCache<String, EvidencingResult>(maxMemoryEntries, 
+                                                                maxMemoryEntries, UNIT_WEIGHER);
+    mLogPath = logPath;
+  }
+
+  /**
+   * @param indexId       the ID of the index.
+   * @param indexVersion  the current version of the index.
+   * @param key           the key.
+   * 
+   * @return the result or null, if it isn't cached.
+   */
+  public EvidencingResult get(String indexId, long indexVersion, String key) {
+    IndexState state = setVersion(indexId, indexVersion);
+    String memKey = getMemoryKey(indexId, indexVersion, key);
+
+    EvidencingResult res = mMemoryTier.get(memKey);
+    if (res != null) return res;
+
+    WebSearchCacheLog log;
+    synchronized (state) {
+      // The log has results of the current version only
+      if (indexVersion != state.mVersion) return null;
+      log = state.mLog;
+    }
+    if (log == null) return null;
+    try {
+      byte[] value = log.read(key);
+      if (value == null) return null;
+      res = decode(value);
+    } catch (IOException e) {
+      // The log can be closed, if the version has just changed
+      if (indexVersion == state.mVersion) e.printStackTrace();
+      return null;
+    }
+    mMemoryTier.put(memKey, res);
+    return res;
+  }
+
+  /**
+   * @param indexId       the ID of the index.
+   * @param indexVersion  the version of the index, which produced the result.
+   * @param key           the key.
+   * @param res           the result.
+   */
+  public void put(String indexId, long indexVersion, String key, EvidencingResult res) {
+    IndexState state = setVersion(indexId, indexVersion);
+    mMemoryTier.put(getMemoryKey(indexId, indexVersion, key), res);
+
+    // The version is checked under the lock, which is held while the log is replaced
+    synchronized (state) {
+      if (indexVersion != state.mVersion || state.mLog == null) return;
+      try {
+        state.mLog.append(key, encode(res), false);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * @return the memory tier, which provides hit, miss, and eviction counts.
+   */
+  public BoundedLruCache<String, EvidencingResult> getMemoryTier() {
+    return mMemoryTier;
+  }
+
+  /**
+   * Syncs and closes logs, the memory tier is kept.
+   */
+  public void close() {
+    for (IndexState state : mIndices.values()) {
+      synchronized (state) {
+        if (state.mLog != null) {
+          try {
+            state.mLog.sync();
+            state.mLog.close();
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+          state.mLog = null;
+        }
+        state.mVersion = NO_VERSION;
+      }
+    }
+  }
+
+  private static String getMemoryKey(String indexId, long indexVersion, String key) {
+    return indexId + '\n' + indexVersion + '\n' + key;
+  }
+
+  /*
+   * Drops entries of older versions of the index, an older version is ignored.
+   */
+  private IndexState setVersion(String indexId, long indexVersion) {
+    IndexState state = mIndices.get(indexId);
+    if (state == null) {
+      IndexState newState = new IndexState();
+      state = mIndices.putIfAbsent(indexId, newState);
+      if (state == null) state = newState;
+    }
+    if (indexVersion <= state.mVersion) return state;
+
+    synchronized (state) {
+      if (indexVersion <= state.mVersion) return state;
+
+      if (state.mVersion != NO_VERSION) {
+        System.out.println("Version of the index " + indexId 
+                           + " changed, evidencing results are dropped");
+      }
+      if (mLogPath != null) {
+        try {
+          openLog(state, getLogFile(indexId), indexVersion);
+        } catch (IOException e) {
+          e.printStackTrace();
+          state.mLog = null;
+        }
+      }
+      state.mVersion = indexVersion;
+    }
+    return state;
+  }
+
+  /*
+   * IDs can be long and can have any characters, so the name has their digest.
+   */
+  private File getLogFile(String indexId) throws IOException {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(indexId.getBytes("utf-8"));
+      StringBuilder sb = new StringBuilder(mLogPath);
+      for (byte b : digest)
+        sb.append(String.format("%02x", b));
+      return new File(sb.toString());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static void openLog(IndexState state, File logFile, long indexVersion) 
+                              throws IOException {
+    if (state.mLog == null) {
+      state.mLog = new WebSearchCacheLog(logFile);
+      state.mLog.open();
+    }
+    byte[] version = state.mLog.read(VERSION_KEY);
+    if (version != null && ByteBuffer.wrap(version).getLong() == indexVersion) return;
+
+    if (version != null) {
+      // Results of another version: start from scratch
+      state.mLog.close();
+      state.mLog = null;
+      WebSearchCacheLog.delete(logFile);
+      state.mLog = new WebSearchCacheLog(logFile);
+      state.mLog.open();
+    }
+    state.mLog.append(VERSION_KEY, ByteBuffer.allocate(8).putLong(indexVersion).array(), true);
+  }
+
+  private static byte[] encode(EvidencingResult res) {
+    return ByteBuffer.allocate(16).putFloat(res.mTopscore).putFloat(res.mDiscountScore)
+                                  .putLong(res.mQty).array();
+  }
+
+  private static EvidencingResult decode(byte[] value) {
+    ByteBuffer buf = ByteBuffer.wrap(value);
+    return new EvidencingResult(buf.getFloat(), buf.getFloat(), buf.getLong());
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Sends a query to several backends at once and merges their results.
+ * Scores of different engines are not comparable, so scores of every backend
+ * are min-max normalized to [0, 1] (ranks are used when a backend
+ * has no scores), and merged results are ordered by normalized scores
+ * (see {@link SearchResult#getNormScore()}).</p>
+ *
+ * <p>Different backends often return the same answer text, e.g., the same
+ * snippet. Such results are merged into one, which keeps the highest normalized
+ * score. Each backend caches its results in its own namespace, while merged
+ * results aren't cached.</p>
+ *
+ * <p>With a latency budget, all backends share one deadline: results
+ * of backends that didn't finish in time are dropped, and the merged results
+ * are marked incomplete.</p>
+ */
+public class FederatedSearcher implements WebSearcher {
+  private final List<WebSearcher>  mBackends;
+  private final ExecutorService    mExecutor;
+
+  /**
+   * @param backends  search engines, which are queried in parallel.
+   */
+  public FederatedSearcher(List<? extends WebSearcher> backends) {
+    mBackends = Collections.unmodifiableList(new ArrayList<WebSearcher>(backends));
+
+    final AtomicInteger threadQty = new AtomicInteger();
+    mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "FederatedSearcher-" + threadQty.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  public String getEngineId() {
+    return "Federated";
+  }
+
+  public List<WebSearcher> getBackends() {
+    return mBackends;
+  }
+
+  /**
+   * Waits for all backends, a backend that fails contributes no results.
+   */
+  public ArrayList<SearchResult> retrieveDocuments(String query) throws Exception {
+    return retrieveDocuments(query, -1);
+  }
+
+  /**
+   * Results are ordered by normalized scores, hit positions are the ones
+   * of the backends that returned them.
+   * 
+   * @param budgetMs  the latency budget, a negative value means no deadline.
+   */
+  public SearchResultList retrieveDocuments(final String query, final long budgetMs) 
+                                                                    throws Exception {
+    long deadline = budgetMs < 0 ? -1 : System.currentTimeMillis() + budgetMs;
+
+    ArrayList<Future<ArrayList<SearchResult>>> futures 
+        = new ArrayList<Future<ArrayList<SearchResult>>>(mBackends.size());
+    for (final WebSearcher backend : mBackends) {
+      futures.add(mExecutor.submit(new Callable<ArrayList<SearchResult>>() {
+        public ArrayList<SearchResult> call() throws Exception {
+          return budgetMs < 0 ? backend.retrieveDocuments(query) 
+                              : backend.retrieveDocuments(query, budgetMs);
+        }
+      }));
+    }
+
+    boolean incomplete = false;
+    // Answer text -> the merged result
+    HashMap<String, SearchResult> merged = new HashMap<String, SearchResult>();
+    for (int i = 0; i < futures.size(); ++i) {
+      String engineId = mBackends.get(i).getEngineId();
+      ArrayList<SearchResult> res = null;
+      try {
+        if (deadline < 0) {
+          res = futures.get(i).get();
+        } else {
+          long remaining = Math.max(0, deadline - System.currentTimeMillis());
+          res = futures.get(i).get(remaining, TimeUnit.MILLISECONDS);
+        }
+      } catch (TimeoutException e) {
+        System.out.println("Federated Search: " + engineId + " missed the deadline");
+        // The backend is not interrupted, it will save its results in the cache
+        futures.get(i).cancel(false);
+        incomplete = true;
+      } catch (ExecutionException e) {
+        System.err.println("Federated Search: " + engineId + " failed");
+        e.getCause().printStackTrace();
+        incomplete = true;
+      }
+      if (res == null) continue;
+      if (SearchResultList.isIncomplete(res)) incomplete = true;
+
+      for (SearchResult r : normalize(res)) {
+        String answer = r.getAnswer().trim();
+        SearchResult prev = merged.get(answer);
+        if (prev == null || prev.getNormScore() < r.getNormScore())
+          merged.put(answer, r);
+      }
+    }
+
+    SearchResultList resultL = new SearchResultList(merged.size());
+    resultL.addAll(merged.values());
+    Collections.sort(resultL, NORM_SCORE_DESC);
+    resultL.setIncomplete(incomplete);
+    return resultL;
+  }
+
+  /**
+   * Stops the threads, backends are not closed.
+   */
+  public void close() {
+    mExecutor.shutdownNow();
+  }
+
+  /*
+   * Min-max normalizes scores of one backend. Results can be shared
+   * with the cache of the backend, so they are copied before the normalized
+   * score is set.
+   */
+  private static ArrayList<SearchResult> normalize(ArrayList<SearchResult> res) {
+    float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+    for (SearchResult r : res) {
+      min = Math.min(min, r.getScore());
+      max = Math.max(max, r.getScore());
+    }
+    // Without scores (e.g., Bing results), the rank is the only evidence
+    boolean useRanks = max <= min;
+
+    ArrayList<SearchResult> normL = new ArrayList<SearchResult>(res.size());
+    for (int i = 0; i < res.size(); ++i) {
+      SearchResult r = res.get(i).getCopy();
+      if (useRanks)
+        r.setNormScore(1.0f - (float) i / res.size());
+      else
+        r.setNormScore((r.getScore() - min) / (max - min));
+      normL.add(r);
+    }
+    return normL;
+  }
+
+  private static final Comparator<SearchResult> NORM_SCORE_DESC 
+      = new Comparator<SearchResult>() {
+    public int compare(SearchResult r1, SearchResult r2) {
+      return Float.compare(r2.getNormScore(), r1.getNormScore());
+    }
+  };
+}
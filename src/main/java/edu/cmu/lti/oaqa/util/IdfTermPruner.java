@@ -0,0 +1,188 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.client.solrj.SolrRequest.METHOD;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+
+/**
+ * <p>Drops common words from evidencing queries: long assertions produce 
+ * queries with many frequent words, which are expensive to match
+ * (especially in sloppy phrases), but contribute little to scores.</p>
+ * 
+ * <p>Document frequencies are retrieved from the index: all words, which 
+ * are not cached, are counted in a single request (one facet query per word).
+ * Frequencies are cached and expire after a while, so that changes of the
+ * index are noticed.</p>
+ * 
+ * <p>The pruner is thread-safe.</p>
+ */
+public class IdfTermPruner {
+  public static final long  DEFAULT_REFRESH_MS   = 600000;
+  public static final int   DEFAULT_CACHE_SIZE   = 100000;
+
+  private static final BoundedLruCache.Weigher<Long> UNIT_WEIGHER
+                = new BoundedLruCache.Weigher<Long>() {
+    public long weigh(Long entry) {
+      return 1;
+    }
+  };
+
+  private final SolrServer                  mSolrServer;
+  private final String                      mFieldName;
+  private final int                         mMaxTerms;
+  private final float                       mMaxDocFreqRatio;
+  private final long                        mRefreshMs;
+  private final BoundedLruCache<String, Long> mDocFreqs;
+
+  private volatile long                     mDocQty = -1;
+  private volatile long                     mDocQtyTime = 0;
+
+  /**
+   * @param solrServer        the server.
+   * @param fieldName         the search field.
+   * @param maxTerms          the maximum number of words in a query, 
+   *                          the most frequent words are dropped first.
+   * @param maxDocFreqRatio   words, which occur in a larger fraction of documents, 
+   *                          are dropped; use 1 to keep words regardless of frequency.
+   */
+  public IdfTermPruner(SolrServer solrServer, String fieldName, 
+                       int maxTerms, float maxDocFreqRatio) {
+    this(solrServer, fieldName, maxTerms, maxDocFreqRatio, DEFAULT_REFRESH_MS, DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * @param solrServer        the server.
+   * @param fieldName         the search field.
+   * @param maxTerms          the maximum number of words in a query.
+   * @param maxDocFreqRatio   the maximum fraction of documents containing a word.
+   * @param refreshMs         document frequencies are retrieved again after this many milliseconds.
+   * @param cacheSize         the maximum number of cached document frequencies.
+   */
+  public IdfTermPruner(SolrServer solrServer, String fieldName, 
+                       int maxTerms, float maxDocFreqRatio, long refreshMs, int cacheSize) {
+    mSolrServer       = solrServer;
+    mFieldName        = fieldName;
+    mMaxTerms         = maxTerms;
+    mMaxDocFreqRatio  = maxDocFreqRatio;
+    mRefreshMs        = refreshMs;
+    mDocFreqs         = new BoundedLruCache<String, Long>(cacheSize, cacheSize, UNIT_WEIGHER, 
+                                                          refreshMs);
+  }
+
+  /**
+   * Keeps at most maxTerms of the rarest words, and drops words that are
+   * too frequent. At least one word is kept. The order of kept words
+   * doesn't change, empty words are dropped.
+   * 
+   * @param words   query words.
+   * 
+   * @return kept words.
+   */
+  public List<String> prune(List<String> words) throws SolrServerException {
+    ArrayList<String> nonEmpty = new ArrayList<String>(words.size());
+    for (String w : words) 
+      if (!w.isEmpty()) nonEmpty.add(w);
+    if (nonEmpty.size() <= 1) return nonEmpty;
+    if (mMaxDocFreqRatio >= 1 && nonEmpty.size() <= mMaxTerms) return nonEmpty;
+
+    final long[] docFreqs = getDocFreqs(nonEmpty);
+    long maxDocFreq = mMaxDocFreqRatio >= 1 ? Long.MAX_VALUE 
+                                            : (long) (mMaxDocFreqRatio * mDocQty);
+
+    // Word indices, the rarest words come first
+    Integer[] order = new Integer[nonEmpty.size()];
+    for (int i = 0; i < order.length; ++i) order[i] = i;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer i1, Integer i2) {
+        return docFreqs[i1] < docFreqs[i2] ? -1 : (docFreqs[i1] == docFreqs[i2] ? 0 : 1);
+      }
+    });
+
+    boolean[] keep = new boolean[order.length];
+    for (int k = 0; k < Math.min(mMaxTerms, order.length); ++k) {
+      if (k > 0 && docFreqs[order[k]] > maxDocFreq) break;
+      keep[order[k]] = true;
+    }
+
+    ArrayList<String> res = new ArrayList<String>(order.length);
+    for (int i = 0; i < order.length; ++i)
+      if (keep[i]) res.add(nonEmpty.get(i));
+    return res;
+  }
+
+  /*
+   * Retrieves missing frequencies (and the number of documents, 
+   * if it is too old) in a single request.
+   */
+  private long[] getDocFreqs(List<String> words) throws SolrServerException {
+    long[] res = new long[words.size()];
+    ArrayList<Integer> missing = new ArrayList<Integer>();
+    for (int i = 0; i < res.length; ++i) {
+      Long df = mDocFreqs.get(getKey(words.get(i)));
+      if (df != null) 
+        res[i] = df;
+      else
+        missing.add(i);
+    }
+    boolean docQtyExpired = System.currentTimeMillis() - mDocQtyTime >= mRefreshMs;
+    if (missing.isEmpty() && !docQtyExpired) return res;
+
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set(CommonParams.Q, "*:*");
+    params.set(CommonParams.ROWS, 0);
+    params.set(FacetParams.FACET, true);
+    for (int i : missing)
+      params.add(FacetParams.FACET_QUERY, getFacetQuery(words.get(i)));
+    QueryResponse rsp = mSolrServer.query(params, METHOD.POST);
+
+    mDocQty = rsp.getResults().getNumFound();
+    mDocQtyTime = System.currentTimeMillis();
+
+    Map<String, Integer> counts = rsp.getFacetQuery();
+    for (int i : missing) {
+      String w = words.get(i);
+      Integer df = counts != null ? counts.get(getFacetQuery(w)) : null;
+      if (df == null) throw new SolrServerException("No document frequency of '" + w + "'");
+      res[i] = df;
+      mDocFreqs.put(getKey(w), res[i]);
+    }
+    return res;
+  }
+
+  /*
+   * Words consist of letters, digits, and underscores, so they need no escaping;
+   * the field query parser analyzes them the same way the search field does.
+   */
+  private String getFacetQuery(String word) {
+    return "{!field f=" + mFieldName + "}" + word;
+  }
+
+  private static String getKey(String word) {
+    return word.toLowerCase();
+  }
+}
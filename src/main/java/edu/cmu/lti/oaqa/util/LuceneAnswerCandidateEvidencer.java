@@ -0,0 +1,252 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * <p>An in-process alternative to {@link SolrAnswerCandidateEvidencer}, which
+ * queries a Lucene index directly. It builds the Lucene query, which edismax
+ * builds for the Solr evidencer: a boolean query of non-stop words, where 
+ * the given percentage of words must match, plus a sloppy phrase of all words, 
+ * which boosts scores. Thus, scores are the same, given the same index and
+ * analyzer, but there's no query parsing and no response building.</p>
+ *
+ * <p>Hits are counted by a collector, which keeps only the top scores in
+ * a small primitive heap: no documents and no stored fields are loaded.
+ * The searcher can be shared, e.g., by evidencers with different parameters;
+ * the evidencer is thread-safe.</p>
+ */
+public class LuceneAnswerCandidateEvidencer {
+  private final IndexSearcher   mSearcher;
+  private final Analyzer        mAnalyzer;
+  private final String          mFieldName;
+  private final int             mMatchPct;
+  private final float           mSlopeCoeff;
+  private final int             mTopSearchResult;
+  private final float           mDiscountMult;
+  private final QueryTokenizer  mTokenizer;
+  private final ThreadLocal<StringBuilder> mQueryBuffer = new ThreadLocal<StringBuilder>() {
+    @Override
+    protected StringBuilder initialValue() {
+      return new StringBuilder();
+    }
+  };
+
+  /**
+   * @param searcher        A searcher, which can be shared.
+   * @param analyzer        The query analyzer of the search field, 
+   *                        see {@link #createDefaultAnalyzer()}.
+   * @param fieldName       Search field name.
+   * @param matchPct        Percentage of matching words, 
+   *                        use 100 to require all non-stop words to be present.
+   * @param slopeCoeff      Slope coefficient for phrase queries.
+   * @param topSearchResult Number of top results that participate in computation of the discounted score.
+   * @param discountMult    A multiplier that used to compute the discounted score.
+   */
+  public LuceneAnswerCandidateEvidencer(IndexSearcher searcher, Analyzer analyzer, 
+                                        String fieldName, int matchPct, float slopeCoeff, 
+                                        int topSearchResult, float discountMult) {
+    mSearcher         = searcher;
+    mAnalyzer         = analyzer;
+    mFieldName        = fieldName;
+    mMatchPct         = matchPct;
+    mSlopeCoeff       = slopeCoeff;
+    mTopSearchResult  = topSearchResult;
+    mDiscountMult     = discountMult;
+    mTokenizer        = new QueryTokenizer(SolrAnswerCandidateEvidencer.DEFAULT_STOP_WORDS);
+  }
+
+  /**
+   * Opens a searcher over an index directory, e.g., the data/index directory of a Solr core.
+   */
+  public static IndexSearcher openSearcher(String indexDir) throws IOException {
+    return new IndexSearcher(DirectoryReader.open(FSDirectory.open(new File(indexDir))));
+  }
+
+  /**
+   * @return an analyzer, which is the same as the standard tokenizer 
+   *         followed by the lower case filter (without stop words).
+   */
+  public static Analyzer createDefaultAnalyzer() {
+    return new StandardAnalyzer(Version.LUCENE_47, CharArraySet.EMPTY_SET);
+  }
+
+  public EvidencingResult scoreAssertion(String assertionText) throws IOException {
+    if (assertionText.isEmpty()) {
+      return new EvidencingResult(0f, 0f, 0);
+    }
+    Query query = createQuery(assertionText);
+    if (query == null) {
+      return new EvidencingResult(0f, 0f, 0);
+    }
+
+    DiscountedScoreCollector collector = new DiscountedScoreCollector(mTopSearchResult);
+    mSearcher.search(query, collector);
+
+    return new EvidencingResult(collector.getMaxScore(),
+                                collector.getDiscountedScore(mDiscountMult),
+                                collector.getHitQty());
+  }
+
+  /**
+   * Builds the query, which edismax builds for 
+   * {@link SolrAnswerCandidateEvidencer#formatQuery(String, int, float, String, int)}.
+   * 
+   * @return the query or null, if no word produces a term.
+   */
+  Query createQuery(String assertionText) throws IOException {
+    StringBuilder bagOfWords = mQueryBuffer.get();
+    bagOfWords.setLength(0);
+    int wordQty = mTokenizer.appendQueryWords(assertionText, bagOfWords);
+
+    // Words are separated by spaces, so analyzing them together gives the same terms
+    ArrayList<Term> terms = new ArrayList<Term>(wordQty);
+    TokenStream ts = mAnalyzer.tokenStream(mFieldName, bagOfWords.toString());
+    try {
+      CharTermAttribute termAttr = ts.addAttribute(CharTermAttribute.class);
+      ts.reset();
+      while (ts.incrementToken())
+        terms.add(new Term(mFieldName, termAttr.toString()));
+      ts.end();
+    } finally {
+      ts.close();
+    }
+    if (terms.isEmpty()) return null;
+    if (terms.size() == 1) return new TermQuery(terms.get(0));
+
+    BooleanQuery main = new BooleanQuery();
+    for (Term t : terms)
+      main.add(new TermQuery(t), BooleanClause.Occur.SHOULD);
+    // Percentages are rounded down, as in Solr
+    main.setMinimumNumberShouldMatch(terms.size() * mMatchPct / 100);
+
+    // The slop is computed from the number of words, as in the Solr evidencer
+    PhraseQuery phrase = new PhraseQuery();
+    for (Term t : terms)
+      phrase.add(t);
+    phrase.setSlop(Math.round(mSlopeCoeff * wordQty));
+
+    BooleanQuery query = new BooleanQuery(true);
+    query.add(main, BooleanClause.Occur.MUST);
+    query.add(phrase, BooleanClause.Occur.SHOULD);
+    return query;
+  }
+
+  /*
+   * Counts hits and keeps the top scores in a min-heap, documents don't matter.
+   */
+  static final class DiscountedScoreCollector extends Collector {
+    private final float[] mHeap;
+    private int           mSize = 0;
+    private long          mHitQty = 0;
+    private float         mMaxScore = Float.NEGATIVE_INFINITY;
+    private Scorer        mScorer;
+
+    DiscountedScoreCollector(int topQty) {
+      mHeap = new float[topQty];
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) {
+      mScorer = scorer;
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+      float score = mScorer.score();
+      ++mHitQty;
+      if (score > mMaxScore) mMaxScore = score;
+
+      if (mSize < mHeap.length) {
+        // Sift up
+        int i = mSize++;
+        while (i > 0) {
+          int parent = (i - 1) >>> 1;
+          if (mHeap[parent] <= score) break;
+          mHeap[i] = mHeap[parent];
+          i = parent;
+        }
+        mHeap[i] = score;
+      } else if (mSize > 0 && score > mHeap[0]) {
+        // Replace the smallest score and sift down
+        int i = 0;
+        while (true) {
+          int child = 2 * i + 1;
+          if (child >= mSize) break;
+          if (child + 1 < mSize && mHeap[child + 1] < mHeap[child]) ++child;
+          if (mHeap[child] >= score) break;
+          mHeap[i] = mHeap[child];
+          i = child;
+        }
+        mHeap[i] = score;
+      }
+    }
+
+    @Override
+    public void setNextReader(AtomicReaderContext context) {
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+      return true;
+    }
+
+    long getHitQty() {
+      return mHitQty;
+    }
+
+    float getMaxScore() {
+      return mHitQty > 0 ? mMaxScore : 0f;
+    }
+
+    /*
+     * Scores are discounted in the descending order.
+     */
+    float getDiscountedScore(float discountMult) {
+      Arrays.sort(mHeap, 0, mSize);
+
+      float discScore = 0f, discountCoeff = 1;
+      for (int i = mSize - 1; i >= 0; --i) {
+        discScore += mHeap[i] * discountCoeff;
+        discountCoeff *= discountMult;
+      }
+      return discScore;
+    }
+  }
+}
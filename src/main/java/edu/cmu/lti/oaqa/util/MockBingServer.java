@@ -0,0 +1,174 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>A local stand-in for the Bing Search API, which serves synthetic Atom feeds,
+ * so that {@link BingSearcher} can be load-tested without spending the API quota.
+ * Point the searcher to it with {@link BingSearcherUtil#setEndpoint(String)}
+ * or with the system property bing.endpoint.</p>
+ *
+ * <p>Response latencies are log-normal with the given median and shape
+ * (sigma 0 gives a constant latency); a fraction of requests fails with
+ * the status 503. A response has $top entries starting from $skip, the size of
+ * the payload is controlled by the length of descriptions.</p>
+ *
+ * <p>Usage: MockBingServer [&lt;port&gt; [&lt;median latency ms&gt; [&lt;sigma&gt; 
+ * [&lt;error rate&gt; [&lt;description length&gt;]]]]]</p>
+ */
+public class MockBingServer {
+  public static final int     DEFAULT_PORT          = 8089;
+  public static final String  PATH                  = "/Bing/SearchWeb/v1/Web";
+
+  private final HttpServer      mServer;
+  private final ExecutorService mExecutor;
+  private final long            mMedianLatencyMs;
+  private final double          mLatencySigma;
+  private final double          mErrorRate;
+  private final int             mDescLen;
+  private final Random          mRandom = new Random();
+  private final AtomicLong      mRequestQty = new AtomicLong();
+  private final AtomicLong      mErrorQty = new AtomicLong();
+
+  /**
+   * @param port            the port, 0 picks a free one.
+   * @param medianLatencyMs the median latency of a response.
+   * @param latencySigma    the shape of the log-normal latency distribution.
+   * @param errorRate       the fraction of requests, which fail.
+   * @param descLen         the length of result descriptions, 0 keeps the default length.
+   */
+  public MockBingServer(int port, long medianLatencyMs, double latencySigma,
+                        double errorRate, int descLen) throws IOException {
+    mMedianLatencyMs = medianLatencyMs;
+    mLatencySigma    = latencySigma;
+    mErrorRate       = errorRate;
+    mDescLen         = descLen;
+
+    // Only local clients are expected
+    mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+    mServer.createContext(PATH, new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          respond(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    // Requests sleep, so each of them needs a thread
+    final AtomicInteger threadQty = new AtomicInteger();
+    mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "MockBingServer-" + threadQty.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    mServer.setExecutor(mExecutor);
+  }
+
+  public void start() {
+    mServer.start();
+  }
+
+  public void stop() {
+    mServer.stop(0);
+    mExecutor.shutdownNow();
+  }
+
+  /**
+   * @return the endpoint URL to pass to {@link BingSearcherUtil#setEndpoint(String)}.
+   */
+  public String getEndpoint() {
+    return "http://127.0.0.1:" + mServer.getAddress().getPort() + PATH;
+  }
+
+  public long getRequestQty() {
+    return mRequestQty.get();
+  }
+
+  public long getErrorQty() {
+    return mErrorQty.get();
+  }
+
+  private void respond(HttpExchange exchange) throws IOException {
+    mRequestQty.incrementAndGet();
+
+    int top = 50, skip = 0;
+    String query = exchange.getRequestURI().getQuery();
+    if (query != null) {
+      for (String param : query.split("&")) {
+        if (param.startsWith("$top="))
+          top = Integer.parseInt(param.substring(5));
+        else if (param.startsWith("$skip="))
+          skip = Integer.parseInt(param.substring(6));
+      }
+    }
+
+    double gaussian, uniform;
+    synchronized (mRandom) {
+      gaussian = mRandom.nextGaussian();
+      uniform  = mRandom.nextDouble();
+    }
+    long latency = Math.round(mMedianLatencyMs * Math.exp(mLatencySigma * gaussian));
+    try {
+      Thread.sleep(latency);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+
+    if (uniform < mErrorRate) {
+      mErrorQty.incrementAndGet();
+      exchange.sendResponseHeaders(503, -1);
+      return;
+    }
+
+    byte[] body = BingFeedGenerator.createResponse(Math.min(top, BingSearcherUtil.MAX_PAGE_SIZE),
+                                                   skip, mDescLen).getBytes("utf-8");
+    exchange.getResponseHeaders().set("Content-Type", "application/atom+xml;charset=utf-8");
+    exchange.sendResponseHeaders(200, body.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+  public static void main(String[] args) throws Exception {
+    int     port      = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+    long    median    = args.length > 1 ? Long.parseLong(args[1]) : 200;
+    double  sigma     = args.length > 2 ? Double.parseDouble(args[2]) : 0.5;
+    double  errorRate = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+    int     descLen   = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+
+    final MockBingServer server = new MockBingServer(port, median, sigma, errorRate, descLen);
+    server.start();
+    System.out.println("Serving mock Bing results on " + server.getEndpoint());
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocList;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * <p>A Solr request handler, which scores many assertions in a single request,
+ * in the same way as {@link SolrAnswerCandidateEvidencer#scoreAssertion(String)}
+ * scores one: every assertion is an edismax query with the same mm/pf/ps parameters,
+ * the response has the top score, the discounted score, and the number of hits
+ * of every assertion. Thus, a single request replaces hundreds, and all queries
+ * use the same searcher.</p>
+ *
+ * <p>To deploy, put the project jar into the lib directory of the core and
+ * register the handler in solrconfig.xml:</p>
+ *
+ * <pre>
+ * &lt;requestHandler name="/evidence" class="edu.cmu.lti.oaqa.util.MultiAssertionEvidenceHandler"/&gt;
+ * </pre>
+ *
+ * <p>Parameters: df (the search field), rows (the number of top results, which
+ * contribute to the discounted score), mm (the percentage of matching words),
+ * slope, discount, and a list of assertions, which are bags of words,
+ * with their word counts. See
+ * {@link SolrAnswerCandidateEvidencer#scoreAssertionsOnServer(java.util.List)}.</p>
+ */
+public class MultiAssertionEvidenceHandler extends RequestHandlerBase {
+  public static final String PARAM_ASSERTION      = "assertion";
+  /** -1 marks an empty assertion, which gets zero scores. */
+  public static final String PARAM_WORD_QTY       = "wordQty";
+  public static final String PARAM_MATCH_PCT      = "mm";
+  public static final String PARAM_SLOPE          = "slope";
+  public static final String PARAM_DISCOUNT       = "discount";
+
+  public static final String RESPONSE_EVIDENCE    = "evidence";
+  public static final String RESPONSE_TOP_SCORE   = "topScore";
+  public static final String RESPONSE_DISC_SCORE  = "discScore";
+  public static final String RESPONSE_QTY         = "qty";
+
+  @Override
+  public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+    SolrParams params     = req.getParams();
+    String     fieldName  = params.required().get(CommonParams.DF);
+    int        topQty     = params.getInt(CommonParams.ROWS, 10);
+    int        matchPct   = params.getInt(PARAM_MATCH_PCT, 80);
+    float      slopeCoeff = params.getFloat(PARAM_SLOPE, 1.5f);
+    float      discount   = params.getFloat(PARAM_DISCOUNT, 0.5f);
+
+    String[] assertions = params.getParams(PARAM_ASSERTION);
+    String[] wordQtys   = params.getParams(PARAM_WORD_QTY);
+    if (assertions == null) assertions = new String[0];
+    if (wordQtys != null && wordQtys.length != assertions.length) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                              "The number of " + PARAM_WORD_QTY + " values differs from "
+                              + "the number of " + PARAM_ASSERTION + " values");
+    }
+
+    SolrIndexSearcher searcher = req.getSearcher();
+    ArrayList<NamedList<Object>> evidence = new ArrayList<NamedList<Object>>(assertions.length);
+    for (int i = 0; i < assertions.length; ++i) {
+      String bagOfWords = assertions[i].trim();
+      int wordQty = wordQtys != null ? Integer.parseInt(wordQtys[i])
+                                     : (bagOfWords.isEmpty() ? 0 : bagOfWords.split(" +").length);
+
+      float topScore = 0f, discScore = 0f;
+      long  qty = 0;
+      if (wordQty >= 0) {
+        String queryText = SolrAnswerCandidateEvidencer.formatQuery(fieldName, matchPct, slopeCoeff,
+                                                                    bagOfWords, wordQty);
+        Query query = QParser.getParser(queryText, null, req).getQuery();
+        DocList docs = searcher.getDocList(query, (List<Query>) null, null, 
+                                           0, topQty, SolrIndexSearcher.GET_SCORES);
+
+        float discountCoeff = 1;
+        DocIterator it = docs.iterator();
+        while (it.hasNext()) {
+          it.nextDoc();
+          discScore += it.score() * discountCoeff;
+          discountCoeff *= discount;
+        }
+        topScore = docs.maxScore();
+        qty = docs.matches();
+      }
+
+      NamedList<Object> res = new SimpleOrderedMap<Object>();
+      res.add(RESPONSE_TOP_SCORE, topScore);
+      res.add(RESPONSE_DISC_SCORE, discScore);
+      res.add(RESPONSE_QTY, qty);
+      evidence.add(res);
+    }
+    rsp.add(RESPONSE_EVIDENCE, evidence);
+  }
+
+  @Override
+  public String getDescription() {
+    return "Scores many answer-bearing assertions in one request";
+  }
+
+  @Override
+  public String getSource() {
+    return null;
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * <p>Splits assertion text into query words and drops stop words in a single
+ * pass: words are sequences of letters, digits, and underscores 
+ * (i.e., the complement of the regex class \W), stop words are matched ignoring
+ * the case. Stop words are kept in an open-addressing hash table of
+ * character arrays, so that looking up a word creates no objects.</p>
+ * 
+ * <p>Words are the same as words produced by splitting the text, where 
+ * \W is replaced with spaces, on runs of spaces. In particular, if the text
+ * starts with a non-word character, the first word is empty. The empty word 
+ * affects the phrase slop of evidencing queries, so it is kept.</p>
+ * 
+ * <p>The tokenizer is immutable and can be shared by threads.</p>
+ */
+public class QueryTokenizer {
+  private final char[][]  mTable;
+  private final int       mMask;
+
+  /**
+   * @param stopWords   stop words, the case doesn't matter.
+   */
+  public QueryTokenizer(String[] stopWords) {
+    int capacity = 16;
+    // The load factor is at most 0.5, so that probe sequences are short
+    while (capacity < 2 * stopWords.length) capacity <<= 1;
+    mTable = new char[capacity][];
+    mMask  = capacity - 1;
+
+    for (String w : stopWords) {
+      char[] word = w.toLowerCase().toCharArray();
+      int pos = hash(word) & mMask;
+      while (mTable[pos] != null && !Arrays.equals(mTable[pos], word))
+        pos = (pos + 1) & mMask;
+      mTable[pos] = word;
+    }
+  }
+
+  /**
+   * @return true if the characters from start (inclusive) to end (exclusive) 
+   *         are a stop word.
+   */
+  public boolean isStopWord(CharSequence text, int start, int end) {
+    int pos = hash(text, start, end) & mMask;
+    char[] word;
+    while ((word = mTable[pos]) != null) {
+      if (equal(word, text, start, end)) return true;
+      pos = (pos + 1) & mMask;
+    }
+    return false;
+  }
+
+  /**
+   * Appends non-stop words of the text to the buffer, words are separated by 
+   * single spaces.
+   * 
+   * @return the number of appended words (including the empty one).
+   */
+  public int appendQueryWords(CharSequence text, StringBuilder out) {
+    int len = text.length();
+    int qty = 0;
+    int i = 0;
+    
+    if (len == 0 || !isWordChar(text.charAt(0))) {
+      // The empty first word, it is dropped if the text has no words
+      while (i < len && !isWordChar(text.charAt(i))) ++i;
+      if (i == len && len > 0) return 0;
+      if (!isStopWord(text, 0, 0)) ++qty;
+    }
+    
+    while (i < len) {
+      int start = i;
+      while (i < len && isWordChar(text.charAt(i))) ++i;
+      if (!isStopWord(text, start, i)) {
+        if (qty > 0) out.append(' ');
+        out.append(text, start, i);
+        ++qty;
+      }
+      while (i < len && !isWordChar(text.charAt(i))) ++i;
+    }
+    return qty;
+  }
+
+  /**
+   * @return non-stop words of the text.
+   */
+  public ArrayList<String> getQueryWords(String text) {
+    ArrayList<String> res = new ArrayList<String>();
+    int len = text.length();
+    int i = 0;
+
+    if (len == 0 || !isWordChar(text.charAt(0))) {
+      while (i < len && !isWordChar(text.charAt(i))) ++i;
+      if (i == len && len > 0) return res;
+      if (!isStopWord(text, 0, 0)) res.add("");
+    }
+
+    while (i < len) {
+      int start = i;
+      while (i < len && isWordChar(text.charAt(i))) ++i;
+      if (!isStopWord(text, start, i)) res.add(text.substring(start, i));
+      while (i < len && !isWordChar(text.charAt(i))) ++i;
+    }
+    return res;
+  }
+
+  private static boolean isWordChar(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+  }
+
+  private static char toLower(char c) {
+    return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+  }
+
+  private static int hash(CharSequence text, int start, int end) {
+    int h = 0;
+    for (int i = start; i < end; ++i)
+      h = 31 * h + toLower(text.charAt(i));
+    return h ^ (h >>> 16);
+  }
+
+  private static int hash(char[] word) {
+    int h = 0;
+    for (char c : word)
+      h = 31 * h + c;
+    return h ^ (h >>> 16);
+  }
+
+  private static boolean equal(char[] word, CharSequence text, int start, int end) {
+    if (word.length != end - start) return false;
+    for (int i = 0; i < word.length; ++i) {
+      if (word[i] != toLower(text.charAt(start + i))) return false;
+    }
+    return true;
+  }
+}
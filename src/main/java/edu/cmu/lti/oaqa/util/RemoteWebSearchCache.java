@@ -0,0 +1,401 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p>A client of {@link WebSearchCacheServer}, which can be used wherever
+ * a local {@link WebSearchCache} is used. Thus, many processes and nodes
+ * can share one warm cache.</p>
+ *
+ * <p>Recently retrieved and saved entries are kept in a near cache (the memory
+ * tier of the parent class), where they expire after a short time, so that
+ * entries saved by other clients become visible soon. Use
+ * {@link #getCacheEntries(String, Collection)} and
+ * {@link #saveCacheEntries(String, Map)} to retrieve or save many entries
+ * in a single round trip. Saves are synchronous: when they return,
+ * the server has the entries.</p>
+ *
+ * <p>The client is thread-safe, connections are pooled. A get or a put, 
+ * which fails on a pooled connection (e.g., after a restart of the server), 
+ * is repeated once on a new connection. When the server
+ * is unreachable, the client behaves as an empty cache, i.e., results
+ * are retrieved from the search engine.</p>
+ */
+public class RemoteWebSearchCache extends WebSearchCache {
+  public static final int   DEFAULT_NEAR_CACHE_ENTRIES  = 2000;
+  public static final long  DEFAULT_NEAR_CACHE_BYTES    = 16L << 20;
+  public static final long  DEFAULT_NEAR_CACHE_TTL_MS   = 30000;
+
+  private static final int  CONNECT_TIMEOUT_MS          = 5000;
+  private static final int  READ_TIMEOUT_MS             = 60000;
+
+  private static class Connection {
+    final Socket            mSocket;
+    final DataInputStream   mIn;
+    final DataOutputStream  mOut;
+    /* A pooled connection can be stale, e.g., if the server was restarted */
+    boolean                 mPooled = false;
+
+    Connection(Socket socket) throws IOException {
+      mSocket = socket;
+      mIn  = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      mOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+  }
+
+  private final String                             mHost;
+  private final int                                mPort;
+  private final ConcurrentLinkedQueue<Connection>  mIdle = new ConcurrentLinkedQueue<Connection>();
+
+  public RemoteWebSearchCache(String host, int port) {
+    this(host, port, DEFAULT_NEAR_CACHE_ENTRIES, DEFAULT_NEAR_CACHE_BYTES,
+         DEFAULT_NEAR_CACHE_TTL_MS);
+  }
+
+  /**
+   * @param host              the server host.
+   * @param port              the server port.
+   * @param nearCacheEntries  the maximum number of entries kept locally.
+   * @param nearCacheBytes    the maximum estimated size of entries kept locally.
+   * @param nearCacheTtlMs    local entries expire this many milliseconds after they were added.
+   */
+  public RemoteWebSearchCache(String host, int port,
+                              int nearCacheEntries, long nearCacheBytes, long nearCacheTtlMs) {
+    super(host + ":" + port + "/", nearCacheEntries, nearCacheBytes, nearCacheTtlMs);
+    mHost = host;
+    mPort = port;
+  }
+
+  /**
+   * Retrieves all entries of the retrieval engine from the server.
+   * Unlike the parent class, the table is not kept in memory.
+   */
+  @Override
+  public Hashtable<String, ArrayList<SearchResult>> loadCache(String RetrievalEngine) {
+    final Hashtable<String, ArrayList<SearchResult>> table 
+        = new Hashtable<String, ArrayList<SearchResult>>();
+    try {
+      if (!forEachEntry(RetrievalEngine, new WebSearchCacheLog.RecordVisitor() {
+        public void visit(String key, byte[] value) throws IOException {
+          table.put(key, decodeEntry(value));
+        }
+      })) {
+        return null;
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+    return table;
+  }
+
+  /**
+   * Streams all entries of the retrieval engine from the server.
+   * 
+   * @return false if the server has no cache file of the engine.
+   */
+  @Override
+  public boolean forEachEntry(String RetrievalEngine, 
+                              WebSearchCacheLog.RecordVisitor visitor) throws IOException {
+    Connection conn = null;
+    try {
+      conn = borrow();
+      sendHeader(conn, WebSearchCacheServer.OP_LOAD, RetrievalEngine);
+      conn.mOut.flush();
+      try {
+        readStatus(conn);
+      } catch (ServerError e) {
+        release(conn);
+        System.err.println(e.getMessage());
+        return false;
+      }
+
+      String key;
+      while ((key = WebSearchCacheServer.readString(conn.mIn)) != null)
+        visitor.visit(key, WebSearchCacheServer.readBytes(conn.mIn));
+      release(conn);
+      return true;
+    } catch (IOException e) {
+      // Also if the visitor fails: the rest of the stream is not read
+      discard(conn);
+      throw e;
+    }
+  }
+
+  @Override
+  public ArrayList<SearchResult> getCacheEntry(String RetrievalEngine, String key) {
+    return getCacheEntries(RetrievalEngine, Collections.singletonList(key)).get(key);
+  }
+
+  /**
+   * Retrieves several entries, the ones missing in the near cache are
+   * retrieved from the server in a single round trip.
+   */
+  @Override
+  public Map<String, ArrayList<SearchResult>> getCacheEntries(String RetrievalEngine,
+                                                              Collection<String> keys) {
+    HashMap<String, ArrayList<SearchResult>> res = new HashMap<String, ArrayList<SearchResult>>();
+    LinkedHashSet<String> remoteKeys = new LinkedHashSet<String>();
+    for (String key : keys) {
+      ArrayList<SearchResult> entry = getMemoryTier().get(RetrievalEngine + '\t' + key);
+      if (entry != null)
+        res.put(key, entry);
+      else
+        remoteKeys.add(key);
+    }
+    if (remoteKeys.isEmpty()) return res;
+
+    // The server limits the number of keys in a request
+    ArrayList<String> keyList = new ArrayList<String>(remoteKeys);
+    for (int from = 0; from < keyList.size(); from += WebSearchCacheServer.MAX_BATCH_SIZE) {
+      int to = Math.min(keyList.size(), from + WebSearchCacheServer.MAX_BATCH_SIZE);
+      if (!get(RetrievalEngine, keyList.subList(from, to), res)) break;
+    }
+    return res;
+  }
+
+  /*
+   * Retrieves a batch of entries in a single round trip, found entries are added to res.
+   * 
+   * @return false if the request failed.
+   */
+  private boolean get(String RetrievalEngine, List<String> keys, 
+                      Map<String, ArrayList<SearchResult>> res) {
+    return get(RetrievalEngine, keys, res, false);
+  }
+
+  private boolean get(String RetrievalEngine, List<String> keys, 
+                      Map<String, ArrayList<SearchResult>> res, boolean fresh) {
+    Connection conn = null;
+    try {
+      conn = borrow(fresh);
+      sendHeader(conn, WebSearchCacheServer.OP_GET, RetrievalEngine);
+      conn.mOut.writeInt(keys.size());
+      for (String key : keys)
+        WebSearchCacheServer.writeString(conn.mOut, key);
+      conn.mOut.flush();
+      readStatus(conn);
+
+      for (String key : keys) {
+        byte[] value = WebSearchCacheServer.readBytes(conn.mIn);
+        if (value != null) {
+          ArrayList<SearchResult> entry = decodeEntry(value);
+          getMemoryTier().put(RetrievalEngine + '\t' + key, entry);
+          res.put(key, entry);
+        }
+      }
+      release(conn);
+      return true;
+    } catch (IOException e) {
+      discard(conn);
+      // A miss would make the caller query the search engine
+      if (isStale(conn, e)) return get(RetrievalEngine, keys, res, true);
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  /**
+   * Sends the entries, which are not cached by the server yet.
+   */
+  @Override
+  public void saveCache(Hashtable<String, ArrayList<SearchResult>> table,
+                        String RetrievalEngine) {
+    if (table == null) {
+      System.err.println("Save cache : Table is null");
+      return;
+    }
+    put(WebSearchCacheServer.OP_PUT_NEW, RetrievalEngine, table);
+  }
+
+  @Override
+  public void saveCacheEntry(String RetrievalEngine,
+                             String key, ArrayList<SearchResult> entry) {
+    put(WebSearchCacheServer.OP_PUT, RetrievalEngine,
+        Collections.singletonMap(key, entry));
+  }
+
+  @Override
+  public void saveCacheEntries(String RetrievalEngine,
+                               Map<String, ArrayList<SearchResult>> entries) {
+    put(WebSearchCacheServer.OP_PUT, RetrievalEngine, entries);
+  }
+
+  /**
+   * Waits until the server writes all entries saved so far.
+   */
+  @Override
+  public void flush() {
+    Connection conn = null;
+    try {
+      conn = borrow();
+      sendHeader(conn, WebSearchCacheServer.OP_FLUSH, "");
+      conn.mOut.flush();
+      readStatus(conn);
+      release(conn);
+    } catch (IOException e) {
+      discard(conn);
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Closes connections to the server, the server keeps running.
+   */
+  @Override
+  public void close() {
+    Connection conn;
+    while ((conn = mIdle.poll()) != null)
+      discard(conn);
+    getMemoryTier().clear();
+  }
+
+  private void put(int op, String RetrievalEngine, Map<String, ArrayList<SearchResult>> entries) {
+    // The server limits the number of keys in a request
+    ArrayList<Map.Entry<String, ArrayList<SearchResult>>> entryList 
+        = new ArrayList<Map.Entry<String, ArrayList<SearchResult>>>(entries.entrySet());
+    for (int from = 0; from < entryList.size(); from += WebSearchCacheServer.MAX_BATCH_SIZE) {
+      int to = Math.min(entryList.size(), from + WebSearchCacheServer.MAX_BATCH_SIZE);
+      if (!put(op, RetrievalEngine, entryList.subList(from, to))) return;
+    }
+  }
+
+  /*
+   * Sends a batch of entries in a single round trip.
+   * 
+   * @return false if the request failed.
+   */
+  private boolean put(int op, String RetrievalEngine, 
+                      List<Map.Entry<String, ArrayList<SearchResult>>> entries) {
+    return put(op, RetrievalEngine, entries, false);
+  }
+
+  private boolean put(int op, String RetrievalEngine, 
+                      List<Map.Entry<String, ArrayList<SearchResult>>> entries, boolean fresh) {
+    Connection conn = null;
+    try {
+      conn = borrow(fresh);
+      sendHeader(conn, op, RetrievalEngine);
+      conn.mOut.writeInt(entries.size());
+      for (Map.Entry<String, ArrayList<SearchResult>> e : entries) {
+        WebSearchCacheServer.writeString(conn.mOut, e.getKey());
+        WebSearchCacheServer.writeBytes(conn.mOut, encodeEntry(e.getValue()));
+      }
+      conn.mOut.flush();
+      readStatus(conn);
+      release(conn);
+    } catch (IOException e) {
+      discard(conn);
+      // Puts can be repeated safely
+      if (isStale(conn, e)) return put(op, RetrievalEngine, entries, true);
+      e.printStackTrace();
+      return false;
+    }
+    if (op == WebSearchCacheServer.OP_PUT) {
+      for (Map.Entry<String, ArrayList<SearchResult>> e : entries)
+        getMemoryTier().put(RetrievalEngine + '\t' + e.getKey(), e.getValue());
+    }
+    return true;
+  }
+
+  private static void sendHeader(Connection conn, int op, String RetrievalEngine)
+                                 throws IOException {
+    conn.mOut.writeByte(op);
+    WebSearchCacheServer.writeString(conn.mOut, RetrievalEngine);
+  }
+
+  /*
+   * The server reported an error, the connection is in sync.
+   */
+  private static class ServerError extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    ServerError(String message) {
+      super(message);
+    }
+  }
+
+  private static void readStatus(Connection conn) throws IOException {
+    int status = conn.mIn.readUnsignedByte();
+    if (status != WebSearchCacheServer.STATUS_OK) {
+      throw new ServerError("WebSearchCacheServer error: "
+                            + WebSearchCacheServer.readString(conn.mIn));
+    }
+  }
+
+  private Connection borrow() throws IOException {
+    return borrow(false);
+  }
+
+  /*
+   * @param fresh   if true, a new connection is opened, rather than a pooled one reused.
+   */
+  private Connection borrow(boolean fresh) throws IOException {
+    if (!fresh) {
+      Connection conn = mIdle.poll();
+      if (conn != null) return conn;
+    }
+
+    Socket socket = new Socket();
+    try {
+      socket.setTcpNoDelay(true);
+      socket.setSoTimeout(READ_TIMEOUT_MS);
+      socket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT_MS);
+      return new Connection(socket);
+    } catch (IOException e) {
+      WebSearchCacheServer.closeQuietly(socket);
+      throw e;
+    }
+  }
+
+  private void release(Connection conn) {
+    conn.mPooled = true;
+    mIdle.add(conn);
+  }
+
+  /*
+   * @return true if a pooled connection failed, the request is worth 
+   *         repeating on a new connection then.
+   */
+  private static boolean isStale(Connection conn, IOException e) {
+    return conn != null && conn.mPooled && !(e instanceof ServerError);
+  }
+
+  /*
+   * A connection that failed in the middle of a request is out of sync,
+   * so it can't be reused.
+   */
+  private static void discard(Connection conn) {
+    if (conn != null) WebSearchCacheServer.closeQuietly(conn.mSocket);
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.util.ArrayList;
+
+/**
+ * A search engine backend, which replays results recorded in a cache file
+ * by another engine, e.g., by {@link BingSearcher}. It never goes to the network,
+ * so experiments can be repeated offline. Queries that weren't recorded
+ * have no results.
+ */
+public class ReplaySearcher implements WebSearcher {
+  private final WebSearchCache  mRecordCache;
+  private final String          mRecordedEngineId;
+  private final String          mEngineId;
+  private final int             mResNum;
+
+  /**
+   * @param cachePath         the cache file with recorded results.
+   * @param recordedEngineId  the engine, whose results are replayed, e.g., "Bing".
+   * @param resNum            a maximum number of results to return.
+   */
+  public ReplaySearcher(String cachePath, String recordedEngineId, int resNum) {
+    this(new WebSearchCache(cachePath), recordedEngineId, resNum);
+  }
+
+  /**
+   * @param recordCache       the cache with recorded results.
+   * @param recordedEngineId  the engine, whose results are replayed, e.g., "Bing".
+   * @param resNum            a maximum number of results to return.
+   */
+  public ReplaySearcher(WebSearchCache recordCache, String recordedEngineId, int resNum) {
+    mRecordCache      = recordCache;
+    mRecordedEngineId = recordedEngineId;
+    mEngineId         = "Replay:" + recordedEngineId;
+    mResNum           = resNum;
+  }
+
+  public String getEngineId() {
+    return mEngineId;
+  }
+
+  public ArrayList<SearchResult> retrieveDocuments(String query) throws Exception {
+    SearchResultList resultL = new SearchResultList();
+    query = query.trim();
+    if (query.isEmpty()) return resultL;
+
+    // A recording, which is shallower than requested, is better than nothing
+    BingSearcherUtil.getPartialCachedResults(mRecordCache, resultL, query, mResNum,
+                                             mRecordedEngineId);
+    return resultL;
+  }
+
+  /**
+   * Replaying is fast, so the budget is ignored.
+   */
+  public ArrayList<SearchResult> retrieveDocuments(String query, long budgetMs) throws Exception {
+    return retrieveDocuments(query);
+  }
+}
@@ -0,0 +1,334 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * <p>Sends requests to several replicas of a core. A request goes to the better 
+ * of two randomly chosen replicas ("power of two choices"): the one, whose
+ * recent latency (an exponentially weighted moving average) multiplied
+ * by the number of outstanding requests plus one is smaller. Thus, slow
+ * and busy replicas get fewer requests, without the herding that
+ * always choosing the best replica causes.</p>
+ * 
+ * <p>A replica is ejected for a while, when several requests in a row fail,
+ * or when it is much slower than the fastest replica. A request that fails 
+ * because of a replica (e.g., a connection error or a server error) is retried 
+ * on other replicas. Therefore, the server is meant for queries, 
+ * not for updates.</p>
+ * 
+ * <p>Per-replica statistics are available from {@link #getReplicas()}.</p>
+ */
+public class ReplicaBalancingSolrServer extends SolrServer {
+  private static final long serialVersionUID = 1L;
+
+  public static final int   DEFAULT_FAILURE_THRESHOLD = 3;
+  public static final float DEFAULT_SLOW_FACTOR       = 5;
+  public static final long  DEFAULT_EJECT_MS          = 30000;
+
+  /** The weight of the latest latency in the moving average. */
+  private static final double EWMA_ALPHA  = 0.2;
+  /** A replica isn't considered slow before this number of requests. */
+  private static final int    MIN_SAMPLES = 10;
+
+  /**
+   * A replica and its statistics.
+   */
+  public static class Replica {
+    private final HttpSolrServer  mServer;
+    private final AtomicInteger   mOutstanding = new AtomicInteger();
+    private final AtomicLong      mRequestQty = new AtomicLong();
+    private final AtomicLong      mFailureQty = new AtomicLong();
+    private final AtomicLong      mEjectionQty = new AtomicLong();
+    /* Guarded by this */
+    private double                mLatencyMs = 0;
+    private int                   mSampleQty = 0;
+    private int                   mFailuresInRow = 0;
+    private volatile long         mEjectedUntil = 0;
+
+    Replica(HttpSolrServer server) {
+      mServer = server;
+    }
+
+    public String getUrl() {
+      return mServer.getBaseURL();
+    }
+
+    /**
+     * @return the number of requests routed to the replica.
+     */
+    public long getRequestQty() {
+      return mRequestQty.get();
+    }
+
+    public long getFailureQty() {
+      return mFailureQty.get();
+    }
+
+    public long getEjectionQty() {
+      return mEjectionQty.get();
+    }
+
+    public int getOutstandingQty() {
+      return mOutstanding.get();
+    }
+
+    /**
+     * @return the moving average of the latency in milliseconds.
+     */
+    public synchronized double getLatencyMs() {
+      return mLatencyMs;
+    }
+
+    public boolean isEjected() {
+      return isEjected(System.currentTimeMillis());
+    }
+
+    boolean isEjected(long now) {
+      return now < mEjectedUntil;
+    }
+
+    synchronized double getCost() {
+      return mLatencyMs * (mOutstanding.get() + 1);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s requests: %d failures: %d ejections: %d outstanding: %d " 
+                           + "latency: %.1f ms%s", getUrl(), getRequestQty(), getFailureQty(), 
+                           getEjectionQty(), getOutstandingQty(), getLatencyMs(), 
+                           isEjected() ? " (ejected)" : "");
+    }
+  }
+
+  private final ArrayList<Replica>  mReplicas = new ArrayList<Replica>();
+  private final HttpClient          mHttpClient;
+  private final int                 mFailureThreshold;
+  private final float               mSlowFactor;
+  private final long                mEjectMs;
+  private final Random              mRandom = new Random();
+
+  /**
+   * @param urls        URLs of replicas (including the core name).
+   * @param httpClient  the client, which is shared by replicas.
+   */
+  public ReplicaBalancingSolrServer(List<String> urls, HttpClient httpClient) {
+    this(urls, httpClient, DEFAULT_FAILURE_THRESHOLD, DEFAULT_SLOW_FACTOR, DEFAULT_EJECT_MS);
+  }
+
+  /**
+   * @param urls              URLs of replicas (including the core name).
+   * @param httpClient        the client, which is shared by replicas.
+   * @param failureThreshold  a replica is ejected after this many failed requests in a row.
+   * @param slowFactor        a replica is ejected, when its latency is this many times
+   *                          larger than the latency of the fastest replica.
+   * @param ejectMs           for how long a replica is ejected.
+   */
+  public ReplicaBalancingSolrServer(List<String> urls, HttpClient httpClient,
+                                    int failureThreshold, float slowFactor, long ejectMs) {
+    if (urls.isEmpty()) throw new IllegalArgumentException("No replica URLs");
+    for (String url : urls)
+      mReplicas.add(new Replica(new HttpSolrServer(url, httpClient)));
+    mHttpClient       = httpClient;
+    mFailureThreshold = failureThreshold;
+    mSlowFactor       = slowFactor;
+    mEjectMs          = ejectMs;
+  }
+
+  public List<Replica> getReplicas() {
+    return Collections.unmodifiableList(mReplicas);
+  }
+
+  /*
+   * The first replica, requests, which must see the same index each time, 
+   * e.g., index version checks, are sent to it.
+   */
+  HttpSolrServer getFirstServer() {
+    return mReplicas.get(0).mServer;
+  }
+
+  @Override
+  public NamedList<Object> request(SolrRequest request) throws SolrServerException, IOException {
+    boolean[] tried = new boolean[mReplicas.size()];
+    Exception lastError = null;
+
+    for (int attempt = 0; attempt < tried.length; ++attempt) {
+      Replica replica = choose(tried);
+      replica.mRequestQty.incrementAndGet();
+      replica.mOutstanding.incrementAndGet();
+      long start = System.nanoTime();
+      try {
+        NamedList<Object> res = replica.mServer.request(request);
+        onSuccess(replica, (System.nanoTime() - start) / 1e6);
+        return res;
+      } catch (SolrServerException e) {
+        lastError = e;
+      } catch (IOException e) {
+        lastError = e;
+      } catch (RuntimeException e) {
+        // Bad requests would fail on any replica, other errors, 
+        // e.g., unparsable responses, are failures of the replica
+        if (e instanceof SolrException && ((SolrException) e).code() < 500) throw e;
+        lastError = e;
+      } finally {
+        replica.mOutstanding.decrementAndGet();
+      }
+      onFailure(replica);
+    }
+    throw new SolrServerException("All replicas failed, the last error: " + lastError, lastError);
+  }
+
+  /**
+   * Shuts down replicas, the client is not closed.
+   */
+  @Override
+  public void shutdown() {
+    for (Replica r : mReplicas)
+      r.mServer.shutdown();
+  }
+
+  /**
+   * Shuts down replicas and closes the shared client.
+   */
+  public void close() throws IOException {
+    shutdown();
+    closeClient(mHttpClient);
+  }
+
+  /*
+   * Clients of HttpClientUtil are closeable, connections of other 
+   * clients are closed by shutting down their connection manager.
+   */
+  @SuppressWarnings("deprecation")
+  static void closeClient(HttpClient httpClient) throws IOException {
+    if (httpClient instanceof CloseableHttpClient)
+      ((CloseableHttpClient) httpClient).close();
+    else
+      httpClient.getConnectionManager().shutdown();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (Replica r : mReplicas)
+      sb.append(r).append('\n');
+    return sb.toString();
+  }
+
+  /*
+   * The better of two random replicas that are neither ejected nor tried yet. 
+   * If all replicas are ejected, the one that returns first is chosen.
+   */
+  private Replica choose(boolean[] tried) {
+    long now = System.currentTimeMillis();
+    int[] candidates = new int[tried.length];
+    int qty = 0;
+    for (int i = 0; i < tried.length; ++i)
+      if (!tried[i] && !mReplicas.get(i).isEjected(now)) candidates[qty++] = i;
+
+    int best;
+    if (qty == 0) {
+      best = -1;
+      for (int i = 0; i < tried.length; ++i) {
+        if (!tried[i] && (best < 0 || 
+                          mReplicas.get(i).mEjectedUntil < mReplicas.get(best).mEjectedUntil))
+          best = i;
+      }
+    } else if (qty == 1) {
+      best = candidates[0];
+    } else {
+      int k1, k2;
+      synchronized (mRandom) {
+        k1 = mRandom.nextInt(qty);
+        k2 = mRandom.nextInt(qty - 1);
+      }
+      if (k2 >= k1) ++k2;
+      int i1 = candidates[k1], i2 = candidates[k2];
+      best = mReplicas.get(i1).getCost() <= mReplicas.get(i2).getCost() ? i1 : i2;
+    }
+    tried[best] = true;
+    return mReplicas.get(best);
+  }
+
+  private void onSuccess(Replica replica, double latencyMs) {
+    double avgLatencyMs;
+    int sampleQty;
+    synchronized (replica) {
+      replica.mFailuresInRow = 0;
+      replica.mLatencyMs = replica.mSampleQty == 0 ? latencyMs 
+                           : EWMA_ALPHA * latencyMs + (1 - EWMA_ALPHA) * replica.mLatencyMs;
+      avgLatencyMs = replica.mLatencyMs;
+      sampleQty = ++replica.mSampleQty;
+    }
+    // Other replicas are locked only after the lock of this one is released
+    if (sampleQty >= MIN_SAMPLES && avgLatencyMs > mSlowFactor * getMinLatencyMs(replica)) 
+      eject(replica);
+  }
+
+  private void onFailure(Replica replica) {
+    replica.mFailureQty.incrementAndGet();
+    boolean eject;
+    synchronized (replica) {
+      eject = ++replica.mFailuresInRow >= mFailureThreshold;
+    }
+    if (eject) eject(replica);
+  }
+
+  /*
+   * The smallest latency of other available replicas, 
+   * or infinity, if there are no such replicas.
+   */
+  private double getMinLatencyMs(Replica replica) {
+    long now = System.currentTimeMillis();
+    double res = Double.POSITIVE_INFINITY;
+    for (Replica r : mReplicas) {
+      if (r == replica || r.isEjected(now)) continue;
+      synchronized (r) {
+        if (r.mSampleQty >= MIN_SAMPLES) res = Math.min(res, r.mLatencyMs);
+      }
+    }
+    return res;
+  }
+
+  private void eject(Replica replica) {
+    synchronized (replica) {
+      if (replica.isEjected()) return;
+      replica.mEjectedUntil = System.currentTimeMillis() + mEjectMs;
+      // When the replica returns, it is measured anew 
+      replica.mLatencyMs = 0;
+      replica.mSampleQty = 0;
+      replica.mFailuresInRow = 0;
+    }
+    replica.mEjectionQty.incrementAndGet();
+    System.err.println("Replica " + replica.getUrl() + " is ejected for " + mEjectMs + " ms");
+  }
+}
@@ -0,0 +1,397 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <p>Search results stored column-wise: scores, normalized scores, and hit 
+ * positions are kept in primitive arrays, while answers, queries, 
+ * document and cache IDs are indices in a string table, which can be shared 
+ * by batches. Thus, ranking doesn't touch result objects, and repeated strings 
+ * (e.g., queries) are stored once.</p>
+ * 
+ * <p>Results are ranked by scores in descending order, ties are broken
+ * by positions in the batch. {@link #selectTopK(int)} keeps the top results
+ * using a heap, i.e., without sorting all results, and {@link #merge(List, int)} 
+ * merges ranked batches.</p>
+ * 
+ * <p>Batches and string tables are not thread-safe.</p>
+ */
+public class SearchResultBatch {
+  /** The string index of null. */
+  public static final int NO_STRING = -1;
+
+  /**
+   * Strings and their indices.
+   */
+  public static class StringTable {
+    private final ArrayList<String>         mStrings = new ArrayList<String>();
+    private final HashMap<String, Integer>  mIds = new HashMap<String, Integer>();
+
+    /**
+     * @return the index of the string, which is added, if it's new.
+     */
+    public int intern(String s) {
+      if (s == null) return NO_STRING;
+      Integer id = mIds.get(s);
+      if (id == null) {
+        id = mStrings.size();
+        mStrings.add(s);
+        mIds.put(s, id);
+      }
+      return id;
+    }
+
+    public String get(int id) {
+      return id == NO_STRING ? null : mStrings.get(id);
+    }
+
+    public int size() {
+      return mStrings.size();
+    }
+  }
+
+  private static final int DEFAULT_CAPACITY = 16;
+
+  private final StringTable mTable;
+  private int               mSize = 0;
+  private float[]           mScores;
+  private float[]           mNormScores;
+  private int[]             mHitPos;
+  private int[]             mAnswerIds;
+  private int[]             mQueryIds;
+  private int[]             mDocIds;
+  private int[]             mCacheIds;
+
+  public SearchResultBatch() {
+    this(new StringTable(), DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param table     the string table, which can be shared with other batches.
+   * @param capacity  the initial capacity.
+   */
+  public SearchResultBatch(StringTable table, int capacity) {
+    mTable      = table;
+    capacity    = Math.max(capacity, 1);
+    mScores     = new float[capacity];
+    mNormScores = new float[capacity];
+    mHitPos     = new int[capacity];
+    mAnswerIds  = new int[capacity];
+    mQueryIds   = new int[capacity];
+    mDocIds     = new int[capacity];
+    mCacheIds   = new int[capacity];
+  }
+
+  /**
+   * Converts a list of results.
+   * 
+   * @param results   the results.
+   * @param table     the string table.
+   */
+  public static SearchResultBatch fromList(List<SearchResult> results, StringTable table) {
+    SearchResultBatch batch = new SearchResultBatch(table, results.size());
+    for (SearchResult r : results)
+      batch.add(r);
+    return batch;
+  }
+
+  public static SearchResultBatch fromList(List<SearchResult> results) {
+    return fromList(results, new StringTable());
+  }
+
+  /**
+   * @return results in the order of the batch.
+   */
+  public ArrayList<SearchResult> toList() {
+    ArrayList<SearchResult> res = new ArrayList<SearchResult>(mSize);
+    for (int i = 0; i < mSize; ++i)
+      res.add(get(i));
+    return res;
+  }
+
+  public StringTable getStringTable() {
+    return mTable;
+  }
+
+  public int size() {
+    return mSize;
+  }
+
+  /**
+   * @return the position of the added result.
+   */
+  public int add(SearchResult r) {
+    return add(r.getAnswer(), r.getQuery(), r.getDocID(), r.getCacheID(), 
+               r.getScore(), r.getNormScore(), r.getHitPos());
+  }
+
+  /**
+   * @return the position of the added result.
+   */
+  public int add(String answer, String query, String docID, String cacheID,
+                 float score, float normScore, int hitPos) {
+    return add(mTable.intern(answer), mTable.intern(query), mTable.intern(docID), 
+               mTable.intern(cacheID), score, normScore, hitPos);
+  }
+
+  /**
+   * @return a result object with the data of the i-th result.
+   */
+  public SearchResult get(int i) {
+    SearchResult r = new SearchResult(getAnswer(i), getQuery(i), getDocID(i), getHitPos(i));
+    r.setScore(mScores[i]);
+    r.setNormScore(mNormScores[i]);
+    r.setCacheID(getCacheID(i));
+    return r;
+  }
+
+  public float getScore(int i) {
+    return mScores[i];
+  }
+
+  public void setScore(int i, float score) {
+    mScores[i] = score;
+  }
+
+  public float getNormScore(int i) {
+    return mNormScores[i];
+  }
+
+  public void setNormScore(int i, float normScore) {
+    mNormScores[i] = normScore;
+  }
+
+  public int getHitPos(int i) {
+    return mHitPos[i];
+  }
+
+  public String getAnswer(int i) {
+    return mTable.get(mAnswerIds[i]);
+  }
+
+  public String getQuery(int i) {
+    return mTable.get(mQueryIds[i]);
+  }
+
+  public String getDocID(int i) {
+    return mTable.get(mDocIds[i]);
+  }
+
+  public String getCacheID(int i) {
+    return mTable.get(mCacheIds[i]);
+  }
+
+  /**
+   * @return a copy, which shares the string table.
+   */
+  public SearchResultBatch copy() {
+    SearchResultBatch res = new SearchResultBatch(mTable, mSize);
+    res.mSize = mSize;
+    System.arraycopy(mScores, 0, res.mScores, 0, mSize);
+    System.arraycopy(mNormScores, 0, res.mNormScores, 0, mSize);
+    System.arraycopy(mHitPos, 0, res.mHitPos, 0, mSize);
+    System.arraycopy(mAnswerIds, 0, res.mAnswerIds, 0, mSize);
+    System.arraycopy(mQueryIds, 0, res.mQueryIds, 0, mSize);
+    System.arraycopy(mDocIds, 0, res.mDocIds, 0, mSize);
+    System.arraycopy(mCacheIds, 0, res.mCacheIds, 0, mSize);
+    return res;
+  }
+
+  /**
+   * Keeps k results with the largest scores, which are ordered by scores 
+   * in descending order. It takes O(n log k) time, where n is the size 
+   * of the batch; k equal to the size sorts the batch.
+   */
+  public void selectTopK(int k) {
+    k = Math.min(k, mSize);
+    if (k <= 0) {
+      mSize = 0;
+      return;
+    }
+    // A min-heap of the k best results, the worst one is the root
+    int[] heap = new int[k];
+    int heapSize = 0;
+    for (int i = 0; i < mSize; ++i) {
+      if (heapSize < k) {
+        heap[heapSize] = i;
+        siftUp(heap, heapSize++);
+      } else if (isBetter(i, heap[0])) {
+        heap[0] = i;
+        siftDown(heap, heapSize, 0);
+      }
+    }
+    // Removing the worst result puts it right after the heap, 
+    // so the array ends up ordered from the best to the worst
+    while (heapSize > 1) {
+      int worst = heap[0];
+      heap[0] = heap[--heapSize];
+      heap[heapSize] = worst;
+      siftDown(heap, heapSize, 0);
+    }
+    permute(heap);
+  }
+
+  /**
+   * Merges batches, each of which must be ranked (e.g., by {@link #selectTopK(int)}).
+   * The result uses the string table of the first batch.
+   * 
+   * @param batches   ranked batches.
+   * @param k         the maximum number of merged results.
+   * 
+   * @return top k results of all batches, ranked by scores; ties are broken
+   *         by the order of batches, and then by positions in the batch.
+   */
+  public static SearchResultBatch merge(List<SearchResultBatch> batches, int k) {
+    StringTable table = batches.isEmpty() ? new StringTable() : batches.get(0).mTable;
+    int total = 0;
+    for (SearchResultBatch b : batches) total += b.mSize;
+    SearchResultBatch res = new SearchResultBatch(table, Math.min(k, total));
+
+    // A max-heap of batch indices, ordered by current results of batches
+    int[] pos = new int[batches.size()];
+    int[] heap = new int[batches.size()];
+    int heapSize = 0;
+    for (int b = 0; b < batches.size(); ++b) {
+      if (batches.get(b).mSize == 0) continue;
+      heap[heapSize] = b;
+      int i = heapSize++;
+      while (i > 0 && isBetterHead(batches, pos, heap[i], heap[(i - 1) / 2])) {
+        swap(heap, i, (i - 1) / 2);
+        i = (i - 1) / 2;
+      }
+    }
+
+    while (heapSize > 0 && res.mSize < k) {
+      int b = heap[0];
+      res.addFrom(batches.get(b), pos[b]++);
+      if (pos[b] == batches.get(b).mSize) heap[0] = heap[--heapSize];
+      // Sift down the root
+      int i = 0;
+      while (true) {
+        int best = i, l = 2 * i + 1, r = l + 1;
+        if (l < heapSize && isBetterHead(batches, pos, heap[l], heap[best])) best = l;
+        if (r < heapSize && isBetterHead(batches, pos, heap[r], heap[best])) best = r;
+        if (best == i) break;
+        swap(heap, i, best);
+        i = best;
+      }
+    }
+    return res;
+  }
+
+  private int add(int answerId, int queryId, int docId, int cacheId,
+                  float score, float normScore, int hitPos) {
+    if (mSize == mScores.length) grow();
+    mAnswerIds[mSize]   = answerId;
+    mQueryIds[mSize]    = queryId;
+    mDocIds[mSize]      = docId;
+    mCacheIds[mSize]    = cacheId;
+    mScores[mSize]      = score;
+    mNormScores[mSize]  = normScore;
+    mHitPos[mSize]      = hitPos;
+    return mSize++;
+  }
+
+  /*
+   * Strings are copied by index, if the batches share the table.
+   */
+  private void addFrom(SearchResultBatch src, int i) {
+    if (src.mTable == mTable) {
+      add(src.mAnswerIds[i], src.mQueryIds[i], src.mDocIds[i], src.mCacheIds[i],
+          src.mScores[i], src.mNormScores[i], src.mHitPos[i]);
+    } else {
+      add(src.getAnswer(i), src.getQuery(i), src.getDocID(i), src.getCacheID(i),
+          src.mScores[i], src.mNormScores[i], src.mHitPos[i]);
+    }
+  }
+
+  private void grow() {
+    int capacity = 2 * mScores.length;
+    mScores     = Arrays.copyOf(mScores, capacity);
+    mNormScores = Arrays.copyOf(mNormScores, capacity);
+    mHitPos     = Arrays.copyOf(mHitPos, capacity);
+    mAnswerIds  = Arrays.copyOf(mAnswerIds, capacity);
+    mQueryIds   = Arrays.copyOf(mQueryIds, capacity);
+    mDocIds     = Arrays.copyOf(mDocIds, capacity);
+    mCacheIds   = Arrays.copyOf(mCacheIds, capacity);
+  }
+
+  /*
+   * Keeps the results in the given order.
+   */
+  private void permute(int[] order) {
+    float[] scores = new float[order.length], normScores = new float[order.length];
+    int[] hitPos = new int[order.length], answerIds = new int[order.length], 
+          queryIds = new int[order.length], docIds = new int[order.length],
+          cacheIds = new int[order.length];
+    for (int k = 0; k < order.length; ++k) {
+      int i = order[k];
+      scores[k]     = mScores[i];
+      normScores[k] = mNormScores[i];
+      hitPos[k]     = mHitPos[i];
+      answerIds[k]  = mAnswerIds[i];
+      queryIds[k]   = mQueryIds[i];
+      docIds[k]     = mDocIds[i];
+      cacheIds[k]   = mCacheIds[i];
+    }
+    System.arraycopy(scores, 0, mScores, 0, order.length);
+    System.arraycopy(normScores, 0, mNormScores, 0, order.length);
+    System.arraycopy(hitPos, 0, mHitPos, 0, order.length);
+    System.arraycopy(answerIds, 0, mAnswerIds, 0, order.length);
+    System.arraycopy(queryIds, 0, mQueryIds, 0, order.length);
+    System.arraycopy(docIds, 0, mDocIds, 0, order.length);
+    System.arraycopy(cacheIds, 0, mCacheIds, 0, order.length);
+    mSize = order.length;
+  }
+
+  private boolean isBetter(int i, int j) {
+    return mScores[i] > mScores[j] || (mScores[i] == mScores[j] && i < j);
+  }
+
+  private void siftUp(int[] heap, int i) {
+    while (i > 0 && isBetter(heap[(i - 1) / 2], heap[i])) {
+      swap(heap, i, (i - 1) / 2);
+      i = (i - 1) / 2;
+    }
+  }
+
+  private void siftDown(int[] heap, int heapSize, int i) {
+    while (true) {
+      int worst = i, l = 2 * i + 1, r = l + 1;
+      if (l < heapSize && isBetter(heap[worst], heap[l])) worst = l;
+      if (r < heapSize && isBetter(heap[worst], heap[r])) worst = r;
+      if (worst == i) return;
+      swap(heap, i, worst);
+      i = worst;
+    }
+  }
+
+  private static boolean isBetterHead(List<SearchResultBatch> batches, int[] pos, int b1, int b2) {
+    float s1 = batches.get(b1).mScores[pos[b1]], s2 = batches.get(b2).mScores[pos[b2]];
+    return s1 > s2 || (s1 == s2 && b1 < b2);
+  }
+
+  private static void swap(int[] a, int i, int j) {
+    int t = a[i];
+    a[i] = a[j];
+    a[j] = t;
+  }
+}
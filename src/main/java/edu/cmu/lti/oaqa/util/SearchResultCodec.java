@@ -0,0 +1,321 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>A compact binary encoding of <code>SearchResult</code> lists.</p>
+ *
+ * <p>The encoding starts with the format version and flags. If all results
+ * were obtained with the same query (which is the usual case), the query is
+ * written once per list. Strings are stored in UTF-8 prefixed by their length,
+ * hit positions and lengths are written as variable-length integers, and
+ * scores are stored as raw floats. Large lists are deflated. The search depth
+ * of a {@link SearchResultList} is preserved.</p>
+ *
+ * <p>Java serialization of the same data repeats class descriptions and
+ * queries, and is much slower to read and write.</p>
+ */
+public class SearchResultCodec {
+  private static final byte    VERSION          = 1;
+
+  private static final int     FLAG_DEFLATED    = 1;
+  private static final int     FLAG_SAME_QUERY  = 2;
+  private static final int     FLAG_DEPTH       = 4;
+
+  private static final int     HAS_ANSWER       = 1;
+  private static final int     HAS_QUERY        = 2;
+  private static final int     HAS_DOC_ID       = 4;
+  private static final int     HAS_CACHE_ID     = 8;
+
+  /** Lists with shorter encodings are not compressed. */
+  private static final int     MIN_DEFLATE_SIZE = 512;
+
+  private static final Charset UTF8             = Charset.forName("UTF-8");
+
+  /**
+   * Encodes results, compressing them if this saves space.
+   */
+  public static byte[] encode(List<SearchResult> results) {
+    return encode(results, true);
+  }
+
+  /**
+   * Encodes results.
+   *
+   * @param results   results to encode.
+   * @param compress  if true, try to deflate the encoding.
+   */
+  public static byte[] encode(List<SearchResult> results, boolean compress) {
+    String  query = results.isEmpty() ? null : results.get(0).getQuery();
+    boolean sameQuery = true;
+    for (SearchResult r : results) {
+      if (!equal(query, r.getQuery())) {
+        sameQuery = false;
+        break;
+      }
+    }
+
+    int depth = results instanceof SearchResultList ? ((SearchResultList) results).getDepth() : 0;
+
+    Writer body = new Writer(64 + 256 * results.size());
+    body.writeVarInt(results.size());
+    if (depth > 0) body.writeVarInt(depth);
+    if (sameQuery) body.writeString(query);
+
+    for (SearchResult r : results) {
+      int fields = (r.getAnswer()  != null ? HAS_ANSWER : 0) |
+                   (!sameQuery && r.getQuery() != null ? HAS_QUERY : 0) |
+                   (r.getDocID()   != null ? HAS_DOC_ID : 0) |
+                   (r.getCacheID() != null ? HAS_CACHE_ID : 0);
+      body.writeByte(fields);
+      if (r.getAnswer() != null) body.writeString(r.getAnswer());
+      body.writeFloat(r.getScore());
+      body.writeFloat(r.getNormScore());
+      // Hit positions start from -1
+      body.writeVarInt(r.getHitPos() + 1);
+      if ((fields & HAS_QUERY) != 0)    body.writeString(r.getQuery());
+      if ((fields & HAS_DOC_ID) != 0)   body.writeString(r.getDocID());
+      if ((fields & HAS_CACHE_ID) != 0) body.writeString(r.getCacheID());
+    }
+
+    int flags = (sameQuery ? FLAG_SAME_QUERY : 0) | (depth > 0 ? FLAG_DEPTH : 0);
+
+    if (compress && body.size() >= MIN_DEFLATE_SIZE) {
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      deflater.setInput(body.buffer(), 0, body.size());
+      deflater.finish();
+
+      Writer res = new Writer(body.size());
+      res.writeByte(VERSION);
+      res.writeByte(flags | FLAG_DEFLATED);
+      res.writeVarInt(body.size());
+      byte[] chunk = new byte[4096];
+      while (!deflater.finished()) {
+        int qty = deflater.deflate(chunk);
+        res.write(chunk, 0, qty);
+      }
+      deflater.end();
+
+      if (res.size() < body.size() + 2) return res.toByteArray();
+    }
+
+    Writer res = new Writer(body.size() + 2);
+    res.writeByte(VERSION);
+    res.writeByte(flags);
+    res.write(body.buffer(), 0, body.size());
+    return res.toByteArray();
+  }
+
+  public static SearchResultList decode(byte[] data) throws IOException {
+    return decode(data, 0, data.length);
+  }
+
+  /**
+   * Decodes results, the depth of the returned list is 0, if it wasn't recorded.
+   *
+   * @param data    a buffer.
+   * @param offset  the start of the encoding in the buffer.
+   * @param len     the length of the encoding.
+   *
+   * @throws IOException if the data is damaged or has an unsupported version.
+   */
+  public static SearchResultList decode(byte[] data, int offset, int len)
+                                               throws IOException {
+    Reader in = new Reader(data, offset, offset + len);
+    int version = in.readByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported search result encoding version: " + version);
+    }
+    int flags = in.readByte();
+
+    if ((flags & FLAG_DEFLATED) != 0) {
+      byte[] body = new byte[in.readVarInt()];
+      Inflater inflater = new Inflater();
+      inflater.setInput(data, in.pos, offset + len - in.pos);
+      try {
+        if (inflater.inflate(body) != body.length) {
+          throw new IOException("Truncated search result encoding");
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("Damaged search result encoding: " + e);
+      } finally {
+        inflater.end();
+      }
+      in = new Reader(body, 0, body.length);
+    }
+
+    int qty = in.readVarInt();
+    SearchResultList results = new SearchResultList(qty);
+    if ((flags & FLAG_DEPTH) != 0) results.setDepth(in.readVarInt());
+    boolean sameQuery = (flags & FLAG_SAME_QUERY) != 0;
+    String query = sameQuery ? in.readString() : null;
+
+    for (int i = 0; i < qty; ++i) {
+      int     fields    = in.readByte();
+      String  answer    = (fields & HAS_ANSWER) != 0 ? in.readString() : null;
+      float   score     = in.readFloat();
+      float   normScore = in.readFloat();
+      int     hitPos    = in.readVarInt() - 1;
+      String  resQuery  = (fields & HAS_QUERY) != 0 ? in.readString() : query;
+      String  docID     = (fields & HAS_DOC_ID) != 0 ? in.readString() : null;
+      String  cacheID   = (fields & HAS_CACHE_ID) != 0 ? in.readString() : null;
+
+      SearchResult r = new SearchResult(answer, resQuery, docID, hitPos);
+      r.setScore(score);
+      r.setNormScore(normScore);
+      r.setCacheID(cacheID);
+      results.add(r);
+    }
+
+    return results;
+  }
+
+  private static boolean equal(String s1, String s2) {
+    return s1 == null ? s2 == null : s1.equals(s2);
+  }
+
+  /*
+   * A growable buffer, which, unlike ByteArrayOutputStream,
+   * gives access to its contents without copying.
+   */
+  private static class Writer {
+    private byte[] mBuf;
+    private int    mSize = 0;
+
+    Writer(int capacity) {
+      mBuf = new byte[Math.max(16, capacity)];
+    }
+
+    int size() {
+      return mSize;
+    }
+
+    byte[] buffer() {
+      return mBuf;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(mBuf, mSize);
+    }
+
+    void writeByte(int b) {
+      ensure(1);
+      mBuf[mSize++] = (byte) b;
+    }
+
+    void write(byte[] b, int off, int len) {
+      ensure(len);
+      System.arraycopy(b, off, mBuf, mSize, len);
+      mSize += len;
+    }
+
+    void writeVarInt(int v) {
+      ensure(5);
+      while ((v & ~0x7F) != 0) {
+        mBuf[mSize++] = (byte)((v & 0x7F) | 0x80);
+        v >>>= 7;
+      }
+      mBuf[mSize++] = (byte) v;
+    }
+
+    void writeFloat(float f) {
+      int v = Float.floatToIntBits(f);
+      ensure(4);
+      mBuf[mSize++] = (byte)(v >>> 24);
+      mBuf[mSize++] = (byte)(v >>> 16);
+      mBuf[mSize++] = (byte)(v >>> 8);
+      mBuf[mSize++] = (byte) v;
+    }
+
+    /*
+     * A null string is encoded as the length 0,
+     * other strings have their length incremented by one.
+     */
+    void writeString(String s) {
+      if (s == null) {
+        writeVarInt(0);
+        return;
+      }
+      byte[] b = s.getBytes(UTF8);
+      writeVarInt(b.length + 1);
+      write(b, 0, b.length);
+    }
+
+    private void ensure(int qty) {
+      if (mSize + qty > mBuf.length) {
+        mBuf = Arrays.copyOf(mBuf, Math.max(mSize + qty, 2 * mBuf.length));
+      }
+    }
+  }
+
+  private static class Reader {
+    private final byte[] mBuf;
+    private final int    mEnd;
+    int                  pos;
+
+    Reader(byte[] buf, int start, int end) {
+      mBuf = buf;
+      pos = start;
+      mEnd = end;
+    }
+
+    int readByte() throws IOException {
+      check(1);
+      return mBuf[pos++] & 0xFF;
+    }
+
+    int readVarInt() throws IOException {
+      int v = 0;
+      for (int shift = 0; shift < 35; shift += 7) {
+        int b = readByte();
+        v |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) return v;
+      }
+      throw new IOException("Damaged search result encoding: a too long integer");
+    }
+
+    float readFloat() throws IOException {
+      check(4);
+      int v = ((mBuf[pos] & 0xFF) << 24) | ((mBuf[pos + 1] & 0xFF) << 16) |
+              ((mBuf[pos + 2] & 0xFF) << 8) | (mBuf[pos + 3] & 0xFF);
+      pos += 4;
+      return Float.intBitsToFloat(v);
+    }
+
+    String readString() throws IOException {
+      int len = readVarInt() - 1;
+      if (len < 0) return null;
+      check(len);
+      String s = new String(mBuf, pos, len, UTF8);
+      pos += len;
+      return s;
+    }
+
+    private void check(int qty) throws IOException {
+      if (qty < 0 || pos + qty > mEnd) {
+        throw new IOException("Truncated search result encoding");
+      }
+    }
+  }
+}
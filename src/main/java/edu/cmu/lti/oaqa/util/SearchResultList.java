@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * A list of search results, which also records the search depth, i.e.,
+ * how many results were requested from the search engine. The list can be
+ * shorter than the depth, when the engine found fewer results, or when
+ * some of them were dropped. Thus, the list answers any request for
+ * at most depth results.
+ * 
+ * <p>A list can also be marked incomplete, e.g., when the search didn't finish
+ * in time. This mark is not persisted: incomplete lists are never cached.</p>
+ */
+public class SearchResultList extends ArrayList<SearchResult> {
+  private static final long serialVersionUID = 1L;
+
+  /** 0 means that the depth is unknown. */
+  private int mDepth = 0;
+  private boolean mIncomplete = false;
+
+  public SearchResultList() {
+  }
+
+  public SearchResultList(int initialCapacity) {
+    super(initialCapacity);
+  }
+
+  /**
+   * @param results   search results.
+   * @param depth     the number of results requested from the search engine.
+   */
+  public SearchResultList(Collection<SearchResult> results, int depth) {
+    super(results);
+    mDepth = depth;
+  }
+
+  public int getDepth() {
+    return mDepth;
+  }
+
+  public void setDepth(int depth) {
+    mDepth = depth;
+  }
+
+  public boolean isIncomplete() {
+    return mIncomplete;
+  }
+
+  public void setIncomplete(boolean incomplete) {
+    mIncomplete = incomplete;
+  }
+
+  /**
+   * @return the depth of a list, or 0, if the list doesn't record it.
+   */
+  public static int getDepth(ArrayList<SearchResult> results) {
+    return results instanceof SearchResultList ? ((SearchResultList) results).getDepth() : 0;
+  }
+
+  /**
+   * @return true if the list is marked incomplete.
+   */
+  public static boolean isIncomplete(ArrayList<SearchResult> results) {
+    return results instanceof SearchResultList && ((SearchResultList) results).isIncomplete();
+  }
+}
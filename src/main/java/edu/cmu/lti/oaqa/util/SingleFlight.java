@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Coalesces concurrent computations of the same key: the first caller
+ * computes the value, while callers that arrive before it finishes wait
+ * for the same value instead of repeating the computation. Nothing is
+ * remembered afterwards, i.e., this is not a cache; callers are supposed
+ * to check a cache first.</p>
+ *
+ * <p>If the computation fails, all waiting callers get the same exception.</p>
+ *
+ * @param <K>   key type.
+ * @param <V>   value type.
+ */
+public class SingleFlight<K, V> {
+  /*
+   * A computation in progress and the size of its value.
+   */
+  private static class Flight<V> {
+    final FutureTask<V> mTask;
+    final int           mSize;
+
+    Flight(FutureTask<V> task, int size) {
+      mTask = task;
+      mSize = size;
+    }
+  }
+
+  private final ConcurrentHashMap<K, Flight<V>> mInFlight
+                                              = new ConcurrentHashMap<K, Flight<V>>();
+  private final AtomicLong                      mSharedQty = new AtomicLong();
+
+  /**
+   * Computes the value or waits for the computation that is in progress.
+   *
+   * @param key       the key.
+   * @param loader    computes the value, it is called by the first caller only.
+   *
+   * @return the value computed by this or another caller.
+   *
+   * @throws Exception the exception thrown by the loader.
+   */
+  public V run(K key, Callable<V> loader) throws Exception {
+    return run(key, 0, loader);
+  }
+
+  /**
+   * The same as above, but values can have different sizes, e.g., 
+   * the number of retrieved results, and a larger value serves callers, 
+   * which need a smaller one: a caller waits for a computation in progress, 
+   * only if its value is at least as large. Otherwise, the caller computes 
+   * the value, and callers that arrive later wait for this larger value.
+   *
+   * @param key       the key.
+   * @param size      the size of the value computed by the loader.
+   * @param loader    computes the value.
+   *
+   * @return the value computed by this or another caller, 
+   *         its size can be larger than requested.
+   *
+   * @throws Exception the exception thrown by the loader.
+   */
+  public V run(K key, int size, Callable<V> loader) throws Exception {
+    Flight<V> flight = new Flight<V>(new FutureTask<V>(loader), size);
+    Flight<V> inFlight;
+    while (true) {
+      inFlight = mInFlight.putIfAbsent(key, flight);
+      if (inFlight == null) break;
+      if (inFlight.mSize >= size) break;
+      // The value in progress is too small
+      if (mInFlight.replace(key, inFlight, flight)) {
+        inFlight = null;
+        break;
+      }
+    }
+
+    if (inFlight == null) {
+      try {
+        flight.mTask.run();
+      } finally {
+        mInFlight.remove(key, flight);
+      }
+      inFlight = flight;
+    } else {
+      mSharedQty.incrementAndGet();
+    }
+
+    try {
+      return inFlight.mTask.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) throw (Exception) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw e;
+    }
+  }
+
+  /**
+   * @return the number of calls that waited for another caller's computation.
+   */
+  public long getSharedQty() {
+    return mSharedQty.get();
+  }
+}
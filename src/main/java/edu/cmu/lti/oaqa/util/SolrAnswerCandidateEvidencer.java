@@ -15,16 +15,33 @@
  */
 package edu.cmu.lti.oaqa.util;
 
+import org.apache.http.client.HttpClient;
 import org.apache.solr.client.solrj.SolrRequest.METHOD;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
 import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.client.solrj.request.LukeRequest;
+import org.apache.solr.client.solrj.request.QueryRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.MapSolrParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 
@@ -41,7 +58,61 @@ import java.util.*;
 public class SolrAnswerCandidateEvidencer  {
   static boolean DEBUG_INFO = true;
 
+  public static final int DEFAULT_MAX_CONCURRENCY  = 8;
+  /** 0 means no timeout. */
+  public static final int DEFAULT_QUERY_TIMEOUT_MS = 0;
+
+  /* 
+   * Connection limits of a client created by HttpSolrServer: threads, which
+   * share the evidencer and call scoreAssertion, need connections besides
+   * the threads of scoreAssertions.
+   */
+  static final int MIN_MAX_CONNECTIONS          = 128;
+  static final int MIN_MAX_CONNECTIONS_PER_HOST = 32;
+
   SolrServer mSolrServer = null;
+  boolean    mOwnsServer = false;
+  /** The client created for the server, it is closed by {@link #close()}. */
+  HttpClient mHttpClient = null;
+  
+  /** Runs queries of {@link #scoreAssertions(List)}. */
+  ExecutorService mExecutor;
+
+  public static final String DEFAULT_EVIDENCE_HANDLER = "/evidence";
+
+  String mEvidenceHandler = DEFAULT_EVIDENCE_HANDLER;
+
+  /** How often the index version is checked, when results are cached. */
+  static final long INDEX_VERSION_CHECK_MS = 10000;
+
+  volatile EvidencingResultCache mResultCache = null;
+
+  /** Drops frequent words from queries, null means no pruning. */
+  volatile IdfTermPruner mTermPruner = null;
+  /** How often failures of pruning are reported. */
+  static final long      PRUNE_ERROR_REPORT_MS = 60000;
+  volatile long          mPruneErrorTime = 0;
+
+  /*
+   * The version of the index, when it was checked, and the ID,
+   * which identifies the index in the result cache.
+   */
+  static class IndexVersion {
+    final String  mIndexId;
+    final long    mVersion;
+    final long    mCheckTime;
+
+    IndexVersion(String indexId, long version, long checkTime) {
+      mIndexId   = indexId;
+      mVersion   = version;
+      mCheckTime = checkTime;
+    }
+  }
+
+  /** The last known version, null if it isn't known. */
+  volatile IndexVersion       mIndexVersion = null;
+  /** Only one thread checks the version, the others use the last known one meanwhile. */
+  final AtomicBoolean         mCheckingVersion = new AtomicBoolean();
   
   String     mServerUrl;
   String     mCoreName;
@@ -53,7 +124,7 @@ public class SolrAnswerCandidateEvidencer  {
   
   float mDiscountMult    = 0.5f; // seems to be a good default value
   
-  String[] stopwList = new String[] { "'", "word", "a", "about", "also",
+  static final String[] DEFAULT_STOP_WORDS = new String[] { "'", "word", "a", "about", "also",
       "an", "and", "another", "any", "are", "as", "at", "back", "be",
       "because", "been", "being", "but", "by", "can", "could", "did",
       "do", "each", "end", "even", "for", "from", "get", "go", "had",
@@ -67,7 +138,17 @@ public class SolrAnswerCandidateEvidencer  {
       "why", "will", "with", "within", "without", "would", "you", "your",
       "www", "com", "org", "edu", "net", "en" };
 
-  HashSet<String> mStopWordHash;
+  String[] stopwList = DEFAULT_STOP_WORDS;
+
+  QueryTokenizer mTokenizer;
+
+  /** Bag-of-words queries are built here, there is one buffer per thread. */
+  final ThreadLocal<StringBuilder> mQueryBuffer = new ThreadLocal<StringBuilder>() {
+    @Override
+    protected StringBuilder initialValue() {
+      return new StringBuilder();
+    }
+  };
   
   /**
    * @param serverUrl			URL of the server.
@@ -82,8 +163,106 @@ public class SolrAnswerCandidateEvidencer  {
   public SolrAnswerCandidateEvidencer(String serverUrl, String coreName, String fieldName,
                                int matchPct, float slopeCoeff, int topSearchResult,
                                float discountMult) {
-  
-    mSolrServer = new HttpSolrServer(serverUrl + coreName);
+    this(serverUrl, coreName, fieldName, 
+         matchPct, slopeCoeff, topSearchResult, discountMult,
+         DEFAULT_MAX_CONCURRENCY, DEFAULT_QUERY_TIMEOUT_MS);
+  }
+
+  /**
+   * @param serverUrl			URL of the server.
+   * @param coreName			Name of the core.
+   * @param fieldName		 	Search field name.
+   * @param matchPct			Percentage of matching words, 
+   * 							use 100 to require all non-stop words to be present.
+   * @param slopeCoeff			Slope coefficient for Solr phrase queries.
+   * @param topSearchResult		Number of top results that participate in computation of the discounted score.
+   * @param discountMult		A multiplier that used to compute the discounted score.
+   * @param maxConcurrency		A number of threads sending queries of {@link #scoreAssertions(List)} in parallel.
+   * @param queryTimeoutMs		A timeout of waiting for a Solr response, 0 means no timeout.
+   */
+  public SolrAnswerCandidateEvidencer(String serverUrl, String coreName, String fieldName,
+                               int matchPct, float slopeCoeff, int topSearchResult,
+                               float discountMult, int maxConcurrency, int queryTimeoutMs) {
+    this(new HttpSolrServer(serverUrl + coreName, 
+                            createHttpClient(maxConcurrency, queryTimeoutMs)), 
+         fieldName, matchPct, slopeCoeff, topSearchResult, discountMult, maxConcurrency);
+    mOwnsServer = true;
+    mHttpClient = ((HttpSolrServer) mSolrServer).getHttpClient();
+  }
+
+  /**
+   * Creates an evidencer, which balances queries among replicas of the core
+   * (see {@link ReplicaBalancingSolrServer}): a query goes to a replica
+   * with a small recent latency and few outstanding queries, failing and slow
+   * replicas are ejected for a while.
+   * 
+   * @param serverUrls			URLs of servers with replicas of the core.
+   * @param coreName			Name of the core.
+   * @param fieldName		 	Search field name.
+   * @param matchPct			Percentage of matching words, 
+   * 							use 100 to require all non-stop words to be present.
+   * @param slopeCoeff			Slope coefficient for Solr phrase queries.
+   * @param topSearchResult		Number of top results that participate in computation of the discounted score.
+   * @param discountMult		A multiplier that used to compute the discounted score.
+   * @param maxConcurrency		A number of threads sending queries of {@link #scoreAssertions(List)} in parallel.
+   * @param queryTimeoutMs		A timeout of waiting for a Solr response, 0 means no timeout.
+   */
+  public SolrAnswerCandidateEvidencer(List<String> serverUrls, String coreName, String fieldName,
+                               int matchPct, float slopeCoeff, int topSearchResult,
+                               float discountMult, int maxConcurrency, int queryTimeoutMs) {
+    this(createReplicaServer(serverUrls, coreName, maxConcurrency, queryTimeoutMs), 
+         fieldName, matchPct, slopeCoeff, topSearchResult, discountMult, maxConcurrency);
+    mOwnsServer = true;
+  }
+
+  /**
+   * Creates an evidencer, which queries a local core in-process 
+   * (see {@link EmbeddedSolrServerFactory#open(String)}): scores are the same,
+   * but there is no HTTP and no serialization. The core is closed by {@link #close()}.
+   * 
+   * @param coreDir			The core directory, which has conf/solrconfig.xml and conf/schema.xml.
+   * @param fieldName		 	Search field name.
+   * @param matchPct			Percentage of matching words, 
+   * 							use 100 to require all non-stop words to be present.
+   * @param slopeCoeff			Slope coefficient for Solr phrase queries.
+   * @param topSearchResult		Number of top results that participate in computation of the discounted score.
+   * @param discountMult		A multiplier that used to compute the discounted score.
+   */
+  public static SolrAnswerCandidateEvidencer createEmbedded(String coreDir, String fieldName,
+                               int matchPct, float slopeCoeff, int topSearchResult,
+                               float discountMult) throws SolrServerException {
+    SolrAnswerCandidateEvidencer ev = 
+        new SolrAnswerCandidateEvidencer(EmbeddedSolrServerFactory.open(coreDir), fieldName,
+                                         matchPct, slopeCoeff, topSearchResult, discountMult,
+                                         DEFAULT_MAX_CONCURRENCY);
+    ev.mOwnsServer = true;
+    return ev;
+  }
+
+  /**
+   * Uses a given server, e.g., an embedded one in benchmarks.
+   * 
+   * @param solrServer			A Solr server.
+   * @param fieldName		 	Search field name.
+   * @param matchPct			Percentage of matching words.
+   * @param slopeCoeff			Slope coefficient for Solr phrase queries.
+   * @param topSearchResult		Number of top results that participate in computation of the discounted score.
+   * @param discountMult		A multiplier that used to compute the discounted score.
+   * @param maxConcurrency		A number of threads sending queries of {@link #scoreAssertions(List)} in parallel.
+   */
+  SolrAnswerCandidateEvidencer(SolrServer solrServer, String fieldName,
+                               int matchPct, float slopeCoeff, int topSearchResult,
+                               float discountMult, int maxConcurrency) {
+    mSolrServer = solrServer;
+    
+    final AtomicInteger threadQty = new AtomicInteger();
+    mExecutor = Executors.newFixedThreadPool(maxConcurrency, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "SolrAnswerCandidateEvidencer-" + threadQty.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
   
     mFieldName = fieldName;
     
@@ -92,9 +271,7 @@ public class SolrAnswerCandidateEvidencer  {
     mTopSearchResult = topSearchResult;
     mDiscountMult = discountMult;
   
-    mStopWordHash = new HashSet<String>();
-    for (String s : stopwList)
-      mStopWordHash.add(s);  
+    mTokenizer = new QueryTokenizer(stopwList);
   }
   
   class QueryParseRes {
@@ -117,31 +294,161 @@ public class SolrAnswerCandidateEvidencer  {
     						mTopSearchResult);
   }
   
-  ArrayList<String> getQueryWords(String question) {
-    String[] qWords = question.replaceAll("\\W", " ").split(" +");
+  /**
+   * Scores several assertions, queries are sent to Solr in parallel.
+   * 
+   * @return results in the order of assertions.
+   * 
+   * @throws SolrServerException if any of the queries fails, e.g., times out.
+   */
+  public List<EvidencingResult> scoreAssertions(List<String> assertionTexts) 
+                                                throws SolrServerException {
+    ArrayList<Future<EvidencingResult>> futures 
+        = new ArrayList<Future<EvidencingResult>>(assertionTexts.size());
+    for (final String assertionText : assertionTexts) {
+      futures.add(mExecutor.submit(new Callable<EvidencingResult>() {
+        public EvidencingResult call() throws SolrServerException {
+          return scoreAssertion(assertionText);
+        }
+      }));
+    }
 
-    ArrayList<String> nostop = new ArrayList<String>();
+    ArrayList<EvidencingResult> res = new ArrayList<EvidencingResult>(futures.size());
+    try {
+      for (Future<EvidencingResult> f : futures)
+        res.add(f.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SolrServerException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SolrServerException) throw (SolrServerException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new SolrServerException(cause);
+    } finally {
+      // Queries of a failed batch are not needed anymore
+      for (Future<EvidencingResult> f : futures)
+        f.cancel(false);
+    }
+    return res;
+  }
 
-    for (String s : qWords) {
-      s = s.replace("[.,]$", "");
-      if (!mStopWordHash.contains(s.toLowerCase())) nostop.add(s);
+  /**
+   * Stops the threads, the server is shut down, if it was created by this object.
+   */
+  public void close() {
+    mExecutor.shutdown();
+    if (mOwnsServer) {
+      try {
+        if (mSolrServer instanceof ReplicaBalancingSolrServer) {
+          ((ReplicaBalancingSolrServer) mSolrServer).close();
+        } else {
+          mSolrServer.shutdown();
+          // The client was passed to the server, so the server doesn't close it
+          if (mHttpClient != null) ReplicaBalancingSolrServer.closeClient(mHttpClient);
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
     }
-       
-    return nostop;
   }
-  
-  private QueryParseRes createBagOfWordQuery(String question) {
-	ArrayList<String> nostop = getQueryWords(question);
 
-	StringBuilder res = new StringBuilder();
+  /**
+   * @return per-replica statistics, if queries are balanced among replicas, 
+   *         or null otherwise.
+   */
+  public List<ReplicaBalancingSolrServer.Replica> getReplicaStats() {
+    return mSolrServer instanceof ReplicaBalancingSolrServer ? 
+           ((ReplicaBalancingSolrServer) mSolrServer).getReplicas() : null;
+  }
+
+  /*
+   * Replicas share one client: every replica can get all parallel queries.
+   */
+  private static ReplicaBalancingSolrServer createReplicaServer(List<String> serverUrls, 
+                                                                String coreName,
+                                                                int maxConcurrency, 
+                                                                int queryTimeoutMs) {
+    ArrayList<String> urls = new ArrayList<String>(serverUrls.size());
+    for (String serverUrl : serverUrls)
+      urls.add(serverUrl + coreName);
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set(HttpClientUtil.PROP_MAX_CONNECTIONS, 
+               Math.max(MIN_MAX_CONNECTIONS, maxConcurrency * serverUrls.size()));
+    params.set(HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST, 
+               Math.max(MIN_MAX_CONNECTIONS_PER_HOST, maxConcurrency));
+    params.set(HttpClientUtil.PROP_SO_TIMEOUT, queryTimeoutMs);
+    params.set(HttpClientUtil.PROP_FOLLOW_REDIRECTS, false);
+    return new ReplicaBalancingSolrServer(urls, HttpClientUtil.createClient(params));
+  }
+
+  /*
+   * A client, whose connection pool is large enough for all parallel queries,
+   * it has at least as many connections as the default client of HttpSolrServer.
+   */
+  private static HttpClient createHttpClient(int maxConcurrency, int queryTimeoutMs) {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set(HttpClientUtil.PROP_MAX_CONNECTIONS, 
+               Math.max(MIN_MAX_CONNECTIONS, maxConcurrency));
+    params.set(HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST, 
+               Math.max(MIN_MAX_CONNECTIONS_PER_HOST, maxConcurrency));
+    params.set(HttpClientUtil.PROP_SO_TIMEOUT, queryTimeoutMs);
+    params.set(HttpClientUtil.PROP_FOLLOW_REDIRECTS, false);
+    return HttpClientUtil.createClient(params);
+  }
+  
+  ArrayList<String> getQueryWords(String question) {
+    return mTokenizer.getQueryWords(question);
+  }
+  
+  QueryParseRes createBagOfWordQuery(String question) {
+	StringBuilder res = mQueryBuffer.get();
+	res.setLength(0);
 
-	for (int i = 0; i < nostop.size(); ++i) {
-		if (i > 0)
-			res.append(' ');
-		res.append(nostop.get(i));
+	IdfTermPruner pruner = mTermPruner;
+	if (pruner != null) {
+		try {
+			List<String> queryWords = getQueryWords(question);
+			List<String> words = pruner.prune(queryWords);
+			// The pruner drops the empty word, it is kept as in an unpruned query:
+			// neither the query nor the slop changes, if nothing is pruned
+			int emptyQty = !queryWords.isEmpty() && queryWords.get(0).isEmpty() ? 1 : 0;
+			for (int i = 0; i < words.size(); ++i) {
+				if (i + emptyQty > 0)
+					res.append(' ');
+				res.append(words.get(i));
+			}
+			return new QueryParseRes(res.toString(), words.size() + emptyQty);
+		} catch (SolrServerException e) {
+			// The query is not pruned then, the error is reported once in a while,
+			// e.g., if Solr is down, every query fails
+			long now = System.currentTimeMillis();
+			if (now - mPruneErrorTime >= PRUNE_ERROR_REPORT_MS) {
+				mPruneErrorTime = now;
+				e.printStackTrace();
+			}
+			res.setLength(0);
+		}
 	}
+	int wordQty = mTokenizer.appendQueryWords(question, res);
 
-	return new QueryParseRes(res.toString(), nostop.size());
+	return new QueryParseRes(res.toString(), wordQty);
+  }
+
+  /**
+   * Enables pruning of query words: at most maxTerms of the rarest words are kept,
+   * and words occurring in more than maxDocFreqRatio of documents are dropped
+   * (see {@link IdfTermPruner}). Fewer words make queries, 
+   * in particular, sloppy phrase queries, cheaper.
+   * 
+   * @param maxTerms          the maximum number of words, 0 disables pruning.
+   * @param maxDocFreqRatio   the maximum fraction of documents, 
+   *                          1 keeps words regardless of frequency.
+   */
+  public void setTermPruning(int maxTerms, float maxDocFreqRatio) {
+    mTermPruner = maxTerms > 0 ? new IdfTermPruner(mSolrServer, mFieldName, 
+                                                   maxTerms, maxDocFreqRatio) 
+                               : null;
   }
   
   private EvidencingResult scoreQuery( 
@@ -157,10 +464,15 @@ public class SolrAnswerCandidateEvidencer  {
 
 	  QueryParseRes q = createBagOfWordQuery(assertionText);
 
-	  String query = String.format(
-			  "_query_: \"{!edismax df=%s mm=%d%c pf=%s ps=%d} %s \"",
-			  fieldName, matchPct, '%', fieldName,
-			  (int) Math.round(slopeCoeff * q.wordQty), q.query);
+	  IndexVersion indexVersion = getIndexVersion();
+	  String key = null;
+	  if (indexVersion != null) {
+		  key = getCacheKey(fieldName, matchPct, slopeCoeff, topSearchResult, mDiscountMult, q);
+		  EvidencingResult res = mResultCache.get(indexVersion.mIndexId, indexVersion.mVersion, key);
+		  if (res != null) return res;
+	  }
+
+	  String query = formatQuery(fieldName, matchPct, slopeCoeff, q.query, q.wordQty);
 
 	  HashMap<String, String> hshParams = new HashMap<String, String>();
 
@@ -185,9 +497,158 @@ public class SolrAnswerCandidateEvidencer  {
 		  discountCoeff *= mDiscountMult;
 	  }
 
-	  return new EvidencingResult(results.getMaxScore(),
+	  EvidencingResult res = new EvidencingResult(results.getMaxScore(),
 			  discScore,
 			  results.getNumFound());
+	  if (key != null) mResultCache.put(indexVersion.mIndexId, indexVersion.mVersion, key, res);
+	  return res;
+  }
+
+  /**
+   * Sets a cache of evidencing results, which can be shared by evidencers
+   * (of the same or different indices). Results are cached for the current 
+   * version of the index, which is checked every {@link #INDEX_VERSION_CHECK_MS} milliseconds 
+   * using the Luke handler (/admin/luke), so that results computed
+   * before the index was changed are not reused. If the version
+   * can't be obtained, the cache is bypassed.
+   * 
+   * @param cache   the cache or null to disable caching.
+   */
+  public synchronized void setResultCache(EvidencingResultCache cache) {
+    mResultCache = cache;
+    mIndexVersion = null;
+  }
+
+  /*
+   * The key includes all parameters, which affect the result.
+   */
+  private static String getCacheKey(String fieldName, int matchPct, float slopeCoeff, 
+                                    int topSearchResult, float discountMult, QueryParseRes q) {
+    return fieldName + '\t' + matchPct + '\t' + slopeCoeff + '\t' + topSearchResult + '\t' 
+           + discountMult + '\t' + q.wordQty + '\t' + q.query;
+  }
+
+  /*
+   * @return the index version or null, if results are not cached.
+   */
+  private IndexVersion getIndexVersion() {
+    if (mResultCache == null) return null;
+
+    IndexVersion known = mIndexVersion;
+    long now = System.currentTimeMillis();
+    if (known != null && now - known.mCheckTime < INDEX_VERSION_CHECK_MS) return known;
+    // Queries don't wait for the check, if another thread does it
+    if (!mCheckingVersion.compareAndSet(false, true)) return known;
+    try {
+      LukeRequest req = new LukeRequest();
+      req.setNumTerms(0);
+      req.setShowSchema(false);
+      // Replicas can be at different versions, so the version is always taken from the same one
+      SolrServer server = mSolrServer instanceof ReplicaBalancingSolrServer ? 
+                          ((ReplicaBalancingSolrServer) mSolrServer).getFirstServer() : mSolrServer;
+      NamedList<Object> indexInfo = req.process(server).getIndexInfo();
+      Object version = indexInfo.get("version");
+      if (version == null) throw new SolrServerException("Luke response has no index version");
+      // A remote core is identified by its URL, a local one by its directory
+      String indexId = server instanceof HttpSolrServer ? 
+                       ((HttpSolrServer) server).getBaseURL() : 
+                       String.valueOf(indexInfo.get("directory"));
+      mIndexVersion = new IndexVersion(indexId, ((Number) version).longValue(), now);
+      return mIndexVersion;
+    } catch (Exception e) {
+      // Without the version, cached results can be stale
+      e.printStackTrace();
+      mIndexVersion = null;
+      return null;
+    } finally {
+      mCheckingVersion.set(false);
+    }
+  }
+  
+  /*
+   * The query of an assertion, it is also used by MultiAssertionEvidenceHandler.
+   */
+  static String formatQuery(String fieldName, int matchPct, float slopeCoeff,
+                            String bagOfWords, int wordQty) {
+	  return String.format(
+			  "_query_: \"{!edismax df=%s mm=%d%c pf=%s ps=%d} %s \"",
+			  fieldName, matchPct, '%', fieldName,
+			  (int) Math.round(slopeCoeff * wordQty), bagOfWords);
+  }
+
+  /**
+   * Scores several assertions in a single request to {@link MultiAssertionEvidenceHandler},
+   * which must be registered in the core (see {@link #setEvidenceHandler(String)}).
+   * Results are the same as results of {@link #scoreAssertion(String)}.
+   * 
+   * @return results in the order of assertions.
+   */
+  public List<EvidencingResult> scoreAssertionsOnServer(List<String> assertionTexts) 
+                                                        throws SolrServerException {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set(CommonParams.DF, mFieldName);
+    params.set(CommonParams.ROWS, mTopSearchResult);
+    params.set(MultiAssertionEvidenceHandler.PARAM_MATCH_PCT, mMatchPct);
+    params.set(MultiAssertionEvidenceHandler.PARAM_SLOPE, String.valueOf(mSlopeCoeff));
+    params.set(MultiAssertionEvidenceHandler.PARAM_DISCOUNT, String.valueOf(mDiscountMult));
+
+    IndexVersion indexVersion = getIndexVersion();
+    EvidencingResult[] res = new EvidencingResult[assertionTexts.size()];
+    // Only cache misses are sent
+    ArrayList<Integer> sentIds = new ArrayList<Integer>();
+    ArrayList<String>  keys = new ArrayList<String>();
+    for (int i = 0; i < res.length; ++i) {
+      String assertionText = assertionTexts.get(i);
+      // Assertions are parsed here, so that stop words and tokenization are the same
+      // and empty assertions get zero scores without querying
+      QueryParseRes q = assertionText.isEmpty() ? new QueryParseRes("", -1) 
+                                                : createBagOfWordQuery(assertionText);
+      if (indexVersion != null && q.wordQty >= 0) {
+        String key = getCacheKey(mFieldName, mMatchPct, mSlopeCoeff, mTopSearchResult, 
+                                  mDiscountMult, q);
+        res[i] = mResultCache.get(indexVersion.mIndexId, indexVersion.mVersion, key);
+        if (res[i] != null) continue;
+        keys.add(key);
+      } else {
+        keys.add(null);
+      }
+      sentIds.add(i);
+      params.add(MultiAssertionEvidenceHandler.PARAM_ASSERTION, q.query);
+      params.add(MultiAssertionEvidenceHandler.PARAM_WORD_QTY, String.valueOf(q.wordQty));
+    }
+    if (sentIds.isEmpty()) return Arrays.asList(res);
+
+    QueryRequest req = new QueryRequest(params, METHOD.POST);
+    req.setPath(mEvidenceHandler);
+    NamedList<Object> rsp = req.process(mSolrServer).getResponse();
+
+    @SuppressWarnings("unchecked")
+    List<NamedList<Object>> evidence = 
+        (List<NamedList<Object>>) rsp.get(MultiAssertionEvidenceHandler.RESPONSE_EVIDENCE);
+    if (evidence == null || evidence.size() != sentIds.size()) {
+      throw new SolrServerException("Unexpected response of " + mEvidenceHandler + ": " 
+                                    + (evidence == null ? "no evidence" : evidence.size() 
+                                       + " results for " + sentIds.size() + " assertions"));
+    }
+    for (int k = 0; k < evidence.size(); ++k) {
+      NamedList<Object> e = evidence.get(k);
+      EvidencingResult r = 
+          new EvidencingResult((Float) e.get(MultiAssertionEvidenceHandler.RESPONSE_TOP_SCORE), 
+                               (Float) e.get(MultiAssertionEvidenceHandler.RESPONSE_DISC_SCORE),
+                               (Long) e.get(MultiAssertionEvidenceHandler.RESPONSE_QTY));
+      res[sentIds.get(k)] = r;
+      if (keys.get(k) != null) 
+        mResultCache.put(indexVersion.mIndexId, indexVersion.mVersion, keys.get(k), r);
+    }
+    return Arrays.asList(res);
+  }
+
+  /**
+   * Sets the path of {@link MultiAssertionEvidenceHandler} in the core, 
+   * by default it is {@link #DEFAULT_EVIDENCE_HANDLER}.
+   */
+  public void setEvidenceHandler(String path) {
+    mEvidenceHandler = path;
   }
   
   public static void main(String args[]) throws Exception {
@@ -205,12 +666,22 @@ public class SolrAnswerCandidateEvidencer  {
       float discountMult = 0.5f;	  
 	  /* end of good defaults */
 	  
-	  SolrAnswerCandidateEvidencer ev = 
+	  // Instead of a URL, there can be a local directory with the core directory,
+	  // or a comma-separated list of URLs of replicas
+	  SolrAnswerCandidateEvidencer ev = serverUrl.contains(",") ?
+			  new SolrAnswerCandidateEvidencer(Arrays.asList(serverUrl.split(",")), coreName, fieldName,
+					  						matchPct, slopeCoeff, topSearchResult,
+					  						discountMult, DEFAULT_MAX_CONCURRENCY, DEFAULT_QUERY_TIMEOUT_MS) :
+			  serverUrl.startsWith("http") ?
 			  new SolrAnswerCandidateEvidencer(serverUrl, coreName, fieldName,
 										  		matchPct, slopeCoeff, topSearchResult,
-										  		discountMult);
+										  		discountMult) :
+			  createEmbedded(new File(serverUrl, coreName).getPath(), fieldName,
+					  						matchPct, slopeCoeff, topSearchResult,
+					  						discountMult);
 	  
 	  EvidencingResult res = ev.scoreAssertion(query);
+	  ev.close();
 	  
 	  System.out.println(query);
 	  System.out.println("Discounted score: " + res.mDiscountScore + 
@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.util.ArrayList;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrRequest.METHOD;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+
+/**
+ * A search engine backend, which retrieves passages from a local Solr index.
+ * The query is a bag of words matched against the search field, the passage
+ * text is returned as an answer and the passage ID as a document ID.
+ *
+ * <p>Results are cached in the namespace of the engine, which is "Solr"
+ * by default. The cache can be null.</p>
+ */
+public class SolrPassageSearcher implements WebSearcher {
+  private final SolrServer      mSolrServer;
+  private final String          mEngineId;
+  private final String          mSearchField;
+  private final String          mIdField;
+  private final String          mTextField;
+  private final int             mResNum;
+  private final WebSearchCache  mRetrievalCache;
+
+  /**
+   * @param serverUrl       URL of the server.
+   * @param coreName        Name of the core.
+   * @param searchField     Search field name.
+   * @param idField         Name of the field with passage IDs.
+   * @param textField       Name of the (stored) field with passage text.
+   * @param resNum          A maximum number of results to return.
+   * @param retrievalCache  A cache of retrieved results or null.
+   */
+  public SolrPassageSearcher(String serverUrl, String coreName,
+                             String searchField, String idField, String textField,
+                             int resNum, WebSearchCache retrievalCache) {
+    this(new HttpSolrServer(serverUrl + coreName), "Solr",
+         searchField, idField, textField, resNum, retrievalCache);
+  }
+
+  /**
+   * @param solrServer      A Solr server (e.g., an embedded one).
+   * @param engineId        The name of the engine, a namespace in the cache.
+   * @param searchField     Search field name.
+   * @param idField         Name of the field with passage IDs.
+   * @param textField       Name of the (stored) field with passage text.
+   * @param resNum          A maximum number of results to return.
+   * @param retrievalCache  A cache of retrieved results or null.
+   */
+  public SolrPassageSearcher(SolrServer solrServer, String engineId,
+                             String searchField, String idField, String textField,
+                             int resNum, WebSearchCache retrievalCache) {
+    mSolrServer     = solrServer;
+    mEngineId       = engineId;
+    mSearchField    = searchField;
+    mIdField        = idField;
+    mTextField      = textField;
+    mResNum         = resNum;
+    mRetrievalCache = retrievalCache;
+  }
+
+  public String getEngineId() {
+    return mEngineId;
+  }
+
+  public ArrayList<SearchResult> retrieveDocuments(String query) throws Exception {
+    query = query.trim();
+    SearchResultList resultL = new SearchResultList();
+    if (query.isEmpty()) return resultL;
+
+    String key = BingSearcherUtil.getCanonicalKey(query);
+    if (mRetrievalCache != null) {
+      ArrayList<SearchResult> cacheEntry = mRetrievalCache.getCacheEntry(mEngineId, key);
+      if (cacheEntry != null && SearchResultList.getDepth(cacheEntry) >= mResNum) {
+        for (SearchResult r : cacheEntry) {
+          if (r.getHitPos() >= mResNum) break;
+          // Results retrieved for a differently spelled query get this query
+          if (!query.equals(r.getQuery())) {
+            SearchResult copy = new SearchResult(r.getAnswer(), query, r.getDocID(), r.getHitPos());
+            copy.setScore(r.getScore());
+            copy.setNormScore(r.getNormScore());
+            copy.setCacheID(r.getCacheID());
+            r = copy;
+          }
+          resultL.add(r);
+        }
+        return resultL;
+      }
+    }
+
+    // Every word is optional, matching documents are ranked by the score
+    StringBuilder q = new StringBuilder();
+    for (String word : query.split("\\s+")) {
+      if (q.length() > 0) q.append(' ');
+      q.append(ClientUtils.escapeQueryChars(word));
+    }
+    SolrQuery solrQuery = new SolrQuery(q.toString());
+    solrQuery.set("defType", "edismax");
+    solrQuery.set("qf", mSearchField);
+    solrQuery.set("q.op", "OR");
+    solrQuery.setRows(mResNum);
+    solrQuery.setFields(mIdField, mTextField, "score");
+
+    SolrDocumentList docs = mSolrServer.query(solrQuery, METHOD.POST).getResults();
+    for (int i = 0; i < docs.size(); ++i) {
+      SolrDocument doc = docs.get(i);
+      Object text = doc.getFieldValue(mTextField);
+      if (text == null) continue;
+      Object id = doc.getFieldValue(mIdField);
+      SearchResult res = new SearchResult(text.toString(), query,
+                                          id != null ? id.toString() : null, i);
+      res.setScore((Float) doc.getFieldValue("score"));
+      resultL.add(res);
+    }
+    resultL.setDepth(mResNum);
+
+    if (mRetrievalCache != null)
+      mRetrievalCache.saveCacheEntry(mEngineId, key, resultL);
+    return resultL;
+  }
+
+  /**
+   * Local queries are fast, so the budget is ignored.
+   */
+  public ArrayList<SearchResult> retrieveDocuments(String query, long budgetMs) throws Exception {
+    return retrieveDocuments(query);
+  }
+}
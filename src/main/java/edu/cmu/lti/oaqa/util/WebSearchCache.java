@@ -15,60 +15,261 @@
  */
 package edu.cmu.lti.oaqa.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 
+/**
+ * A cache of web search results. Results of each retrieval engine are
+ * persisted in an append-only log (see {@link WebSearchCacheLog})
+ * stored in the file &lt;path&gt;&lt;engine&gt;Cache.log. Thus, saving the cache
+ * costs only as much as writing the new entries.
+ * 
+ * <p>Entries can be retrieved one by one using {@link #getCacheEntry(String, String)}:
+ * the log is indexed and memory-mapped, and entries are decoded only when
+ * requested. Recently used entries are kept in a memory tier, which is
+ * bounded both by the number of entries and by their estimated size in bytes
+ * (see {@link BoundedLruCache}). The whole table can still be loaded 
+ * using {@link #loadCache(String)}, but this is slow for large caches
+ * and the table is not bounded.</p>
+ * 
+ * <p>Entries are stored using {@link SearchResultCodec}. Caches in the old format,
+ * i.e., the whole table serialized to the file &lt;path&gt;&lt;engine&gt;Cache.txt, 
+ * are converted on first use, or, more efficiently, by {@link WebSearchCacheMigrator}.</p>
+ * 
+ * <p>The cache is thread-safe and can be shared by all worker threads: reads
+ * don't block (see {@link BoundedLruCache} and {@link WebSearchCacheLog}),
+ * while entries are persisted by a single background writer, which appends
+ * them in batches and syncs the log once per batch. Entries that are queued,
+ * but not written yet, are still visible to readers. Call {@link #flush()}
+ * to wait until queued entries are written, and {@link #close()} when the
+ * cache isn't needed anymore.</p>
+ * 
+ * <p>Several processes can share one cache through {@link WebSearchCacheServer}
+ * and {@link RemoteWebSearchCache}.</p>
+ */
 public class WebSearchCache {
+	public static final int  DEFAULT_MAX_MEMORY_ENTRIES = 20000;
+	public static final long DEFAULT_MAX_MEMORY_BYTES   = 128L << 20;
+
+	/*
+	 * Rough sizes of a String and a SearchResult (including the references
+	 * to them), on a 64-bit JVM.
+	 */
+	private static final int STRING_OVERHEAD        = 64;
+	private static final int SEARCH_RESULT_OVERHEAD = 56;
+
+	/** The maximum number of entries written by the writer before a sync. */
+	private static final int MAX_WRITE_BATCH        = 1024;
+
+	private static final BoundedLruCache.Weigher<ArrayList<SearchResult>> ENTRY_WEIGHER
+	              = new BoundedLruCache.Weigher<ArrayList<SearchResult>>() {
+		public long weigh(ArrayList<SearchResult> entry) {
+			return estimateSize(entry);
+		}
+	};
+
+	/*
+	 * A queued write. A write without a key is a marker, which is
+	 * counted down after all preceding writes are synced, or,
+	 * if there is nothing to count down, a request to stop the writer.
+	 */
+	private static class PendingWrite {
+		final String                  engine;
+		final String                  key;
+		final ArrayList<SearchResult> entry;
+		final CountDownLatch          done;
+
+		PendingWrite(String engine, String key, ArrayList<SearchResult> entry, CountDownLatch done) {
+			this.engine = engine;
+			this.key = key;
+			this.entry = entry;
+			this.done = done;
+		}
+	}
+
 	private String path;
-	private Hashtable<String, Hashtable<String, ArrayList<SearchResult>>> tableInMemory 
-	              = new Hashtable<String, Hashtable<String, ArrayList<SearchResult>>>();
+	private ConcurrentHashMap<String, Hashtable<String, ArrayList<SearchResult>>> tableInMemory 
+	              = new ConcurrentHashMap<String, Hashtable<String, ArrayList<SearchResult>>>();
+	private ConcurrentHashMap<String, WebSearchCacheLog> logs 
+	              = new ConcurrentHashMap<String, WebSearchCacheLog>();
+	/* Per-engine locks: they serialize saves with loading the table and saves of new entries */
+	private ConcurrentHashMap<String, Object> engineLocks 
+	              = new ConcurrentHashMap<String, Object>();
+	/* Entries of all engines, the key is <engine>\t<key> */
+	private BoundedLruCache<String, ArrayList<SearchResult>> memoryTier;
+	/* Entries queued for writing, keyed as in the memory tier */
+	private ConcurrentHashMap<String, ArrayList<SearchResult>> pending
+	              = new ConcurrentHashMap<String, ArrayList<SearchResult>>();
+	/* The writer is started on first write, these three are guarded by the object's lock */
+	private LinkedBlockingQueue<PendingWrite> writeQueue = null;
+	private Thread writer = null;
+	private Thread shutdownHook = null;
 
 	public WebSearchCache(String cachePath) {
+		this(cachePath, DEFAULT_MAX_MEMORY_ENTRIES, DEFAULT_MAX_MEMORY_BYTES);
+	}
+
+	/**
+	 * @param cachePath         a path prefix of cache files.
+	 * @param maxMemoryEntries  the maximum number of entries kept in memory.
+	 * @param maxMemoryBytes    the maximum estimated size of entries kept in memory.
+	 */
+	public WebSearchCache(String cachePath, int maxMemoryEntries, long maxMemoryBytes) {
+		this(cachePath, maxMemoryEntries, maxMemoryBytes, 0);
+	}
+
+	/**
+	 * @param timeToLiveMs      entries are dropped from memory this many 
+	 *                          milliseconds after they were added, 0 means never.
+	 */
+	protected WebSearchCache(String cachePath, int maxMemoryEntries, long maxMemoryBytes,
+	                         long timeToLiveMs) {
 		this.path=cachePath;
+		this.memoryTier = new BoundedLruCache<String, ArrayList<SearchResult>>(
+		                        maxMemoryEntries, maxMemoryBytes, ENTRY_WEIGHER, timeToLiveMs);
 	}
 
 	public Hashtable<String, ArrayList<SearchResult>> loadCache(String RetrievalEngine) {
 		// If already in memory, then return back
-		if (tableInMemory.containsKey(RetrievalEngine))
-			tableInMemory.get(RetrievalEngine);
-		if (tableInMemory.isEmpty()){
-			//System.out.println("tableInMemory is still empty");
-		}
-			
-		String fileName = path + RetrievalEngine + "Cache.txt";
-		//System.out.println("Reading " + RetrievalEngine + " Cache File");
-		ObjectInputStream inputStream = null;
-		Hashtable<String, ArrayList<SearchResult>> table = null;
+		Hashtable<String, ArrayList<SearchResult>> table = tableInMemory.get(RetrievalEngine);
+		if (table != null)
+			return table;
 
-		try {
-			inputStream = new ObjectInputStream(new FileInputStream(fileName));
+		// Entries can't be saved, while the table is loaded, so none of them is missed
+		synchronized (getEngineLock(RetrievalEngine)) {
+			table = tableInMemory.get(RetrievalEngine);
+			if (table != null)
+				return table;
+
+			// Entries saved so far must be in the file
+			flush();
+			if (!hasCacheFile(RetrievalEngine)) {
+				System.err.println("Cache file '" + getLogFile(RetrievalEngine) + "' doesn't exist!");
+				return null;
+			}
+
+			final Hashtable<String, ArrayList<SearchResult>> loaded 
+			              = new Hashtable<String, ArrayList<SearchResult>>();
 			try {
-				table = (Hashtable<String, ArrayList<SearchResult>>) inputStream.readObject();
-			} catch (ClassNotFoundException e) {
-			  e.printStackTrace();
+				// Later records replace earlier ones
+				getLog(RetrievalEngine).forEach(new WebSearchCacheLog.RecordVisitor() {
+					public void visit(String key, byte[] value) throws IOException {
+						loaded.put(key, decodeEntry(value));
+					}
+				});
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
 			}
-			inputStream.close();
-		} catch (FileNotFoundException e) {
-			System.err.println("Cache file '" + fileName + "' doesn't exist!");
-			//e.printStackTrace();
-			return null;
-		} catch (IOException e) {
-		} finally {
+
+			tableInMemory.put(RetrievalEngine, loaded);
+			return loaded;
+		}
+	}
+
+	/**
+	 * Visits all entries of the retrieval engine without loading the table: 
+	 * entries saved so far are written first, then they are read from the cache file.
+	 * Values are encoded entries (see {@link #decodeEntry(byte[])}). If a key was 
+	 * saved several times, the last visit brings its current value.
+	 * If the table is loaded, a snapshot of the table is visited.
+	 * 
+	 * @return false if the cache file doesn't exist.
+	 */
+	public boolean forEachEntry(String RetrievalEngine, 
+	                            WebSearchCacheLog.RecordVisitor visitor) throws IOException {
+		Hashtable<String, ArrayList<SearchResult>> table = tableInMemory.get(RetrievalEngine);
+		if (table != null) {
+			// The copy is made under the table's lock, the visitor is called without it
+			@SuppressWarnings("unchecked")
+			Hashtable<String, ArrayList<SearchResult>> snapshot 
+			              = (Hashtable<String, ArrayList<SearchResult>>) table.clone();
+			for (Map.Entry<String, ArrayList<SearchResult>> e : snapshot.entrySet())
+				visitor.visit(e.getKey(), encodeEntry(e.getValue()));
+			return true;
 		}
 
+		if (!hasCacheFile(RetrievalEngine))
+			return false;
+		flush();
+		getLog(RetrievalEngine).forEach(visitor);
+		return true;
+	}
+
+	/**
+	 * Retrieves a single cache entry, without loading the whole cache table.
+	 * Entries read from disk are promoted to the memory tier.
+	 * 
+	 * @return the entry or null, if the key is not in the cache.
+	 */
+	public ArrayList<SearchResult> getCacheEntry(String RetrievalEngine, String key) {
+		Hashtable<String, ArrayList<SearchResult>> table = tableInMemory.get(RetrievalEngine);
 		if (table != null)
-			tableInMemory.put(RetrievalEngine, table);
-		if (tableInMemory.isEmpty())
-			System.out.println("tableInMemory after the put command is still empty");
-		return table;
+			return table.get(key);
+
+		String memoryKey = RetrievalEngine + '\t' + key;
+		ArrayList<SearchResult> entry = memoryTier.get(memoryKey);
+		if (entry != null)
+			return entry;
+		entry = pending.get(memoryKey);
+		if (entry != null)
+			return entry;
+
+		try {
+			byte[] value = getLog(RetrievalEngine).read(key);
+			if (value == null)
+				return null;
+			entry = decodeEntry(value);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		memoryTier.put(memoryKey, entry);
+		return entry;
 	}
 
+	/**
+	 * Retrieves several cache entries at once.
+	 * 
+	 * @return found entries, missing keys are not included.
+	 */
+	public Map<String, ArrayList<SearchResult>> getCacheEntries(String RetrievalEngine, 
+	                                                            Collection<String> keys) {
+		HashMap<String, ArrayList<SearchResult>> res = new HashMap<String, ArrayList<SearchResult>>();
+		for (String key : keys) {
+			ArrayList<SearchResult> entry = getCacheEntry(RetrievalEngine, key);
+			if (entry != null)
+				res.put(key, entry);
+		}
+		return res;
+	}
+
+	/**
+	 * @return the memory tier, which provides hit, miss, and eviction counts.
+	 */
+	public BoundedLruCache<String, ArrayList<SearchResult>> getMemoryTier() {
+		return memoryTier;
+	}
+
+	/**
+	 * Saves the cache table. Only the entries, which are not
+	 * in the cache file yet, are written. To replace an entry
+	 * that is already saved, use {@link #saveCacheEntry(String, String, ArrayList)}.
+	 * Entries are written in background, see {@link #flush()}.
+	 */
 	public void saveCache(Hashtable<String, ArrayList<SearchResult>> table, 
 	                      String RetrievalEngine) {
 
@@ -77,23 +278,339 @@ public class WebSearchCache {
 			return;
 		}
 
-		if (tableInMemory.isEmpty()) {
-			System.out
-					.println("tableInMemory is still empty at the save cache stage");
+		synchronized (getEngineLock(RetrievalEngine)) {
+			tableInMemory.put(RetrievalEngine, table);
 		}
 
-		tableInMemory.put(RetrievalEngine, table);
-
 		System.out.println("Writing " + RetrievalEngine + " Cache File");
 
-		String fileName = path + RetrievalEngine + "Cache.txt";
-		ObjectOutputStream outputStream = null;
 		try {
-			outputStream = new ObjectOutputStream(new FileOutputStream(fileName));
-			outputStream.writeObject(table);
-			outputStream.close();
+			WebSearchCacheLog log = getLog(RetrievalEngine);
+			for (Map.Entry<String, ArrayList<SearchResult>> e : table.entrySet()) {
+				if (!log.contains(e.getKey()) && 
+				    !pending.containsKey(RetrievalEngine + '\t' + e.getKey()))
+					enqueue(RetrievalEngine, e.getKey(), e.getValue());
+			}
 		} catch (Exception e) {
 		  e.printStackTrace();
 		} 
 	}
+
+	/**
+	 * Saves (or replaces) a single cache entry, 
+	 * which is also added to the table in memory, if the table is loaded.
+	 * The entry is visible to readers immediately, but it is written 
+	 * in background, see {@link #flush()}.
+	 */
+	public void saveCacheEntry(String RetrievalEngine, 
+	                           String key, ArrayList<SearchResult> entry) {
+		synchronized (getEngineLock(RetrievalEngine)) {
+			Hashtable<String, ArrayList<SearchResult>> table = tableInMemory.get(RetrievalEngine);
+			if (table != null)
+				table.put(key, entry);
+			else
+				memoryTier.put(RetrievalEngine + '\t' + key, entry);
+
+			enqueue(RetrievalEngine, key, entry);
+		}
+	}
+
+	/**
+	 * Saves (or replaces) several cache entries at once.
+	 */
+	public void saveCacheEntries(String RetrievalEngine, 
+	                             Map<String, ArrayList<SearchResult>> entries) {
+		for (Map.Entry<String, ArrayList<SearchResult>> e : entries.entrySet())
+			saveCacheEntry(RetrievalEngine, e.getKey(), e.getValue());
+	}
+
+	/**
+	 * Saves only the entries, which are not cached yet. Concurrent calls 
+	 * for the same retrieval engine are serialized, so that an entry
+	 * is saved only once.
+	 * 
+	 * @return the entries, which were saved.
+	 */
+	public Map<String, ArrayList<SearchResult>> saveNewCacheEntries(String RetrievalEngine, 
+	                                                 Map<String, ArrayList<SearchResult>> entries) {
+		HashMap<String, ArrayList<SearchResult>> saved = new HashMap<String, ArrayList<SearchResult>>();
+		synchronized (getEngineLock(RetrievalEngine)) {
+			for (Map.Entry<String, ArrayList<SearchResult>> e : entries.entrySet()) {
+				if (getCacheEntry(RetrievalEngine, e.getKey()) == null) {
+					saveCacheEntry(RetrievalEngine, e.getKey(), e.getValue());
+					saved.put(e.getKey(), e.getValue());
+				}
+			}
+		}
+		return saved;
+	}
+
+	/**
+	 * Waits until all entries saved so far are written and synced.
+	 */
+	public void flush() {
+		CountDownLatch done = new CountDownLatch(1);
+		synchronized (this) {
+			if (writer == null)
+				return;
+			writeQueue.add(new PendingWrite(null, null, null, done));
+		}
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Writes queued entries and closes cache files.
+	 */
+	public void close() {
+		Thread stopped;
+		synchronized (this) {
+			stopped = writer;
+			if (writer != null) {
+				// The writer isn't interrupted: an interrupt would close the file it writes
+				writeQueue.add(new PendingWrite(null, null, null, null));
+				writeQueue = null;
+				writer = null;
+				try {
+					Runtime.getRuntime().removeShutdownHook(shutdownHook);
+				} catch (IllegalStateException e) {
+					// The JVM is shutting down, the hook is running already
+				}
+				shutdownHook = null;
+			}
+		}
+		if (stopped != null) {
+			try {
+				stopped.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		closeLogs();
+	}
+
+	private synchronized void closeLogs() {
+		for (WebSearchCacheLog log : logs.values()) {
+			try {
+				log.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		logs.clear();
+	}
+
+	private Object getEngineLock(String RetrievalEngine) {
+		Object lock = engineLocks.get(RetrievalEngine);
+		if (lock == null) {
+			Object newLock = new Object();
+			lock = engineLocks.putIfAbsent(RetrievalEngine, newLock);
+			if (lock == null)
+				lock = newLock;
+		}
+		return lock;
+	}
+
+	private WebSearchCacheLog getLog(String RetrievalEngine) throws IOException {
+		WebSearchCacheLog log = logs.get(RetrievalEngine);
+		if (log == null)
+			log = openLog(RetrievalEngine);
+		return log;
+	}
+
+	/*
+	 * Opens the log, if there is no log yet, the old-format cache file is converted.
+	 */
+	private synchronized WebSearchCacheLog openLog(String RetrievalEngine) throws IOException {
+		// Another thread might have opened it
+		WebSearchCacheLog opened = logs.get(RetrievalEngine);
+		if (opened != null)
+			return opened;
+
+		File logFile = getLogFile(RetrievalEngine);
+		boolean isNew = !WebSearchCacheLog.exists(logFile);
+
+		WebSearchCacheLog log = new WebSearchCacheLog(logFile);
+		log.open();
+
+		File legacyFile = getLegacyFile(RetrievalEngine);
+		if (isNew && legacyFile.exists()) {
+			System.out.println("Converting " + legacyFile + " to " + logFile);
+			Hashtable<String, ArrayList<SearchResult>> legacyTable = loadLegacyCache(legacyFile);
+			if (legacyTable != null) {
+				for (Map.Entry<String, ArrayList<SearchResult>> e : legacyTable.entrySet())
+					log.append(e.getKey(), encodeEntry(e.getValue()), false);
+				log.sync();
+			}
+		}
+
+		logs.put(RetrievalEngine, log);
+		return log;
+	}
+
+	private void enqueue(String RetrievalEngine, String key, ArrayList<SearchResult> entry) {
+		pending.put(RetrievalEngine + '\t' + key, entry);
+		synchronized (this) {
+			if (writer == null)
+				startWriter();
+			writeQueue.add(new PendingWrite(RetrievalEngine, key, entry, null));
+		}
+	}
+
+	private synchronized void startWriter() {
+		// A writer stopped by close() may still be draining its own queue
+		final LinkedBlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<PendingWrite>();
+		writeQueue = queue;
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop(queue);
+			}
+		}, "Writer of " + path + "*Cache.log");
+		writer.setDaemon(true);
+		writer.start();
+
+		// Don't lose queued entries, if the application doesn't call close()
+		shutdownHook = new Thread(new Runnable() {
+			public void run() {
+				flush();
+			}
+		});
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/*
+	 * The body of the writer thread: it appends queued entries in batches 
+	 * and syncs the touched logs once per batch. A stop request is the last 
+	 * entry in the queue, so everything queued before it is written.
+	 */
+	private void writeLoop(LinkedBlockingQueue<PendingWrite> queue) {
+		ArrayList<PendingWrite> batch = new ArrayList<PendingWrite>();
+		boolean stop = false;
+
+		while (!stop) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				// Nobody interrupts the writer
+				continue;
+			}
+			queue.drainTo(batch, MAX_WRITE_BATCH);
+
+			HashSet<WebSearchCacheLog> touched = new HashSet<WebSearchCacheLog>();
+			for (PendingWrite w : batch) {
+				if (w.key == null)
+					continue;
+				try {
+					WebSearchCacheLog log = getLog(w.engine);
+					log.append(w.key, encodeEntry(w.entry), false);
+					touched.add(log);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+			for (WebSearchCacheLog log : touched) {
+				try {
+					log.sync();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			for (PendingWrite w : batch) {
+				if (w.key != null) {
+					// Unless the entry was replaced in the meantime
+					pending.remove(w.engine + '\t' + w.key, w.entry);
+				} else if (w.done != null) {
+					w.done.countDown();
+				} else {
+					stop = true;
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	File getLogFile(String RetrievalEngine) {
+		return new File(path + RetrievalEngine + "Cache.log");
+	}
+
+	/**
+	 * @return true if the cache file (or a legacy file, which is converted on opening) exists.
+	 */
+	boolean hasCacheFile(String RetrievalEngine) {
+		return WebSearchCacheLog.exists(getLogFile(RetrievalEngine)) || 
+		       getLegacyFile(RetrievalEngine).exists();
+	}
+
+	File getLegacyFile(String RetrievalEngine) {
+		return new File(path + RetrievalEngine + "Cache.txt");
+	}
+
+	/**
+	 * Estimates the memory occupied by a cache entry.
+	 */
+	public static long estimateSize(ArrayList<SearchResult> entry) {
+		long size = STRING_OVERHEAD; // the entry key and the list itself
+		for (SearchResult r : entry) {
+			size += SEARCH_RESULT_OVERHEAD +
+			        estimateSize(r.getAnswer()) + estimateSize(r.getQuery()) +
+			        estimateSize(r.getDocID()) + estimateSize(r.getCacheID());
+		}
+		return size;
+	}
+
+	private static long estimateSize(String s) {
+		return s == null ? 0 : STRING_OVERHEAD + 2L * s.length();
+	}
+
+	static byte[] encodeEntry(ArrayList<SearchResult> entry) {
+		return SearchResultCodec.encode(entry);
+	}
+
+	/*
+	 * Entries written before SearchResultCodec was introduced are serialized
+	 * Java objects, which are recognized by the serialization stream magic.
+	 */
+	static boolean isSerializedEntry(byte[] value) {
+		return value.length >= 2 && value[0] == (byte) 0xAC && value[1] == (byte) 0xED;
+	}
+
+	@SuppressWarnings("unchecked")
+	static ArrayList<SearchResult> decodeEntry(byte[] value) throws IOException {
+		if (!isSerializedEntry(value))
+			return SearchResultCodec.decode(value);
+
+		ObjectInputStream inputStream = new ObjectInputStream(new ByteArrayInputStream(value));
+		try {
+			return (ArrayList<SearchResult>) inputStream.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Cannot decode a cache entry: " + e);
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static Hashtable<String, ArrayList<SearchResult>> loadLegacyCache(File file) {
+		ObjectInputStream inputStream = null;
+		Hashtable<String, ArrayList<SearchResult>> table = null;
+
+		try {
+			inputStream = new ObjectInputStream(new FileInputStream(file));
+			try {
+				table = (Hashtable<String, ArrayList<SearchResult>>) inputStream.readObject();
+			} catch (ClassNotFoundException e) {
+			  e.printStackTrace();
+			}
+			inputStream.close();
+		} catch (FileNotFoundException e) {
+			System.err.println("Cache file '" + file + "' doesn't exist!");
+			return null;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return table;
+	}
 }
@@ -0,0 +1,292 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>A memory-mapped index of a {@link WebSearchCacheLog}.</p>
+ *
+ * <p>The index maps 64-bit key hashes to record offsets. Entries are sorted
+ * by the hash, so that they can be binary searched right in the mapped file,
+ * without loading anything on heap. A Bloom filter in front of the entries
+ * answers most lookups of missing keys without touching the entries.</p>
+ *
+ * <p>The index covers the log up to a certain offset and is tied to the log
+ * generation: a compacted log gets a new generation, which invalidates
+ * indices built for the old file.</p>
+ */
+class WebSearchCacheIndex {
+  private static final int    MAGIC              = 0x57534349; // "WSCI"
+  private static final int    VERSION            = 1;
+  private static final int    HEADER_SIZE        = 40;
+  private static final int    ENTRY_SIZE         = 16;
+  private static final String TMP_SUFFIX         = ".tmp";
+
+  private static final int    BLOOM_BITS_PER_KEY = 10;
+  private static final int    BLOOM_HASH_QTY     = 7;  // ~1% false positives for 10 bits per key
+
+  private final long       mGeneration;
+  private final long       mCoveredEnd;
+  private final int        mRecordQty;
+  private final int        mEntryQty;
+  private final long       mBloomBitQty;
+  private final ByteBuffer mBuf;
+  private final int        mEntriesStart;
+
+  /**
+   * Creates an empty index, which covers nothing.
+   *
+   * @param generation    the log generation.
+   * @param dataStart     the offset of the first record in the log.
+   */
+  static WebSearchCacheIndex createEmpty(long generation, long dataStart) {
+    return new WebSearchCacheIndex(generation, dataStart, 0, 0, 0, null, 0);
+  }
+
+  /**
+   * Maps an index file into memory.
+   *
+   * @return the index or null, if the file doesn't exist or isn't a valid index.
+   *
+   * @throws IOException
+   */
+  static WebSearchCacheIndex open(File file) throws IOException {
+    new File(file.getPath() + TMP_SUFFIX).delete();
+    if (!file.exists() || file.length() < HEADER_SIZE) return null;
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) return null;
+
+      long generation  = buf.getLong(8);
+      long coveredEnd  = buf.getLong(16);
+      int  recordQty   = buf.getInt(24);
+      int  entryQty    = buf.getInt(28);
+      int  bloomWordQty= buf.getInt(32);
+
+      long entriesStart = HEADER_SIZE + 8L * bloomWordQty;
+      if (entryQty < 0 || bloomWordQty < 0 ||
+          entriesStart + (long)ENTRY_SIZE * entryQty != raf.length()) return null;
+
+      return new WebSearchCacheIndex(generation, coveredEnd, recordQty, entryQty,
+                                     64L * bloomWordQty, buf, (int) entriesStart);
+    } finally {
+      // The mapping stays valid after the file is closed
+      raf.close();
+    }
+  }
+
+  /**
+   * Writes an index file, the file is replaced only after the new index
+   * is completely written.
+   *
+   * @param file          the index file.
+   * @param generation    the log generation.
+   * @param coveredEnd    the log offset, up to which the index covers the log.
+   * @param recordQty     the number of records (including replaced ones) in the covered part.
+   * @param hashes        key hashes, reordered by this function.
+   * @param offsets       record offsets, reordered by this function.
+   * @param qty           the number of entries.
+   *
+   * @throws IOException
+   */
+  static void write(File file, long generation, long coveredEnd, int recordQty,
+                    long hashes[], long offsets[], int qty) throws IOException {
+    sort(hashes, offsets, 0, qty - 1);
+
+    long bloomBitQty = Math.max(64, (long)qty * BLOOM_BITS_PER_KEY);
+    int  bloomWordQty = (int)((bloomBitQty + 63) / 64);
+    long bloom[] = new long[bloomWordQty];
+    bloomBitQty = 64L * bloomWordQty;
+    for (int i = 0; i < qty; ++i) {
+      long h = hashes[i];
+      for (int k = 0; k < BLOOM_HASH_QTY; ++k) {
+        long bit = bloomBit(h, k, bloomBitQty);
+        bloom[(int)(bit >>> 6)] |= 1L << (bit & 63);
+      }
+    }
+
+    File tmp = new File(file.getPath() + TMP_SUFFIX);
+    RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+    try {
+      FileChannel channel = raf.getChannel();
+      channel.truncate(0);
+
+      ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+      buf.putInt(MAGIC);
+      buf.putInt(VERSION);
+      buf.putLong(generation);
+      buf.putLong(coveredEnd);
+      buf.putInt(recordQty);
+      buf.putInt(qty);
+      buf.putInt(bloomWordQty);
+      buf.putInt(0); // padding
+
+      for (int i = 0; i < bloomWordQty; ++i) {
+        if (buf.remaining() < 8) flush(channel, buf);
+        buf.putLong(bloom[i]);
+      }
+      for (int i = 0; i < qty; ++i) {
+        if (buf.remaining() < ENTRY_SIZE) flush(channel, buf);
+        buf.putLong(hashes[i]);
+        buf.putLong(offsets[i]);
+      }
+      flush(channel, buf);
+      channel.force(true);
+    } finally {
+      raf.close();
+    }
+
+    if (!tmp.renameTo(file)) {
+      // Non-POSIX file systems refuse to rename over an existing file
+      if (!file.delete() || !tmp.renameTo(file)) {
+        throw new IOException("Cannot rename '" + tmp + "' to '" + file + "'");
+      }
+    }
+  }
+
+  /**
+   * A 64-bit FNV-1a hash of the key followed by the MurmurHash3 finalizer.
+   */
+  static long hash(String key) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); ++i) {
+      h ^= key.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private WebSearchCacheIndex(long generation, long coveredEnd, int recordQty,
+                              int entryQty, long bloomBitQty,
+                              ByteBuffer buf, int entriesStart) {
+    mGeneration   = generation;
+    mCoveredEnd   = coveredEnd;
+    mRecordQty    = recordQty;
+    mEntryQty     = entryQty;
+    mBloomBitQty  = bloomBitQty;
+    mBuf          = buf;
+    mEntriesStart = entriesStart;
+  }
+
+  long getGeneration() {
+    return mGeneration;
+  }
+
+  long getCoveredEnd() {
+    return mCoveredEnd;
+  }
+
+  int getRecordQty() {
+    return mRecordQty;
+  }
+
+  int size() {
+    return mEntryQty;
+  }
+
+  long hashAt(int i) {
+    return mBuf.getLong(mEntriesStart + i * ENTRY_SIZE);
+  }
+
+  long offsetAt(int i) {
+    return mBuf.getLong(mEntriesStart + i * ENTRY_SIZE + 8);
+  }
+
+  /**
+   * @return false if the index definitely has no entry with this hash.
+   */
+  boolean mightContain(long hash) {
+    if (mEntryQty == 0) return false;
+    for (int k = 0; k < BLOOM_HASH_QTY; ++k) {
+      long bit = bloomBit(hash, k, mBloomBitQty);
+      if ((mBuf.getLong(HEADER_SIZE + (int)(bit >>> 6) * 8) & (1L << (bit & 63))) == 0)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return the position of the first entry, whose hash is not smaller than the given one.
+   */
+  int lowerBound(long hash) {
+    int lo = 0, hi = mEntryQty;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (hashAt(mid) < hash) lo = mid + 1; else hi = mid;
+    }
+    return lo;
+  }
+
+  /*
+   * The k-th Bloom filter bit is computed by double hashing
+   * (Kirsch & Mitzenmacher).
+   */
+  private static long bloomBit(long hash, int k, long bitQty) {
+    long h1 = hash & 0xFFFFFFFFL, h2 = hash >>> 32;
+    return ((h1 + k * h2) & Long.MAX_VALUE) % bitQty;
+  }
+
+  private static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+    buf.flip();
+    while (buf.hasRemaining()) channel.write(buf);
+    buf.clear();
+  }
+
+  /*
+   * Sorts hashes and moves offsets along (Java offers no sort of parallel arrays).
+   */
+  private static void sort(long hashes[], long offsets[], int lo, int hi) {
+    while (hi - lo > 16) {
+      long pivot = hashes[(lo + hi) >>> 1];
+      int i = lo, j = hi;
+      while (i <= j) {
+        while (hashes[i] < pivot) ++i;
+        while (hashes[j] > pivot) --j;
+        if (i <= j) swap(hashes, offsets, i++, j--);
+      }
+      // Recurse into the smaller part to bound the stack depth
+      if (j - lo < hi - i) {
+        sort(hashes, offsets, lo, j);
+        lo = i;
+      } else {
+        sort(hashes, offsets, i, hi);
+        hi = j;
+      }
+    }
+    for (int i = lo + 1; i <= hi; ++i) {
+      for (int j = i; j > lo && hashes[j - 1] > hashes[j]; --j)
+        swap(hashes, offsets, j - 1, j);
+    }
+  }
+
+  private static void swap(long hashes[], long offsets[], int i, int j) {
+    long h = hashes[i]; hashes[i] = hashes[j]; hashes[j] = h;
+    long o = offsets[i]; offsets[i] = offsets[j]; offsets[j] = o;
+  }
+}
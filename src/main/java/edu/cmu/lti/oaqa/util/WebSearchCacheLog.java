@@ -0,0 +1,835 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * <p>An append-only, log-structured file of key/value records.</p>
+ *
+ * <p>Each record is stored as [payload length][CRC32 of payload][payload],
+ * where the payload holds the length of the UTF-8 encoded key, the key itself,
+ * and the value bytes. Records are only ever appended, so a write interrupted
+ * by a crash can damage at most the last record: when the log is opened, it is
+ * truncated right after the last record with a valid checksum.</p>
+ *
+ * <p>Records are located through a memory-mapped {@link WebSearchCacheIndex}
+ * (file &lt;log&gt;.idx), and only the records appended after the index
+ * was written are kept in a small in-memory table. Thus, opening the log
+ * takes nearly constant time, and values are read from the memory-mapped
+ * log only when they are requested.</p>
+ *
+ * <p>Writing the same key again leaves the old record behind as garbage. Once
+ * garbage dominates the file, the log is compacted in a background thread:
+ * live records are copied to a temporary file, which then replaces the log.
+ * Likewise, the index is rebuilt in background, when too many records
+ * are not covered by it.</p>
+ *
+ * <p>The log is thread-safe. Reads don't take locks: everything needed to
+ * locate and read records is published as an immutable state, which is
+ * replaced when the index is rebuilt or the log is compacted. Appends
+ * are serialized.</p>
+ *
+ */
+public class WebSearchCacheLog {
+  /**
+   * Receives records read from the log.
+   */
+  public interface RecordVisitor {
+    void visit(String key, byte[] value) throws IOException;
+  }
+
+  private static final int    MAGIC               = 0x5753434C; // "WSCL"
+  /** Version 2 adds the generation, which ties the log to its index. */
+  private static final int    VERSION             = 2;
+  private static final int    V1_HEADER_SIZE      = 8;
+  private static final int    FILE_HEADER_SIZE    = 16;
+  private static final int    RECORD_HEADER_SIZE  = 8;
+  private static final String TMP_SUFFIX          = ".tmp";
+  private static final String INDEX_SUFFIX        = ".idx";
+  private static final String OLD_SUFFIX          = ".old";
+
+  /** Don't bother compacting logs with fewer records. */
+  private static final int    MIN_COMPACT_RECORDS = 1024;
+  /** Compact when less than this fraction of records is alive. */
+  private static final float  MIN_LIVE_FRACTION   = 0.5f;
+  /** Rebuild the index when this many records are not covered by it. */
+  private static final int    MAX_UNINDEXED_QTY   = 4096;
+
+  private static final Random GENERATOR           = new Random();
+
+  /*
+   * Everything a reader needs: the index and the offsets of the records,
+   * which the index doesn't cover, always match the file. Appends only 
+   * add entries to the table of recent records.
+   */
+  private static class State {
+    final FileChannel                     mChannel;
+    final MappedSegments                  mMapped;
+    final WebSearchCacheIndex             mIndex;
+    final ConcurrentHashMap<String, Long> mRecent;
+
+    State(FileChannel channel, MappedSegments mapped,
+          WebSearchCacheIndex index, ConcurrentHashMap<String, Long> recent) {
+      mChannel = channel;
+      mMapped = mapped;
+      mIndex = index;
+      mRecent = recent;
+    }
+  }
+
+  private final File                mFile;
+  private final File                mIndexFile;
+  private volatile State            mState;
+  /* The fields below are guarded by the object's lock. */
+  private RandomAccessFile          mRaf;
+  private long                      mGeneration;
+  private long                      mDataStart;
+  private long                      mEnd;
+  private int                       mLiveQty = 0;
+  private int                       mRecordQty = 0;
+  private boolean                   mMaintaining = false;
+
+  /**
+   * Checks if the log (or a complete replacement left by an interrupted
+   * compaction) exists.
+   *
+   * @param file    the log file.
+   */
+  public static boolean exists(File file) {
+    return file.exists() || new File(file.getPath() + TMP_SUFFIX).exists();
+  }
+
+  /**
+   * Deletes a closed log with its index and temporary files.
+   *
+   * @param file    the log file.
+   */
+  public static void delete(File file) throws IOException {
+    File[] files = { file, new File(file.getPath() + INDEX_SUFFIX), 
+                     new File(file.getPath() + TMP_SUFFIX), 
+                     new File(file.getPath() + OLD_SUFFIX) };
+    for (File f : files) {
+      if (f.exists() && !f.delete())
+        throw new IOException("Can't delete '" + f + "'");
+    }
+  }
+
+  public WebSearchCacheLog(File file) {
+    mFile = file;
+    mIndexFile = new File(file.getPath() + INDEX_SUFFIX);
+  }
+
+  /**
+   * Opens the log, creating it if necessary. Only the records, which
+   * are not covered by the index, are read.
+   *
+   * @throws IOException
+   */
+  public synchronized void open() throws IOException {
+    File tmp = new File(mFile.getPath() + TMP_SUFFIX);
+    if (tmp.exists()) {
+      /*
+       *  The log is deleted only after its replacement is fully written.
+       *  If it is still present, the compaction didn't finish and the
+       *  temporary file is incomplete.
+       */
+      if (mFile.exists()) {
+        tmp.delete();
+      } else if (!tmp.renameTo(mFile)) {
+        throw new IOException("Cannot rename '" + tmp + "' to '" + mFile + "'");
+      }
+    }
+    File old = new File(mFile.getPath() + OLD_SUFFIX);
+    if (old.exists()) {
+      // The old log was moved aside by a compaction, which was interrupted
+      if (mFile.exists()) {
+        old.delete();
+      } else if (!old.renameTo(mFile)) {
+        throw new IOException("Cannot rename '" + old + "' to '" + mFile + "'");
+      }
+    }
+
+    mRaf = new RandomAccessFile(mFile, "rw");
+    FileChannel channel = mRaf.getChannel();
+    ConcurrentHashMap<String, Long> recent = new ConcurrentHashMap<String, Long>();
+
+    if (channel.size() < V1_HEADER_SIZE) {
+      channel.truncate(0);
+      mGeneration = GENERATOR.nextLong();
+      mDataStart = FILE_HEADER_SIZE;
+      writeFileHeader(channel, mGeneration);
+      channel.force(true);
+      mEnd = mDataStart;
+      mState = new State(channel, new MappedSegments(channel, mEnd),
+                         WebSearchCacheIndex.createEmpty(mGeneration, mDataStart), recent);
+      return;
+    }
+
+    ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+    header.limit(V1_HEADER_SIZE);
+    readFully(channel, header, 0);
+    if (header.getInt(0) != MAGIC) {
+      throw new IOException("'" + mFile + "' is not a cache log");
+    }
+    int version = header.getInt(4);
+    if (version == 1) {
+      // The first version had neither a generation nor an index
+      mGeneration = 0;
+      mDataStart = V1_HEADER_SIZE;
+    } else if (version == VERSION) {
+      header.limit(FILE_HEADER_SIZE);
+      readFully(channel, header, V1_HEADER_SIZE);
+      mGeneration = header.getLong(8);
+      mDataStart = FILE_HEADER_SIZE;
+    } else {
+      throw new IOException("Cache log '" + mFile + "' has an unsupported version " + version);
+    }
+
+    WebSearchCacheIndex index = WebSearchCacheIndex.open(mIndexFile);
+    if (index == null ||
+        index.getGeneration() != mGeneration || version != VERSION ||
+        index.getCoveredEnd() > channel.size()) {
+      index = WebSearchCacheIndex.createEmpty(mGeneration, mDataStart);
+    }
+    mLiveQty = index.size();
+    mRecordQty = index.getRecordQty();
+
+    State state = new State(channel, new MappedSegments(channel, index.getCoveredEnd()),
+                            index, recent);
+    mEnd = scan(state, index.getCoveredEnd());
+    if (mEnd < channel.size()) {
+      System.err.println("Cache log '" + mFile + "' has a damaged tail, truncating it at offset "
+                         + mEnd);
+      channel.truncate(mEnd);
+      channel.force(true);
+    }
+    mState = new State(channel, new MappedSegments(channel, mEnd), index, recent);
+
+    if (version != VERSION) {
+      compact();
+    } else if (recent.size() >= MAX_UNINDEXED_QTY) {
+      rebuildIndex();
+    }
+  }
+
+  /**
+   * @return true if the log has a record for the key.
+   */
+  public boolean contains(String key) throws IOException {
+    while (true) {
+      State state = getState();
+      try {
+        return findOffset(state, key) >= 0;
+      } catch (ClosedChannelException e) {
+        // The log was compacted in the meantime, retry with the new state
+        if (mState == state) throw e;
+      }
+    }
+  }
+
+  /**
+   * @return the number of distinct keys in the log.
+   */
+  public synchronized int size() {
+    return mLiveQty;
+  }
+
+  /**
+   * Reads the value most recently written for the key.
+   *
+   * @return the value or null, if the key is not in the log.
+   *
+   * @throws IOException
+   */
+  public byte[] read(String key) throws IOException {
+    while (true) {
+      State state = getState();
+      try {
+        long offset = findOffset(state, key);
+        if (offset < 0) return null;
+
+        byte[] payload = readPayload(state.mChannel, state.mMapped, offset);
+        int keyLen = ByteBuffer.wrap(payload).getInt();
+        return Arrays.copyOfRange(payload, 4 + keyLen, payload.length);
+      } catch (ClosedChannelException e) {
+        // The log was compacted in the meantime, retry with the new state
+        if (mState == state) throw e;
+      }
+    }
+  }
+
+  /**
+   * Reads all records sequentially, in the order of writing.
+   * Thus, if a key was written several times, the last visit
+   * brings its current value. The log is not locked while records 
+   * are visited, so appends don't wait for a slow visitor;
+   * records appended in the meantime are not visited.
+   *
+   * @param visitor   receives the records.
+   *
+   * @throws IOException  e.g., if the log is compacted in the meantime.
+   */
+  public void forEach(RecordVisitor visitor) throws IOException {
+    State state;
+    long start, end;
+    synchronized (this) {
+      state = getState();
+      start = mDataStart;
+      end = mEnd;
+    }
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+                                new PositionalInputStream(state.mChannel, start), 1 << 16));
+    for (long pos = start; pos < end; ) {
+      int len = in.readInt();
+      in.readInt(); // The checksum was verified when the record was written or opened
+      byte[] payload = new byte[len];
+      in.readFully(payload);
+
+      int keyLen = ByteBuffer.wrap(payload).getInt();
+      visitor.visit(decodeKey(payload), Arrays.copyOfRange(payload, 4 + keyLen, len));
+      pos += RECORD_HEADER_SIZE + len;
+    }
+  }
+
+  /**
+   * Appends a record and makes sure it reaches the disk.
+   *
+   * @param key     a key.
+   * @param value   a value.
+   *
+   * @throws IOException
+   */
+  public void append(String key, byte[] value) throws IOException {
+    append(key, value, true);
+  }
+
+  /**
+   * Appends a record.
+   *
+   * @param key     a key.
+   * @param value   a value.
+   * @param sync    if true, make sure the record reaches the disk, otherwise
+   *                {@link #sync()} should be called after a batch of appends.
+   *
+   * @throws IOException
+   */
+  public synchronized void append(String key, byte[] value, boolean sync) throws IOException {
+    State state = getState();
+    boolean isNew = findOffset(state, key) < 0;
+
+    ByteBuffer buf = encodeRecord(key, value);
+    try {
+      writeFully(state.mChannel, buf, mEnd);
+      if (sync) state.mChannel.force(false);
+    } catch (IOException e) {
+      // Don't leave a partial record, otherwise the next append would follow garbage
+      state.mChannel.truncate(mEnd);
+      throw e;
+    }
+    // The record is published only after it is written
+    state.mRecent.put(key, mEnd);
+    mEnd += buf.limit();
+    ++mRecordQty;
+    if (isNew) ++mLiveQty;
+
+    final boolean needCompact = mRecordQty >= MIN_COMPACT_RECORDS &&
+                                mLiveQty < MIN_LIVE_FRACTION * mRecordQty;
+
+    if (!mMaintaining && (needCompact || state.mRecent.size() >= MAX_UNINDEXED_QTY)) {
+      mMaintaining = true;
+      Thread maintainer = new Thread(new Runnable() {
+        public void run() {
+          try {
+            if (needCompact) compact(); else rebuildIndex();
+          } catch (IOException e) {
+            System.err.println("Failed to " + (needCompact ? "compact" : "index") +
+                               " cache log '" + mFile + "'");
+            e.printStackTrace();
+          } finally {
+            synchronized (WebSearchCacheLog.this) {
+              mMaintaining = false;
+              WebSearchCacheLog.this.notifyAll();
+            }
+          }
+        }
+      }, "Maintenance of " + mFile.getName());
+      maintainer.setDaemon(true);
+      maintainer.start();
+    }
+  }
+
+  /**
+   * Makes sure appended records reach the disk.
+   */
+  public synchronized void sync() throws IOException {
+    getState().mChannel.force(false);
+  }
+
+  /**
+   * Closes the log, the index is updated first, so that
+   * the next opening doesn't need to read any records.
+   */
+  public synchronized void close() throws IOException {
+    // Let the background compaction or indexing finish
+    while (mMaintaining) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    if (mRaf != null) {
+      if (!mMaintaining && !mState.mRecent.isEmpty()) rebuildIndex();
+      mState = null;
+      mRaf.close();
+      mRaf = null;
+    }
+  }
+
+  /**
+   * Writes a new index covering all records written so far.
+   * Appends are allowed while the index is written, such records are
+   * kept in memory until the next rebuild.
+   */
+  void rebuildIndex() throws IOException {
+    WebSearchCacheIndex     index;
+    HashMap<String, Long>   recent;
+    FileChannel             channel;
+    MappedSegments          mapped;
+    long                    generation, snapshotEnd;
+    int                     recordQty;
+
+    synchronized (this) {
+      State state = getState();
+      index = state.mIndex;
+      recent = new HashMap<String, Long>(state.mRecent);
+      channel = state.mChannel;
+      mapped = state.mMapped;
+      generation = mGeneration;
+      snapshotEnd = mEnd;
+      recordQty = mRecordQty;
+    }
+
+    // Index entries of the keys that were written again
+    HashSet<Long> replaced = new HashSet<Long>();
+    for (String key : recent.keySet()) {
+      long offset = findInIndex(index, channel, mapped, key);
+      if (offset >= 0) replaced.add(offset);
+    }
+
+    int qty = index.size() - replaced.size() + recent.size();
+    long hashes[] = new long[qty], offsets[] = new long[qty];
+    int n = 0;
+    for (int i = 0; i < index.size(); ++i) {
+      long offset = index.offsetAt(i);
+      if (!replaced.contains(offset)) {
+        hashes[n] = index.hashAt(i);
+        offsets[n++] = offset;
+      }
+    }
+    for (Map.Entry<String, Long> e : recent.entrySet()) {
+      hashes[n] = WebSearchCacheIndex.hash(e.getKey());
+      offsets[n++] = e.getValue();
+    }
+
+    WebSearchCacheIndex.write(mIndexFile, generation, snapshotEnd, recordQty, hashes, offsets, n);
+
+    synchronized (this) {
+      State state = mState;
+      if (state == null || state.mChannel != channel) {
+        throw new IOException("Cache log '" + mFile + "' was closed during indexing");
+      }
+      mState = new State(channel, new MappedSegments(channel, mEnd),
+                         WebSearchCacheIndex.open(mIndexFile),
+                         recordsAfter(state.mRecent, snapshotEnd));
+    }
+  }
+
+  /**
+   * Rewrites the log so that it keeps only the latest record for each key.
+   * Appends are allowed while live records are copied, they are
+   * transferred to the new file right before it replaces the old one.
+   */
+  void compact() throws IOException {
+    WebSearchCacheIndex     index;
+    HashMap<String, Long>   recent;
+    FileChannel             src;
+    MappedSegments          mapped;
+    long                    snapshotEnd;
+
+    synchronized (this) {
+      State state = getState();
+      index = state.mIndex;
+      recent = new HashMap<String, Long>(state.mRecent);
+      src = state.mChannel;
+      mapped = state.mMapped;
+      snapshotEnd = mEnd;
+    }
+
+    HashSet<Long> replaced = new HashSet<Long>();
+    for (String key : recent.keySet()) {
+      long offset = findInIndex(index, src, mapped, key);
+      if (offset >= 0) replaced.add(offset);
+    }
+    long live[] = new long[index.size() - replaced.size() + recent.size()];
+    int n = 0;
+    for (int i = 0; i < index.size(); ++i) {
+      long offset = index.offsetAt(i);
+      if (!replaced.contains(offset)) live[n++] = offset;
+    }
+    for (Long offset : recent.values()) live[n++] = offset;
+    // Copy records in the file order to read the old log sequentially
+    Arrays.sort(live);
+
+    long generation = GENERATOR.nextLong();
+    long hashes[] = new long[live.length], offsets[] = new long[live.length];
+
+    File tmp = new File(mFile.getPath() + TMP_SUFFIX);
+    RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+    try {
+      FileChannel dst = out.getChannel();
+      dst.truncate(0);
+      writeFileHeader(dst, generation);
+
+      long pos = FILE_HEADER_SIZE;
+      for (int i = 0; i < live.length; ++i) {
+        ByteBuffer record = readRecord(src, mapped, live[i]);
+        hashes[i] = WebSearchCacheIndex.hash(decodeKey(record.array(), RECORD_HEADER_SIZE));
+        offsets[i] = pos;
+        pos += writeFully(dst, record, pos);
+      }
+      WebSearchCacheIndex.write(mIndexFile, generation, pos, live.length,
+                                hashes, offsets, live.length);
+
+      synchronized (this) {
+        State state = mState;
+        if (state == null || state.mChannel != src) {
+          throw new IOException("Cache log '" + mFile + "' was closed during compaction");
+        }
+        int recordQty = live.length;
+
+        // Records appended in the meantime
+        ConcurrentHashMap<String, Long> newRecent = new ConcurrentHashMap<String, Long>();
+        for (long srcPos = snapshotEnd; srcPos < mEnd; ++recordQty) {
+          ByteBuffer record = readRecord(src, state.mMapped, srcPos);
+          newRecent.put(decodeKey(record.array(), RECORD_HEADER_SIZE), pos);
+          srcPos += record.limit();
+          pos += writeFully(dst, record, pos);
+        }
+        dst.force(true);
+        out.close();
+        out = null;
+
+        RandomAccessFile oldRaf = mRaf;
+        if (!tmp.renameTo(mFile)) {
+          /*
+           * Non-POSIX file systems refuse to rename over an existing (and open) file:
+           * the old log is moved aside and deleted only after the new one replaces it.
+           */
+          File old = new File(mFile.getPath() + OLD_SUFFIX);
+          oldRaf.close();
+          boolean movedAside = mFile.renameTo(old);
+          if (!movedAside || !tmp.renameTo(mFile)) {
+            mRaf = null;
+            mState = null;
+            // Otherwise the replacement is complete and open() will put it in place
+            if (!movedAside || old.renameTo(mFile)) {
+              // Keep using the old log, its index is still valid in memory
+              tmp.delete();
+              mRaf = new RandomAccessFile(mFile, "rw");
+              FileChannel channel = mRaf.getChannel();
+              mState = new State(channel, new MappedSegments(channel, mEnd), 
+                                 state.mIndex, state.mRecent);
+            }
+            throw new IOException("Cannot rename '" + tmp + "' to '" + mFile + "'");
+          }
+          old.delete();
+        }
+        mRaf = new RandomAccessFile(mFile, "rw");
+        FileChannel channel = mRaf.getChannel();
+        mGeneration = generation;
+        mDataStart = FILE_HEADER_SIZE;
+        mEnd = pos;
+        mRecordQty = recordQty;
+        mState = new State(channel, new MappedSegments(channel, pos),
+                           WebSearchCacheIndex.open(mIndexFile), newRecent);
+        // Readers, which still use the old state, will retry with the new one
+        oldRaf.close();
+      }
+    } finally {
+      if (out != null) {
+        out.close();
+        tmp.delete();
+      }
+    }
+  }
+
+  private State getState() throws IOException {
+    State state = mState;
+    if (state == null) throw new IOException("Cache log '" + mFile + "' is closed");
+    return state;
+  }
+
+  private static long findOffset(State state, String key) throws IOException {
+    Long offset = state.mRecent.get(key);
+    if (offset != null) return offset;
+    return findInIndex(state.mIndex, state.mChannel, state.mMapped, key);
+  }
+
+  private static long findInIndex(WebSearchCacheIndex index,
+                                  FileChannel channel, MappedSegments mapped,
+                                  String key) throws IOException {
+    long hash = WebSearchCacheIndex.hash(key);
+    if (!index.mightContain(hash)) return -1;
+
+    for (int i = index.lowerBound(hash); i < index.size() && index.hashAt(i) == hash; ++i) {
+      long offset = index.offsetAt(i);
+      if (key.equals(readKey(channel, mapped, offset))) return offset;
+    }
+    return -1;
+  }
+
+  /*
+   * Reads records starting from the given offset and stops
+   * at the first damaged or incomplete record.
+   *
+   * @return the offset right after the last valid record.
+   */
+  private long scan(State state, long pos) throws IOException {
+    long size = state.mChannel.size();
+    DataInputStream in = openStream(state.mChannel, pos);
+    CRC32 crc = new CRC32();
+
+    try {
+      while (pos + RECORD_HEADER_SIZE <= size) {
+        int len = in.readInt();
+        int checksum = in.readInt();
+        if (len < 4 || pos + RECORD_HEADER_SIZE + len > size) break;
+
+        byte[] payload = new byte[len];
+        in.readFully(payload);
+        crc.reset();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) break;
+
+        String key = decodeKey(payload);
+        if (findOffset(state, key) < 0) {
+          ++mLiveQty;
+        }
+        state.mRecent.put(key, pos);
+        ++mRecordQty;
+        pos += RECORD_HEADER_SIZE + len;
+      }
+    } catch (EOFException e) {
+      // A truncated record, pos points to its start
+    }
+
+    return pos;
+  }
+
+  /*
+   * Reads a channel from a position without changing the position of the channel,
+   * so that several readers can read concurrently.
+   */
+  private static class PositionalInputStream extends InputStream {
+    private final FileChannel mChannel;
+    private long              mPos;
+
+    PositionalInputStream(FileChannel channel, long pos) {
+      mChannel = channel;
+      mPos = pos;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int qty = mChannel.read(ByteBuffer.wrap(b, off, len), mPos);
+      if (qty > 0) mPos += qty;
+      return qty;
+    }
+  }
+
+  private static DataInputStream openStream(FileChannel channel, long pos) throws IOException {
+    channel.position(pos);
+    return new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+  }
+
+  private static ConcurrentHashMap<String, Long> recordsAfter(Map<String, Long> offsets,
+                                                              long start) {
+    ConcurrentHashMap<String, Long> res = new ConcurrentHashMap<String, Long>();
+    for (Map.Entry<String, Long> e : offsets.entrySet()) {
+      if (e.getValue() >= start) res.put(e.getKey(), e.getValue());
+    }
+    return res;
+  }
+
+  private static ByteBuffer encodeRecord(String key, byte[] value) throws IOException {
+    byte[] keyBytes = key.getBytes("UTF-8");
+    int len = 4 + keyBytes.length + value.length;
+
+    ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_SIZE + len);
+    buf.putInt(len);
+    buf.putInt(0); // the checksum is computed below
+    buf.putInt(keyBytes.length);
+    buf.put(keyBytes);
+    buf.put(value);
+
+    CRC32 crc = new CRC32();
+    crc.update(buf.array(), RECORD_HEADER_SIZE, len);
+    buf.putInt(4, (int) crc.getValue());
+    buf.flip();
+
+    return buf;
+  }
+
+  private static String decodeKey(byte[] payload) throws IOException {
+    return decodeKey(payload, 0);
+  }
+
+  private static String decodeKey(byte[] buf, int payloadStart) throws IOException {
+    int keyLen = ByteBuffer.wrap(buf).getInt(payloadStart);
+    return new String(buf, payloadStart + 4, keyLen, "UTF-8");
+  }
+
+  private static String readKey(FileChannel channel, MappedSegments mapped, long pos)
+                               throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE + 4);
+    read(channel, mapped, header, pos);
+    ByteBuffer key = ByteBuffer.allocate(header.getInt(RECORD_HEADER_SIZE));
+    read(channel, mapped, key, pos + RECORD_HEADER_SIZE + 4);
+    return new String(key.array(), "UTF-8");
+  }
+
+  private static byte[] readPayload(FileChannel channel, MappedSegments mapped, long pos)
+                                   throws IOException {
+    ByteBuffer record = readRecord(channel, mapped, pos);
+    return Arrays.copyOfRange(record.array(), RECORD_HEADER_SIZE, record.limit());
+  }
+
+  /*
+   * Reads the whole record including its header,
+   * the buffer is ready to be written.
+   */
+  private static ByteBuffer readRecord(FileChannel channel, MappedSegments mapped, long pos)
+                                      throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    read(channel, mapped, header, pos);
+
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + header.getInt(0));
+    read(channel, mapped, record, pos);
+    record.flip();
+    return record;
+  }
+
+  private static void writeFileHeader(FileChannel channel, long generation) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+    header.putInt(MAGIC);
+    header.putInt(VERSION);
+    header.putLong(generation);
+    header.flip();
+    writeFully(channel, header, 0);
+  }
+
+  /*
+   * Reads from the mapped part of the log if possible.
+   */
+  private static void read(FileChannel channel, MappedSegments mapped,
+                           ByteBuffer buf, long pos) throws IOException {
+    if (!mapped.read(buf, pos)) readFully(channel, buf, pos);
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+    while (buf.hasRemaining()) {
+      int qty = channel.read(buf, pos);
+      if (qty < 0) throw new EOFException("Unexpected end of the cache log");
+      pos += qty;
+    }
+  }
+
+  private static int writeFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+    int qty = 0;
+    while (buf.hasRemaining()) {
+      qty += channel.write(buf, pos + qty);
+    }
+    return qty;
+  }
+
+  /*
+   * A read-only mapping of the file prefix. The prefix is split into segments,
+   * because a single mapping can't exceed 2GB.
+   */
+  private static class MappedSegments {
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    private final MappedByteBuffer  mSegments[];
+    private final long              mLength;
+
+    MappedSegments(FileChannel channel, long length) throws IOException {
+      mLength = length;
+      mSegments = new MappedByteBuffer[(int)((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+      for (int i = 0; i < mSegments.length; ++i) {
+        long start = (long) i * SEGMENT_SIZE;
+        mSegments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                   Math.min(SEGMENT_SIZE, length - start));
+      }
+    }
+
+    /**
+     * Fills the remaining part of the buffer.
+     *
+     * @return false if the data is not (entirely) mapped.
+     */
+    boolean read(ByteBuffer buf, long pos) {
+      if (pos + buf.remaining() > mLength) return false;
+
+      while (buf.hasRemaining()) {
+        // A duplicate has its own position, so that concurrent reads don't interfere
+        ByteBuffer segment = mSegments[(int)(pos / SEGMENT_SIZE)].duplicate();
+        segment.position((int)(pos % SEGMENT_SIZE));
+        int qty = Math.min(segment.remaining(), buf.remaining());
+        segment.limit(segment.position() + qty);
+        buf.put(segment);
+        pos += qty;
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A one-shot tool converting web search caches to the current format,
+ * i.e., to a compacted log, whose entries are encoded by {@link SearchResultCodec}.
+ *
+ * <p>The input is either an old-format cache, i.e., the whole table serialized
+ * to &lt;input path&gt;&lt;engine&gt;Cache.txt, or a cache log, whose entries
+ * were serialized by Java. The input is not modified.</p>
+ *
+ * <p>Usage: WebSearchCacheMigrator &lt;input path&gt; &lt;output path&gt; &lt;engine&gt; ...</p>
+ *
+ */
+public class WebSearchCacheMigrator {
+
+  /**
+   * Converts the cache of one retrieval engine.
+   *
+   * @param input           the input cache.
+   * @param output          the output cache, must be different from input.
+   * @param retrievalEngine the retrieval engine, e.g., Bing.
+   *
+   * @return the number of converted entries.
+   *
+   * @throws IOException
+   */
+  public static int migrate(WebSearchCache input, WebSearchCache output,
+                            String retrievalEngine) throws IOException {
+    File outFile = output.getLogFile(retrievalEngine);
+    if (WebSearchCacheLog.exists(outFile)) {
+      throw new IOException("The output cache '" + outFile + "' already exists");
+    }
+
+    // Encoded entries are small, which lets us drop replaced entries before writing
+    final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+
+    File inLog = input.getLogFile(retrievalEngine);
+    File inLegacy = input.getLegacyFile(retrievalEngine);
+
+    if (WebSearchCacheLog.exists(inLog)) {
+      WebSearchCacheLog log = new WebSearchCacheLog(inLog);
+      log.open();
+      try {
+        log.forEach(new WebSearchCacheLog.RecordVisitor() {
+          public void visit(String key, byte[] value) throws IOException {
+            if (WebSearchCache.isSerializedEntry(value)) {
+              value = WebSearchCache.encodeEntry(WebSearchCache.decodeEntry(value));
+            }
+            entries.put(key, value);
+          }
+        });
+      } finally {
+        log.close();
+      }
+    } else if (inLegacy.exists()) {
+      Hashtable<String, ArrayList<SearchResult>> table = WebSearchCache.loadLegacyCache(inLegacy);
+      if (table == null) {
+        throw new IOException("Cannot read the cache '" + inLegacy + "'");
+      }
+      for (Map.Entry<String, ArrayList<SearchResult>> e : table.entrySet()) {
+        entries.put(e.getKey(), WebSearchCache.encodeEntry(e.getValue()));
+      }
+    } else {
+      throw new IOException("Neither '" + inLog + "' nor '" + inLegacy + "' exists");
+    }
+
+    WebSearchCacheLog log = new WebSearchCacheLog(outFile);
+    log.open();
+    try {
+      for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+        log.append(e.getKey(), e.getValue(), false);
+      }
+      log.sync();
+    } finally {
+      log.close();
+    }
+
+    return entries.size();
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 3) {
+      System.err.println("Usage: WebSearchCacheMigrator <input path> <output path> <engine> ...");
+      System.exit(1);
+    }
+    WebSearchCache input  = new WebSearchCache(args[0]);
+    WebSearchCache output = new WebSearchCache(args[1]);
+
+    for (int i = 2; i < args.length; ++i) {
+      String engine = args[i];
+      long start = System.currentTimeMillis();
+      int qty = migrate(input, output, engine);
+
+      File inFile = input.getLogFile(engine).exists() ?
+                      input.getLogFile(engine) : input.getLegacyFile(engine);
+      System.out.println(engine + ": converted " + qty + " entries in "
+                         + (System.currentTimeMillis() - start) + " ms, "
+                         + inFile.length() + " -> " + output.getLogFile(engine).length()
+                         + " bytes");
+    }
+  }
+}
@@ -0,0 +1,328 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>A server, which lets several processes (possibly on different nodes)
+ * share one {@link WebSearchCache}. Clients are {@link RemoteWebSearchCache}s.</p>
+ *
+ * <p>The protocol is a simple binary one over TCP: a client sends a request
+ * and waits for the response, connections are reused for many requests.
+ * Each request starts with an operation code and the name of the retrieval
+ * engine. Gets and puts carry batches of keys, entries are encoded by
+ * {@link SearchResultCodec}. Each connection is served by its own thread,
+ * which is fine, because the cache is thread-safe.</p>
+ *
+ * <p>By default, the server listens on the loopback interface only.</p>
+ *
+ * <p>Usage: WebSearchCacheServer &lt;cache path&gt; [&lt;port&gt; [&lt;bind address&gt;]]</p>
+ */
+public class WebSearchCacheServer {
+  public static final int   DEFAULT_PORT    = 7878;
+
+  /* Operation codes */
+  static final int          OP_GET          = 1;
+  static final int          OP_PUT          = 2;
+  /** Puts only entries that are not cached yet. */
+  static final int          OP_PUT_NEW      = 3;
+  /** Streams all entries of the engine, a null key marks the end. */
+  static final int          OP_LOAD         = 4;
+  static final int          OP_FLUSH        = 5;
+
+  static final int          STATUS_OK       = 0;
+  static final int          STATUS_ERROR    = 1;
+
+  /** Protects from allocating huge buffers when a stream is out of sync. */
+  private static final int  MAX_FIELD_SIZE  = 64 << 20;
+  /** The maximum number of keys in a request, clients split larger batches. */
+  static final int          MAX_BATCH_SIZE  = 100000;
+
+  private static final Charset UTF8         = Charset.forName("UTF-8");
+
+  private final WebSearchCache  mCache;
+  private final ServerSocket    mServerSocket;
+  private final Set<Socket>     mClients = Collections.synchronizedSet(new HashSet<Socket>());
+  private Thread                mAcceptor;
+  private volatile boolean      mStopped = false;
+
+  /**
+   * Binds the server socket, call {@link #start()} to accept connections.
+   *
+   * @param cache         the cache to serve.
+   * @param port          the port, 0 means any free port (see {@link #getPort()}).
+   * @param bindAddress   the address to listen on, null means the loopback interface.
+   *
+   * @throws IOException
+   */
+  public WebSearchCacheServer(WebSearchCache cache, int port, InetAddress bindAddress)
+                              throws IOException {
+    mCache = cache;
+    mServerSocket = new ServerSocket();
+    mServerSocket.setReuseAddress(true);
+    mServerSocket.bind(new InetSocketAddress(
+        bindAddress != null ? bindAddress : InetAddress.getByName(null), port));
+  }
+
+  public int getPort() {
+    return mServerSocket.getLocalPort();
+  }
+
+  public synchronized void start() {
+    mAcceptor = new Thread(new Runnable() {
+      public void run() {
+        acceptLoop();
+      }
+    }, "WebSearchCacheServer acceptor");
+    mAcceptor.start();
+  }
+
+  /**
+   * Stops accepting connections, drops connected clients and flushes the cache.
+   * The cache is not closed.
+   */
+  public void stop() {
+    mStopped = true;
+    try {
+      mServerSocket.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    synchronized (mClients) {
+      for (Socket s : mClients) {
+        closeQuietly(s);
+      }
+    }
+    Thread acceptor;
+    synchronized (this) {
+      acceptor = mAcceptor;
+    }
+    if (acceptor != null) {
+      try {
+        acceptor.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    mCache.flush();
+  }
+
+  private void acceptLoop() {
+    while (!mStopped) {
+      final Socket socket;
+      try {
+        socket = mServerSocket.accept();
+      } catch (IOException e) {
+        if (!mStopped) e.printStackTrace();
+        continue;
+      }
+      mClients.add(socket);
+      Thread t = new Thread(new Runnable() {
+        public void run() {
+          try {
+            serve(socket);
+          } finally {
+            mClients.remove(socket);
+            closeQuietly(socket);
+          }
+        }
+      }, "WebSearchCacheServer client " + socket.getRemoteSocketAddress());
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  private void serve(Socket socket) {
+    try {
+      socket.setTcpNoDelay(true);
+      DataInputStream  in  = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+      while (true) {
+        int op;
+        try {
+          op = in.readUnsignedByte();
+        } catch (EOFException e) {
+          return; // The client closed the connection
+        }
+        String engine = readString(in);
+
+        switch (op) {
+          case OP_GET: {
+            int qty = in.readInt();
+            if (!checkBatchSize(qty, out)) return;
+            ArrayList<String> keys = new ArrayList<String>(qty);
+            for (int i = 0; i < qty; ++i) keys.add(readString(in));
+
+            Map<String, ArrayList<SearchResult>> found = mCache.getCacheEntries(engine, keys);
+            out.writeByte(STATUS_OK);
+            for (String key : keys) {
+              ArrayList<SearchResult> entry = found.get(key);
+              writeBytes(out, entry != null ? WebSearchCache.encodeEntry(entry) : null);
+            }
+            break;
+          }
+          case OP_PUT:
+          case OP_PUT_NEW: {
+            int qty = in.readInt();
+            if (!checkBatchSize(qty, out)) return;
+            LinkedHashMap<String, ArrayList<SearchResult>> entries
+                = new LinkedHashMap<String, ArrayList<SearchResult>>();
+            for (int i = 0; i < qty; ++i) {
+              String key = readString(in);
+              entries.put(key, WebSearchCache.decodeEntry(readBytes(in)));
+            }
+            if (op == OP_PUT_NEW)
+              mCache.saveNewCacheEntries(engine, entries);
+            else
+              mCache.saveCacheEntries(engine, entries);
+            out.writeByte(STATUS_OK);
+            break;
+          }
+          case OP_LOAD: {
+            if (!mCache.hasCacheFile(engine)) {
+              out.writeByte(STATUS_ERROR);
+              writeString(out, "Cannot load the cache of '" + engine + "'");
+              break;
+            }
+            out.writeByte(STATUS_OK);
+            // Entries are streamed from the cache file, the table isn't kept
+            // in memory; the end is marked by a null key
+            final DataOutputStream entryOut = out;
+            mCache.forEachEntry(engine, new WebSearchCacheLog.RecordVisitor() {
+              public void visit(String key, byte[] value) throws IOException {
+                writeString(entryOut, key);
+                writeBytes(entryOut, value);
+              }
+            });
+            writeString(out, null);
+            break;
+          }
+          case OP_FLUSH:
+            mCache.flush();
+            out.writeByte(STATUS_OK);
+            break;
+          default:
+            // The stream can't be resynchronized
+            out.writeByte(STATUS_ERROR);
+            writeString(out, "Unknown operation: " + op);
+            out.flush();
+            return;
+        }
+        out.flush();
+      }
+    } catch (SocketException e) {
+      // The connection was reset or the server is stopping
+      if (!mStopped) System.err.println("WebSearchCacheServer: " + e);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /*
+   * Answers an invalid number of keys with an error, the rest of the request
+   * can't be skipped, so the connection must be closed then.
+   */
+  private static boolean checkBatchSize(int qty, DataOutputStream out) throws IOException {
+    if (qty >= 0 && qty <= MAX_BATCH_SIZE) return true;
+    out.writeByte(STATUS_ERROR);
+    writeString(out, "Invalid number of keys: " + qty);
+    out.flush();
+    return false;
+  }
+
+  /*
+   * Strings are written as a length followed by UTF-8 bytes: unlike writeUTF,
+   * this has no 64K limit. Byte arrays are written likewise, -1 means null.
+   */
+  static void writeString(DataOutputStream out, String s) throws IOException {
+    writeBytes(out, s != null ? s.getBytes(UTF8) : null);
+  }
+
+  static String readString(DataInputStream in) throws IOException {
+    byte[] b = readBytes(in);
+    return b != null ? new String(b, UTF8) : null;
+  }
+
+  static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+    if (b == null) {
+      out.writeInt(-1);
+    } else {
+      out.writeInt(b.length);
+      out.write(b);
+    }
+  }
+
+  static byte[] readBytes(DataInputStream in) throws IOException {
+    int len = in.readInt();
+    if (len < 0) return null;
+    if (len > MAX_FIELD_SIZE) {
+      throw new IOException("WebSearchCacheServer: a field is too large (" + len + " bytes)");
+    }
+    byte[] b = new byte[len];
+    in.readFully(b);
+    return b;
+  }
+
+  static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Nothing to do
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: WebSearchCacheServer <cache path> [<port> [<bind address>]]");
+      System.exit(1);
+    }
+    int         port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+    InetAddress addr = args.length > 2 ? InetAddress.getByName(args[2]) : null;
+
+    final WebSearchCache cache = new WebSearchCache(args[0]);
+    final WebSearchCacheServer server = new WebSearchCacheServer(cache, port, addr);
+
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      public void run() {
+        server.stop();
+        cache.close();
+      }
+    }));
+
+    server.start();
+    System.out.println("Serving the cache '" + args[0] + "' on "
+                       + server.mServerSocket.getLocalSocketAddress());
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import java.util.ArrayList;
+
+/**
+ * A search engine backend, e.g., Bing ({@link BingSearcher}), a local 
+ * Solr index ({@link SolrPassageSearcher}), or recorded results 
+ * ({@link ReplaySearcher}). Several backends can be queried at once 
+ * by {@link FederatedSearcher}.
+ *
+ * <p>Implementations must be thread-safe.</p>
+ */
+public interface WebSearcher {
+  /**
+   * @return the name of the engine, which is also the namespace 
+   *         of its entries in {@link WebSearchCache}. 
+   */
+  String getEngineId();
+
+  /**
+   * Retrieves results ordered by relevance, scores are engine-specific.
+   * Results of a single engine are ordered by the hit position, while
+   * results merged from several engines (see {@link FederatedSearcher}) are 
+   * ordered by normalized scores and keep hit positions of their engines.
+   */
+  ArrayList<SearchResult> retrieveDocuments(String query) throws Exception;
+
+  /**
+   * Retrieves results within a latency budget. Results that are returned, 
+   * when the budget runs out, are marked incomplete 
+   * (see {@link SearchResultList#isIncomplete()}). Engines that can't 
+   * limit the latency, ignore the budget.
+   */
+  ArrayList<SearchResult> retrieveDocuments(String query, long budgetMs) throws Exception;
+}
@@ -0,0 +1,198 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SearchResultCodecTest {
+  @Test
+  public void testSameQuery() throws IOException {
+    ArrayList<SearchResult> results = new ArrayList<SearchResult>();
+    results.add(createResult("first answer", "a query", "doc1", 0, 2.5f, 1.0f, "Bing"));
+    results.add(createResult("second answer", "a query", null, 1, 1.5f, 0.5f, null));
+    results.add(createResult("third answer", "a query", "doc3", -1, 0, 0, null));
+
+    byte[] data = SearchResultCodec.encode(results);
+    assertResults(results, SearchResultCodec.decode(data));
+  }
+
+  @Test
+  public void testDifferentQueries() throws IOException {
+    List<SearchResult> results = Arrays.asList(
+        createResult("first answer", "a query", "doc1", 0, 1, 1, null),
+        createResult("second answer", "A  Query", "doc2", 1, 0, 0, null),
+        createResult("third answer", null, "doc3", 2, 0, 0, null));
+
+    assertResults(results, SearchResultCodec.decode(SearchResultCodec.encode(results)));
+  }
+
+  @Test
+  public void testEmpty() throws IOException {
+    SearchResultList decoded = SearchResultCodec.decode(
+        SearchResultCodec.encode(new ArrayList<SearchResult>()));
+    assertTrue(decoded.isEmpty());
+    assertEquals(0, decoded.getDepth());
+  }
+
+  @Test
+  public void testVarInts() throws IOException {
+    // Hit positions and string lengths take one to five bytes
+    int hitPos[] = {-1, 0, 126, 127, 128, 16383, 16384, 2097152, Integer.MAX_VALUE - 1};
+    ArrayList<SearchResult> results = new ArrayList<SearchResult>();
+    for (int i = 0; i < hitPos.length; ++i)
+      results.add(createResult(repeat("a", i * 50), "q", "doc" + i, hitPos[i], i, 0, null));
+    results.add(createResult(repeat("é中", 20000), "q", "long", 0, 0, 0, null));
+
+    assertResults(results, SearchResultCodec.decode(SearchResultCodec.encode(results, false)));
+  }
+
+  @Test
+  public void testDeflate() throws IOException {
+    ArrayList<SearchResult> results = new ArrayList<SearchResult>();
+    for (int i = 0; i < 50; ++i) {
+      results.add(createResult("Title " + i + ": a snippet of the result " + i
+                               + ", which is a sentence or two long.",
+                               "a query", "00000000-0000-0000-0000-" + (1000000 + i), i,
+                               50 - i, 0, null));
+    }
+    byte[] plain = SearchResultCodec.encode(results, false);
+    byte[] deflated = SearchResultCodec.encode(results, true);
+    assertTrue(deflated.length < plain.length);
+
+    assertResults(results, SearchResultCodec.decode(plain));
+    assertResults(results, SearchResultCodec.decode(deflated));
+  }
+
+  @Test
+  public void testOffset() throws IOException {
+    List<SearchResult> results = Arrays.asList(createResult("answer", "q", "doc", 3, 1, 1, null));
+    byte[] data = SearchResultCodec.encode(results);
+    byte[] buf = new byte[data.length + 10];
+    System.arraycopy(data, 0, buf, 7, data.length);
+
+    assertResults(results, SearchResultCodec.decode(buf, 7, data.length));
+  }
+
+  @Test
+  public void testDepth() throws IOException {
+    SearchResultList results = new SearchResultList();
+    for (int i = 0; i < 3; ++i)
+      results.add(createResult("answer " + i, "q", "doc" + i, i, 0, 0, null));
+
+    // Fewer results than requested
+    results.setDepth(50);
+    SearchResultList decoded = SearchResultCodec.decode(SearchResultCodec.encode(results));
+    assertResults(results, decoded);
+    assertEquals(50, decoded.getDepth());
+
+    // Depths that need several bytes
+    results.setDepth(300);
+    assertEquals(300, SearchResultCodec.decode(SearchResultCodec.encode(results)).getDepth());
+
+    // Nothing found
+    SearchResultList empty = new SearchResultList(new ArrayList<SearchResult>(), 10);
+    assertEquals(10, SearchResultCodec.decode(SearchResultCodec.encode(empty)).getDepth());
+
+    // Plain lists don't record the depth
+    ArrayList<SearchResult> plain = new ArrayList<SearchResult>(results);
+    assertEquals(0, SearchResultCodec.decode(SearchResultCodec.encode(plain)).getDepth());
+  }
+
+  @Test
+  public void testDeflatedDepth() throws IOException {
+    SearchResultList results = new SearchResultList();
+    for (int i = 0; i < 100; ++i)
+      results.add(createResult("a long enough answer number " + i, "q", "doc" + i, i, 0, 0, null));
+    results.setDepth(150);
+
+    SearchResultList decoded = SearchResultCodec.decode(SearchResultCodec.encode(results, true));
+    assertResults(results, decoded);
+    assertEquals(150, decoded.getDepth());
+  }
+
+  @Test
+  public void testUnsupportedVersion() {
+    byte[] data = SearchResultCodec.encode(Arrays.asList(createResult("a", "q", "d", 0, 0, 0, null)));
+    data[0] = 100;
+    assertDamaged(data);
+  }
+
+  @Test
+  public void testTruncated() {
+    ArrayList<SearchResult> results = new ArrayList<SearchResult>();
+    for (int i = 0; i < 50; ++i)
+      results.add(createResult("answer number " + i, "q", "doc" + i, i, 0, 0, null));
+
+    byte[] data = SearchResultCodec.encode(results, false);
+    for (int len = 0; len < data.length; ++len)
+      assertDamaged(Arrays.copyOf(data, len));
+
+    // The deflated body is shorter than recorded
+    data = SearchResultCodec.encode(results, true);
+    assertDamaged(Arrays.copyOf(data, 3));
+    assertDamaged(Arrays.copyOf(data, data.length / 2));
+  }
+
+  private static void assertDamaged(byte[] data) {
+    try {
+      SearchResultCodec.decode(data);
+      fail("Damaged data was decoded");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  static SearchResult createResult(String answer, String query, String docID, int hitPos,
+                                   float score, float normScore, String cacheID) {
+    SearchResult r = new SearchResult(answer, query, docID, hitPos);
+    r.setScore(score);
+    r.setNormScore(normScore);
+    r.setCacheID(cacheID);
+    return r;
+  }
+
+  /*
+   * SearchResult.equals compares answers only.
+   */
+  static void assertResults(List<SearchResult> expected, List<SearchResult> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); ++i) {
+      SearchResult e = expected.get(i), a = actual.get(i);
+      assertEquals(e.getAnswer(), a.getAnswer());
+      assertEquals(e.getQuery(), a.getQuery());
+      assertEquals(e.getDocID(), a.getDocID());
+      assertEquals(e.getCacheID(), a.getCacheID());
+      assertEquals(e.getHitPos(), a.getHitPos());
+      assertEquals(e.getScore(), a.getScore(), 0);
+      assertEquals(e.getNormScore(), a.getNormScore(), 0);
+    }
+  }
+
+  private static String repeat(String s, int qty) {
+    StringBuilder sb = new StringBuilder(s.length() * qty);
+    for (int i = 0; i < qty; ++i) sb.append(s);
+    return sb.toString();
+  }
+}
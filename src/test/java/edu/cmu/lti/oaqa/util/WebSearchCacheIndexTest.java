@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WebSearchCacheIndexTest {
+  @Rule
+  public TemporaryFolder mTmpDir = new TemporaryFolder();
+
+  @Test
+  public void testWriteAndOpen() throws IOException {
+    int qty = 10000;
+    long hashes[] = new long[qty], offsets[] = new long[qty];
+    HashMap<Long, Long> expected = new HashMap<Long, Long>();
+    for (int i = 0; i < qty; ++i) {
+      hashes[i] = WebSearchCacheIndex.hash("key" + i);
+      offsets[i] = 16 + 100L * i;
+      expected.put(hashes[i], offsets[i]);
+    }
+    File file = new File(mTmpDir.getRoot(), "log.idx");
+    WebSearchCacheIndex.write(file, 12345, 16 + 100L * qty, qty + 7, hashes, offsets, qty);
+
+    WebSearchCacheIndex index = WebSearchCacheIndex.open(file);
+    assertEquals(12345, index.getGeneration());
+    assertEquals(16 + 100L * qty, index.getCoveredEnd());
+    assertEquals(qty + 7, index.getRecordQty());
+    assertEquals(qty, index.size());
+
+    for (int i = 1; i < qty; ++i)
+      assertTrue(index.hashAt(i - 1) <= index.hashAt(i));
+    for (int i = 0; i < qty; ++i) {
+      long hash = WebSearchCacheIndex.hash("key" + i);
+      assertTrue(index.mightContain(hash));
+      int pos = index.lowerBound(hash);
+      assertEquals(hash, index.hashAt(pos));
+      assertEquals(expected.get(hash).longValue(), index.offsetAt(pos));
+    }
+  }
+
+  @Test
+  public void testBloomFilter() throws IOException {
+    int qty = 10000;
+    long hashes[] = new long[qty], offsets[] = new long[qty];
+    for (int i = 0; i < qty; ++i) {
+      hashes[i] = WebSearchCacheIndex.hash("key" + i);
+      offsets[i] = i;
+    }
+    File file = new File(mTmpDir.getRoot(), "log.idx");
+    WebSearchCacheIndex.write(file, 1, qty, qty, hashes, offsets, qty);
+    WebSearchCacheIndex index = WebSearchCacheIndex.open(file);
+
+    // About 1% of missing keys pass the filter
+    int falsePositiveQty = 0;
+    for (int i = 0; i < qty; ++i) {
+      if (index.mightContain(WebSearchCacheIndex.hash("missing" + i))) ++falsePositiveQty;
+    }
+    assertTrue("False positives: " + falsePositiveQty, falsePositiveQty < qty / 20);
+  }
+
+  @Test
+  public void testEmpty() throws IOException {
+    WebSearchCacheIndex index = WebSearchCacheIndex.createEmpty(7, 16);
+    assertEquals(7, index.getGeneration());
+    assertEquals(16, index.getCoveredEnd());
+    assertEquals(0, index.size());
+    assertFalse(index.mightContain(WebSearchCacheIndex.hash("key")));
+
+    File file = new File(mTmpDir.getRoot(), "log.idx");
+    WebSearchCacheIndex.write(file, 7, 16, 0, new long[0], new long[0], 0);
+    index = WebSearchCacheIndex.open(file);
+    assertEquals(0, index.size());
+    assertFalse(index.mightContain(WebSearchCacheIndex.hash("key")));
+  }
+
+  @Test
+  public void testReplace() throws IOException {
+    File file = new File(mTmpDir.getRoot(), "log.idx");
+    WebSearchCacheIndex.write(file, 1, 100, 1, new long[] {1}, new long[] {16}, 1);
+    WebSearchCacheIndex.write(file, 2, 200, 2, new long[] {2, 1}, new long[] {50, 16}, 2);
+
+    WebSearchCacheIndex index = WebSearchCacheIndex.open(file);
+    assertEquals(2, index.getGeneration());
+    assertEquals(2, index.size());
+    assertEquals(50, index.offsetAt(index.lowerBound(2)));
+  }
+
+  @Test
+  public void testInvalidFiles() throws IOException {
+    File file = new File(mTmpDir.getRoot(), "log.idx");
+    assertNull(WebSearchCacheIndex.open(file));
+
+    // Not an index
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.write(new byte[100]);
+    raf.close();
+    assertNull(WebSearchCacheIndex.open(file));
+
+    // A truncated index
+    WebSearchCacheIndex.write(file, 1, 100, 2, new long[] {1, 2}, new long[] {16, 50}, 2);
+    raf = new RandomAccessFile(file, "rw");
+    raf.setLength(raf.length() - 8);
+    raf.close();
+    assertNull(WebSearchCacheIndex.open(file));
+  }
+
+  @Test
+  public void testLeftoverTmp() throws IOException {
+    File file = new File(mTmpDir.getRoot(), "log.idx");
+    File tmp = new File(file.getPath() + ".tmp");
+    WebSearchCacheIndex.write(file, 1, 100, 1, new long[] {1}, new long[] {16}, 1);
+    // An interrupted write
+    assertTrue(tmp.createNewFile());
+
+    assertEquals(1, WebSearchCacheIndex.open(file).size());
+    assertFalse(tmp.exists());
+  }
+}
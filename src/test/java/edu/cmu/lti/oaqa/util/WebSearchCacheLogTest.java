@@ -0,0 +1,348 @@
+/*
+ *  Copyright 2014 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.cmu.lti.oaqa.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WebSearchCacheLogTest {
+  @Rule
+  public TemporaryFolder mTmpDir = new TemporaryFolder();
+
+  private File              mFile;
+  private WebSearchCacheLog mLog;
+
+  @Before
+  public void setUp() throws IOException {
+    mFile = new File(mTmpDir.getRoot(), "log");
+    mLog = open();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (mLog != null) mLog.close();
+  }
+
+  @Test
+  public void testAppendAndRead() throws IOException {
+    for (int i = 0; i < 100; ++i)
+      mLog.append("key" + i, value(i), false);
+    mLog.append("", value(-1));
+
+    assertEquals(101, mLog.size());
+    assertTrue(mLog.contains("key0"));
+    assertFalse(mLog.contains("missing"));
+    assertNull(mLog.read("missing"));
+    assertValues(100);
+    assertArrayEquals(value(-1), mLog.read(""));
+
+    reopen();
+    assertEquals(101, mLog.size());
+    assertValues(100);
+    assertArrayEquals(value(-1), mLog.read(""));
+  }
+
+  @Test
+  public void testOverwrite() throws IOException {
+    mLog.append("key", value(1));
+    mLog.append("key", value(2));
+    mLog.append("other", value(3));
+    mLog.append("key", new byte[0]);
+
+    assertEquals(2, mLog.size());
+    assertArrayEquals(new byte[0], mLog.read("key"));
+    reopen();
+    assertEquals(2, mLog.size());
+    assertArrayEquals(new byte[0], mLog.read("key"));
+    assertArrayEquals(value(3), mLog.read("other"));
+  }
+
+  @Test
+  public void testForEach() throws IOException {
+    mLog.append("key", value(1));
+    mLog.append("other", value(2));
+    mLog.append("key", value(3));
+
+    final ArrayList<String> keys = new ArrayList<String>();
+    final ArrayList<byte[]> values = new ArrayList<byte[]>();
+    mLog.forEach(new WebSearchCacheLog.RecordVisitor() {
+      public void visit(String key, byte[] value) {
+        keys.add(key);
+        values.add(value);
+      }
+    });
+
+    // All records in the order of writing
+    assertEquals(3, keys.size());
+    assertEquals("key", keys.get(0));
+    assertEquals("other", keys.get(1));
+    assertEquals("key", keys.get(2));
+    assertArrayEquals(value(3), values.get(2));
+  }
+
+  @Test
+  public void testTruncatedRecord() throws IOException {
+    writeUnindexed(3);
+    long end = mFile.length();
+
+    // A crash in the middle of the last record
+    RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+    raf.setLength(end - 3);
+    raf.close();
+
+    mLog = open();
+    assertEquals(2, mLog.size());
+    assertValues(2);
+    assertNull(mLog.read("key2"));
+    assertTrue(mFile.length() < end - 3);
+
+    // New records follow the last valid one
+    mLog.append("key2", value(2));
+    reopen();
+    assertValues(3);
+  }
+
+  @Test
+  public void testDamagedChecksum() throws IOException {
+    writeUnindexed(3);
+
+    // The last byte belongs to the value of the last record
+    RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+    raf.seek(raf.length() - 1);
+    int b = raf.read();
+    raf.seek(raf.length() - 1);
+    raf.write(b ^ 0xFF);
+    raf.close();
+
+    mLog = open();
+    assertEquals(2, mLog.size());
+    assertValues(2);
+    assertNull(mLog.read("key2"));
+  }
+
+  @Test
+  public void testPartialRecordHeader() throws IOException {
+    writeUnindexed(3);
+    long end = mFile.length();
+
+    RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+    raf.seek(end);
+    raf.write(new byte[] {0, 0, 1});
+    raf.close();
+
+    mLog = open();
+    assertEquals(3, mLog.size());
+    assertValues(3);
+    assertEquals(end, mFile.length());
+  }
+
+  @Test
+  public void testLeftoverTmp() throws IOException {
+    mLog.append("key0", value(0));
+    mLog.close();
+    mLog = null;
+
+    // A compaction was interrupted before the replacement was complete
+    File tmp = new File(mFile.getPath() + ".tmp");
+    writeFile(tmp, new byte[] {1, 2, 3});
+    assertTrue(WebSearchCacheLog.exists(mFile));
+
+    mLog = open();
+    assertFalse(tmp.exists());
+    assertValues(1);
+  }
+
+  @Test
+  public void testTmpReplacesLog() throws IOException {
+    mLog.append("key0", value(0));
+    mLog.close();
+    mLog = null;
+
+    // The replacement was complete, and the old log was deleted
+    File tmp = new File(mFile.getPath() + ".tmp");
+    assertTrue(mFile.renameTo(tmp));
+    assertTrue(WebSearchCacheLog.exists(mFile));
+
+    mLog = open();
+    assertFalse(tmp.exists());
+    assertValues(1);
+  }
+
+  @Test
+  public void testLeftoverOld() throws IOException {
+    mLog.append("key0", value(0));
+    mLog.close();
+    mLog = null;
+
+    // The old log was moved aside, and the new one replaced it
+    File old = new File(mFile.getPath() + ".old");
+    writeFile(old, readFile(mFile));
+    mLog = open();
+    assertFalse(old.exists());
+    assertValues(1);
+    mLog.close();
+    mLog = null;
+
+    // The old log was moved aside, but the new one wasn't put in place
+    assertTrue(mFile.renameTo(old));
+    mLog = open();
+    assertFalse(old.exists());
+    assertValues(1);
+  }
+
+  @Test
+  public void testDelete() throws IOException {
+    mLog.append("key0", value(0));
+    mLog.close();
+    mLog = null;
+    writeFile(new File(mFile.getPath() + ".old"), new byte[0]);
+
+    WebSearchCacheLog.delete(mFile);
+    assertFalse(WebSearchCacheLog.exists(mFile));
+    assertEquals(0, mTmpDir.getRoot().list().length);
+  }
+
+  @Test
+  public void testCompact() throws IOException {
+    for (int k = 0; k < 10; ++k) {
+      for (int i = 0; i < 100; ++i)
+        mLog.append("key" + i, value(k * 100 + i), false);
+    }
+    mLog.sync();
+    long size = mFile.length();
+
+    mLog.compact();
+    assertTrue(mFile.length() < size / 5);
+    assertEquals(100, mLog.size());
+    for (int i = 0; i < 100; ++i)
+      assertArrayEquals(value(900 + i), mLog.read("key" + i));
+
+    // Appends after the compaction
+    mLog.append("key0", value(0));
+    reopen();
+    assertEquals(100, mLog.size());
+    assertArrayEquals(value(0), mLog.read("key0"));
+    assertArrayEquals(value(999), mLog.read("key99"));
+  }
+
+  @Test
+  public void testStaleIndex() throws IOException {
+    for (int i = 0; i < 100; ++i)
+      mLog.append("key" + i, value(i), false);
+    mLog.close();
+    File index = new File(mFile.getPath() + ".idx");
+    byte[] staleIndex = readFile(index);
+
+    // The compaction moves records, so the old index is wrong for the new log
+    mLog = open();
+    for (int i = 0; i < 50; ++i)
+      mLog.append("key" + i, value(1000 + i), false);
+    mLog.compact();
+    mLog.close();
+
+    writeFile(index, staleIndex);
+    mLog = open();
+    assertEquals(100, mLog.size());
+    for (int i = 0; i < 100; ++i)
+      assertArrayEquals(value(i < 50 ? 1000 + i : i), mLog.read("key" + i));
+  }
+
+  @Test
+  public void testIndexCoversPartOfLog() throws IOException {
+    for (int i = 0; i < 10; ++i)
+      mLog.append("key" + i, value(i), false);
+    mLog.rebuildIndex();
+    for (int i = 10; i < 20; ++i)
+      mLog.append("key" + i, value(i), false);
+    mLog.append("key0", value(100));
+    mLog.sync();
+
+    // A crash: the index covers the first records only
+    mLog = open();
+    assertEquals(20, mLog.size());
+    assertArrayEquals(value(100), mLog.read("key0"));
+    for (int i = 1; i < 20; ++i)
+      assertArrayEquals(value(i), mLog.read("key" + i));
+  }
+
+  private WebSearchCacheLog open() throws IOException {
+    WebSearchCacheLog log = new WebSearchCacheLog(mFile);
+    log.open();
+    return log;
+  }
+
+  private void reopen() throws IOException {
+    mLog.close();
+    mLog = open();
+  }
+
+  /*
+   * Leaves records, which are not covered by the index, as after a crash.
+   */
+  private void writeUnindexed(int qty) throws IOException {
+    for (int i = 0; i < qty; ++i)
+      mLog.append("key" + i, value(i));
+    mLog.close();
+    mLog = null;
+    assertTrue(new File(mFile.getPath() + ".idx").delete());
+  }
+
+  private void assertValues(int qty) throws IOException {
+    for (int i = 0; i < qty; ++i)
+      assertArrayEquals(value(i), mLog.read("key" + i));
+  }
+
+  private static byte[] value(int i) {
+    return ("value of " + i).getBytes();
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    byte[] data = new byte[(int) file.length()];
+    FileInputStream in = new FileInputStream(file);
+    try {
+      int pos = 0;
+      while (pos < data.length) pos += in.read(data, pos, data.length - pos);
+    } finally {
+      in.close();
+    }
+    return data;
+  }
+
+  private static void writeFile(File file, byte[] data) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+  }
+}